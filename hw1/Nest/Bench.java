@@ -0,0 +1,19 @@
+// The workloads of MainBench (in ../src) that this version can run: it has
+// no procedures, so only the factorial loop.
+class Bench {
+    static Runnable workload(String name) {
+        if (name.equals("factorial")) {
+            // var i = 1; var t = 1; while (i < 1000) { t = t * i; i = i + 1; } print t;
+            // An Assign here goes on in the environment that starts at the
+            // variable assigned, so t is declared after i to keep i in scope.
+            Stmt s = new Seq(new VarDecl("i", new Int(1)),
+                     new Seq(new VarDecl("t", new Int(1)),
+                     new Seq(new While(new LT(new Var("i"), new Int(1000)),
+                                       new Seq(new Assign("t", new Mult(new Var("t"), new Var("i"))),
+                                               new Assign("i", new Plus(new Var("i"), new Int(1))))),
+                             new Print(new Var("t")))));
+            return () -> s.exec(null);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,33 @@
+// The workloads of MainBench (in ../src) that this version can run: the
+// factorial loop and procedure calls, but nothing passed by reference.
+class Bench {
+    static Runnable workload(String name) {
+        Program prog = null;
+        if (name.equals("factorial")) {
+            // var i = 1; var t = 1; while (i < 1000) { t = t * i; i = i + 1; } print t;
+            // As in Nest, an Assign drops the variables declared after the
+            // one assigned, so t is declared after i.
+            prog = new Program(
+                new Seq(new VarDecl("i", new Int(1)),
+                new Seq(new VarDecl("t", new Int(1)),
+                new Seq(new While(new LT(new Var("i"), new Int(1000)),
+                                  new Seq(new Assign("t", new Mult(new Var("t"), new Var("i"))),
+                                          new Assign("i", new Plus(new Var("i"), new Int(1))))),
+                        new Print(new Var("t"))))));
+        } else if (name.equals("calls")) {
+            // procedure sum(n, a) { if (0 < n) { sum(n - 1, a + n); } else { print a; } }
+            // var k = 0; while (k < 20) { sum(50, 0); k = k + 1; }
+            Proc sum = new Proc("sum", new String[] {"n", "a"},
+                new If(new LT(new Int(0), new Var("n")),
+                       new Call("sum", new Expr[] {new Minus(new Var("n"), new Int(1)),
+                                                   new Plus(new Var("a"), new Var("n"))}),
+                       new Print(new Var("a"))));
+            prog = new Program(new Proc[] {sum},
+                new Seq(new VarDecl("k", new Int(0)),
+                        new While(new LT(new Var("k"), new Int(20)),
+                                  new Seq(new Call("sum", new Expr[] {new Int(50), new Int(0)}),
+                                          new Assign("k", new Plus(new Var("k"), new Int(1)))))));
+        }
+        return prog != null ? prog::run : null;
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+// Runs many programs at once in one JVM, each printing to an Output of its
+// own, so a batch of test programs pays for JVM startup and warm-up only
+// once.  A program that fails (with an InterpreterException, any other
+// exception, or by running out of stack) ends only its own run.  Programs
+// run on virtual threads where the JDK has them (21 and later), and
+// otherwise on a fixed pool of platform threads.  The same Program may
+// appear in a batch more than once: each run prints to its own Output
+// without changing the Program (see Program.setOutput).
+//
+// Metered programs (see Program.meter) can also be time-sliced, so that a
+// program that loops for a long time, or forever, cannot hold up the rest.
+// A sliced program keeps its thread while it waits for its next turn, so
+// only so many of them are started at once (see LIVE); the rest wait in
+// the executor's queue until one of those ends.  Turns are fair among the
+// programs that have started.  Every one of them has a limit on its
+// steps, so each of them ends, and the programs in the queue start in
+// their order.
+//
+// Parser.jj uses this for "java Parser -batch file ...", and MainBatch
+// runs a batch of the example programs.
+class Batch {
+    // At most this many time-sliced programs have a thread at any one
+    // time, or threads if that is more.  Every one of them ends, at the
+    // latest when it reaches its limit, so those queued behind get to run.
+    static final int LIVE = 64;
+
+    static class Result {
+        String name;
+        String output = "";     // everything that the program printed
+        String error;           // null if the program ran to the end
+        long nanos;
+        long steps = -1;        // for a metered run, the steps taken (see Fuel.java)
+
+        Result(String name) {
+            this.name = name;
+        }
+    }
+
+    static List<Result> run(List<String> names, List<Program> programs, int threads) {
+        return run(names, programs, executor(threads), null, 0, 0);
+    }
+
+    // Run metered programs in turns: each started program has a thread of
+    // its own, but only threads of them run at any one time.  A program
+    // runs for slice steps and then waits behind the others for its next
+    // turn, and one that takes more than limit steps in all is stopped.
+    // Without a limit, LIVE programs that never end would keep the rest
+    // from ever starting, so there must be one.
+    static List<Result> run(List<String> names, List<Program> programs, int threads, int slice, long limit) {
+        if (limit <= 0 || limit == Long.MAX_VALUE) {
+            throw new IllegalArgumentException("time-sliced programs need a step limit");
+        }
+        Semaphore turns = new Semaphore(threads, true);
+        int live = Math.max(1, Math.min(programs.size(), Math.max(threads, LIVE)));
+        return run(names, programs, executor(live), turns, slice, limit);
+    }
+
+    private static List<Result> run(List<String> names, List<Program> programs, ExecutorService executor,
+                                    Semaphore turns, int slice, long limit) {
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (int i = 0; i < programs.size(); i++) {
+                String name = names.get(i);
+                Program prog = programs.get(i);
+                futures.add(executor.submit(() -> turns != null ? run(name, prog, turns, slice, limit)
+                                                                : run(name, prog, null)));
+            }
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> f : futures) {
+                results.add(f.get());
+            }
+            return results;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // The fair semaphore queues a program that gives up its turn behind
+    // the others that are waiting:
+    private static Result run(String name, Program prog, Semaphore turns, int slice, long limit) {
+        Fuel fuel = new Fuel(limit, slice, () -> {
+            turns.release();
+            turns.acquireUninterruptibly();
+        });
+        turns.acquireUninterruptibly();
+        try {
+            return run(name, prog, fuel);
+        } finally {
+            turns.release();
+        }
+    }
+
+    private static Result run(String name, Program prog, Fuel fuel) {
+        Result r = new Result(name);
+        Output out = Output.capture();
+        long start = System.nanoTime();
+        try {
+            out.run(fuel != null ? () -> fuel.run(prog::run) : prog::run);
+        } catch (InterpreterException e) {
+            r.error = e.getMessage();
+        } catch (RuntimeException e) {
+            r.error = e.toString();
+        } catch (StackOverflowError e) {
+            r.error = "StackOverflowError";
+        }
+        r.nanos = System.nanoTime() - start;
+        r.steps = fuel != null ? fuel.used() : -1;
+        r.output = out.text();
+        return r;
+    }
+
+    static ExecutorService executor(int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    // Print each program's output, in the order given, and a summary:
+    static void report(List<Result> results) {
+        int failed = 0;
+        for (Result r : results) {
+            System.out.println("== " + r.name + " (" + (r.error != null ? "failed, " : "")
+                               + (r.steps >= 0 ? r.steps + " steps, " : "") + r.nanos / 1000 + " us)");
+            System.out.print(r.output);
+            if (r.error != null) {
+                failed++;
+                if (!r.output.contains(r.error)) {
+                    System.out.println(r.error);
+                }
+            }
+        }
+        System.out.println(results.size() + " programs, " + failed + " failed");
+    }
+}
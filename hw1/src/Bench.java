@@ -0,0 +1,41 @@
+// The workloads of MainBench, written with this version's syntax classes.
+// This version runs all of them; the older ones in ../Nest, ../Proc and
+// ../Ref have a Bench of their own with the workloads that they can run.
+class Bench {
+    static Runnable workload(String name) {
+        Program prog = null;
+        if (name.equals("factorial")) {
+            prog = MainEngines.factorial(1000);
+        } else if (name.equals("calls")) {
+            // procedure sum(n, a) { if (0 < n) { sum(n - 1, a + n); } else { print a; } }
+            // var k = 0; while (k < 20) { sum(50, 0); k = k + 1; }
+            Proc sum = new Proc("sum", new Formal[] {new Formal("n"), new Formal("a")},
+                new If(new LT(new Int(0), new Var("n")),
+                       new Call("sum", new Expr[] {new Minus(new Var("n"), new Int(1)),
+                                                   new Plus(new Var("a"), new Var("n"))}),
+                       new Print(new Var("a"))));
+            prog = new Program(new Proc[] {sum},
+                new Seq(new VarDecl("k", new Int(0)),
+                        new While(new LT(new Var("k"), new Int(20)),
+                                  new Seq(new Call("sum", new Expr[] {new Int(50), new Int(0)}),
+                                          new Assign("k", new Plus(new Var("k"), new Int(1)))))));
+        } else if (name.equals("byref")) {
+            // procedure inc(ref x) { x = x + 1; }
+            // var c = 0; var i = 0; while (i < 1000) { inc(c); i = i + 1; } print c;
+            Proc inc = new Proc("inc", new Formal[] {new ByRef("x")},
+                new Assign("x", new Plus(new Var("x"), new Int(1))));
+            prog = new Program(new Proc[] {inc},
+                new Seq(new VarDecl("c", new Int(0)),
+                new Seq(new VarDecl("i", new Int(0)),
+                new Seq(new While(new LT(new Var("i"), new Int(1000)),
+                                  new Seq(new Call("inc", new Expr[] {new Var("c")}),
+                                          new Assign("i", new Plus(new Var("i"), new Int(1))))),
+                        new Print(new Var("c"))))));
+        } else if (name.equals("closures")) {
+            prog = MainEngines.closures(1000);
+        } else if (name.equals("lists")) {
+            prog = MainTypes.building(1000);
+        }
+        return prog != null ? prog::run : null;
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.ArrayList;
+
+// A compact bytecode for the interpreter's language, together with the
+// assembler that the syntax tree emits it into (see the emit methods in
+// Src.java) and the dispatch loop that runs it (see VM.java).
+//
+// Each instruction is an opcode followed by its operands, all stored in a
+// single int[].  Ints and booleans (as 0 or 1) are kept unboxed on an int
+// operand stack; every other value, and the cells that are passed to
+// by-reference formals, live on a separate object stack.  Variables are
+// held in the same Frames that the tree-walking engine uses, addressed by
+// the (depth, slot) pairs that the resolver computed.
+class Bytecode {
+    static final int HALT = 0;          //                    stop the program
+    static final int ICONST = 1;        // n          -> i    push int n
+    static final int VCONST = 2;        // k          -> v    push value consts[k]
+    static final int LOAD = 3;          // d s        -> v    push value of variable
+    static final int LOADREF = 4;       // d s        -> c    push cell of variable
+    static final int STORE = 5;         // d s      v ->      assign to variable
+    static final int DECL = 6;          // s k      v ->      bind new variable consts[k]
+    static final int BOXINT = 7;        //          i -> v
+    static final int BOXBOOL = 8;       //          i -> v
+    static final int UNBOXINT = 9;      //          v -> i    (with dynamic check)
+    static final int UNBOXBOOL = 10;    //          v -> i    (with dynamic check)
+    static final int IADD = 11;         //        i i -> i
+    static final int ISUB = 12;         //        i i -> i
+    static final int IMUL = 13;         //        i i -> i
+    static final int ILT = 14;          //        i i -> i
+    static final int IEQ = 15;          //        i i -> i
+    static final int JUMP = 16;         // L
+    static final int JUMPF = 17;        // L        i ->      jump if zero
+    static final int PRINT = 18;        //          v ->
+    static final int NIL = 19;          //            -> v
+    static final int CONS = 20;         //        v v -> v    tail (a list), head
+    static final int HEAD = 21;         //          v -> v
+    static final int TAIL = 22;         //          v -> v
+    static final int NONEMPTY = 23;     //          v -> i
+    static final int CHECKLIST = 24;    //          v -> v    abort unless a list
+    static final int CASE = 25;         // L        v -> v v  jump to L if empty,
+                                        //                    else push head, tail
+    static final int FORNEXT = 26;      // L        v -> v v  as CASE, but keeps the
+                                        //                    tail for the next turn
+    static final int ENTER = 27;        // n                  open a frame of size n
+    static final int LEAVE = 28;        //                    close the current frame
+    static final int CELL = 29;         // k        v -> c    ValEnv for formal consts[k]
+    static final int REFCELL = 30;      // k        c -> c    RefEnv for formal consts[k]
+    static final int TOCELL = 31;       //          v -> c    anonymous ValEnv
+    static final int CALL = 32;         // k     c... ->      call procedure consts[k]
+    static final int LAMBDA = 33;       // k          -> v    closure for consts[k]
+    static final int APPLY = 34;        //        v v -> v    function, argument
+    static final int RETURN = 35;       //                    return from CALL or APPLY
+    static final int ABORT = 36;        // k                  fail with message consts[k]
+    static final int LOADINT = 37;      // d s        -> i    LOAD followed by UNBOXINT
+    static final int THUNK = 38;        // k          -> c    ThunkEnv that runs consts[k]
+    static final int TAILCALL = 39;     // k     c... ->      CALL that returns to the
+                                        //                    caller's caller
+
+    // An entry point: the body of a procedure or a lambda.
+    static class Function {
+        String name;
+        int arity;
+        int frameSize;
+        int entry = -1;
+        int[] captures;             // for a lambda: the cells its closures keep
+
+        Function(String name, int arity, int frameSize) {
+            this.name = name;
+            this.arity = arity;
+            this.frameSize = frameSize;
+        }
+    }
+
+    int[] code;
+    Object[] consts;
+    int[] fused;                    // code as the VM runs it (see VM.fuse)
+
+    Bytecode(int[] code, Object[] consts) {
+        this.code = code;
+        this.consts = consts;
+        this.fused = VM.fuse(code, consts);
+    }
+
+    // The number of ints that an instruction with opcode op takes up:
+    static int length(int op) {
+        switch (op) {
+        case ICONST: case VCONST: case JUMP: case JUMPF: case CASE: case FORNEXT: case ENTER:
+        case CELL: case REFCELL: case CALL: case LAMBDA: case ABORT: case THUNK: case TAILCALL:
+            return 2;
+        case LOAD: case LOADINT: case LOADREF: case STORE: case DECL:
+            return 3;
+        default:
+            return 1;
+        }
+    }
+}
+
+class Assembler {
+    private Program prog;
+    private int[] code = new int[64];
+    private int pc = 0;
+    private ArrayList<Object> consts = new ArrayList<Object>();
+    private ArrayList<Integer> labels = new ArrayList<Integer>();
+    private ArrayList<Integer> fixups = new ArrayList<Integer>();
+    private ArrayList<Proc> procs = new ArrayList<Proc>();
+    private ArrayList<Bytecode.Function> procFunctions = new ArrayList<Bytecode.Function>();
+
+    Assembler(Program prog) {
+        this.prog = prog;
+    }
+
+    void emit(int op) {
+        if (pc == code.length) {
+            int[] bigger = new int[2 * code.length];
+            System.arraycopy(code, 0, bigger, 0, pc);
+            code = bigger;
+        }
+        code[pc++] = op;
+    }
+
+    void emit(int op, int arg) {
+        emit(op);
+        emit(arg);
+    }
+
+    void emit(int op, int arg1, int arg2) {
+        emit(op);
+        emit(arg1);
+        emit(arg2);
+    }
+
+    int constant(Object val) {
+        consts.add(val);
+        return consts.size() - 1;
+    }
+
+    int label() {
+        labels.add(-1);
+        return labels.size() - 1;
+    }
+
+    void place(int label) {
+        labels.set(label, pc);
+    }
+
+    // Emit a jump to a label that may not have been placed yet:
+    void jump(int op, int label) {
+        emit(op);
+        fixups.add(pc);
+        emit(label);
+    }
+
+    void place(Bytecode.Function f) {
+        f.entry = pc;
+    }
+
+    // The function that a call to p will enter, emitted by finish():
+    Bytecode.Function function(Proc p, int arity, int frameSize) {
+        int i = procs.indexOf(p);
+        if (i < 0) {
+            procs.add(p);
+            procFunctions.add(new Bytecode.Function(p.getName(), arity, frameSize));
+            i = procs.size() - 1;
+        }
+        return procFunctions.get(i);
+    }
+
+    // Emit the bodies of all procedures that were called, then patch
+    // every jump with the final address of its label.
+    Bytecode finish() {
+        for (int i = 0; i < procs.size(); i++) {
+            place(procFunctions.get(i));
+            procs.get(i).emitBody(this);
+            emit(Bytecode.RETURN);
+        }
+        for (int at : fixups) {
+            code[at] = labels.get(code[at]);
+        }
+        int[] result = new int[pc];
+        System.arraycopy(code, 0, result, 0, pc);
+        return new Bytecode(result, consts.toArray());
+    }
+}
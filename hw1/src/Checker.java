@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Static type inference for a whole program (see Program.typecheck and the
+// check methods in Src.java).  Every expression is given a Type, with type
+// variables for what is not yet known; each use of a value then unifies
+// the type it has with the type it needs, and a use that cannot be unified
+// is reported, with the text of the node it belongs to.  Types are not
+// polymorphic: a variable, formal or lambda has the one type everywhere.
+//
+// Variables in scope are kept in a list, in the order that they are
+// declared, with mark() and release() to drop the ones that go out of
+// scope, as in a Scope.
+class Checker {
+    private ArrayList<String> names = new ArrayList<String>();
+    private ArrayList<Type> types = new ArrayList<Type>();
+    private HashMap<String, Type[]> procs = new HashMap<String, Type[]>();
+    private ArrayList<String> errors = new ArrayList<String>();
+    private ArrayList<Runnable> marks = new ArrayList<Runnable>();
+    private int vars = 0;
+
+    Type fresh() {
+        return Type.var(vars++);
+    }
+
+    void declare(String name, Type t) {
+        names.add(name);
+        types.add(t);
+    }
+
+    // The type of a variable, or null if it is not in scope:
+    Type lookup(String name) {
+        for (int i = names.size() - 1; i >= 0; i--) {
+            if (names.get(i).equals(name)) {
+                return types.get(i);
+            }
+        }
+        return null;
+    }
+
+    int mark() {
+        return names.size();
+    }
+
+    void release(int mark) {
+        while (names.size() > mark) {
+            names.remove(names.size() - 1);
+            types.remove(types.size() - 1);
+        }
+    }
+
+    // Procedures are declared, with a type for each formal, before any
+    // body is checked, so that calls can come before the procedure:
+    void declareProc(String name, int arity) {
+        if (!procs.containsKey(name)) {
+            Type[] formals = new Type[arity];
+            for (int i = 0; i < arity; i++) {
+                formals[i] = fresh();
+            }
+            procs.put(name, formals);
+        }
+    }
+
+    Type[] signature(String name) {
+        return procs.get(name);
+    }
+
+    // Check that part, whose type is found, has the expected type:
+    void expect(Type expected, Type found, Expr part, Expr where) {
+        if (!Type.unify(expected, found)) {
+            error(mismatch(expected, found, part), where.show());
+        }
+    }
+
+    void expect(Type expected, Type found, Expr part, Stmt where) {
+        if (!Type.unify(expected, found)) {
+            error(mismatch(expected, found, part), where.text());
+        }
+    }
+
+    private static String mismatch(Type expected, Type found, Expr part) {
+        return part.show() + " has type " + found.show() + " where " + expected.show() + " is expected";
+    }
+
+    void error(String msg, String where) {
+        errors.add("Type error in " + where + ": " + msg);
+    }
+
+    // Something to do once the whole program is known to be well typed,
+    // such as switching a node to a path without run-time checks:
+    void ifTyped(Runnable mark) {
+        marks.add(mark);
+    }
+
+    // Called when every node has been checked:
+    ArrayList<String> finish() {
+        if (errors.isEmpty()) {
+            for (Runnable mark : marks) {
+                mark.run();
+            }
+        }
+        return errors;
+    }
+}
@@ -0,0 +1,36 @@
+// The closure-compilation engine translates a resolved Program once into
+// a tree of these small functions, one for each node, with variable slots,
+// procedure targets and operators all fixed at translation time.  Running
+// the program then only calls straight through the pre-linked closures,
+// without going back to the syntax tree.  See Program.runCompiled().
+//
+// The compiled code shares Values and Frames with the tree-walking engine,
+// so a node that has no compiled form of its own can simply fall back to
+// its eval() or exec() method.
+
+interface ValueCode {
+    Value eval(Env env);
+}
+
+interface IntCode {
+    int evalInt(Env env);
+}
+
+interface BoolCode {
+    boolean evalBool(Env env);
+}
+
+interface RefCode {
+    Env evalRef(Env env);
+}
+
+interface StmtCode {
+    void exec(Env env);
+}
+
+// The code of a procedure body, or of a statement at the end of one
+// (see Stmt.compileTail): it returns the TailCall that it ends with, if
+// any, for the caller to run, and otherwise the environment.
+interface TailCode {
+    Env exec(Env env);
+}
@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+// Rebuilds a program from the binary form that Encoder writes.  The file
+// is mapped into memory and read straight from the mapping, node by node.
+// Long runs of SEQ statements (read as one Block) and CONS cells are read
+// in a loop, not by recursion, so a long generated program does not need
+// a deep Java stack.
+//
+// A file that is cut short or corrupt is reported as an IOException.
+// Every count is checked before anything is allocated for it: it must not
+// be negative, or larger than the number of bytes left, since each item
+// takes at least one.
+class Decoder {
+    private final ByteBuffer in;
+    private String[] names;
+
+    Decoder(ByteBuffer in) {
+        this.in = in;
+    }
+
+    static Program load(String file) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+        try {
+            return new Decoder(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())).program(file);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + ": program is cut short");
+        } finally {
+            channel.close();
+        }
+    }
+
+    private Program program(String file) throws IOException {
+        if (in.remaining() < 5 || in.getInt() != Encoder.MAGIC || in.get() != Encoder.VERSION) {
+            throw new IOException(file + ": not a saved program");
+        }
+        names = new String[count()];
+        for (int i = 0; i < names.length; i++) {
+            byte[] bytes = new byte[count()];
+            in.get(bytes);
+            names[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        Proc[] procs = new Proc[count()];
+        for (int i = 0; i < procs.length; i++) {
+            String name = name();
+            Formal[] formals = new Formal[count()];
+            for (int j = 0; j < formals.length; j++) {
+                int tag = tag();
+                if (tag == Encoder.FORMAL) {
+                    formals[j] = new Formal(name());
+                } else if (tag == Encoder.BYREF) {
+                    formals[j] = new ByRef(name());
+                } else if (tag == Encoder.BYNEED) {
+                    formals[j] = new ByNeed(name());
+                } else {
+                    throw new IOException(file + ": bad formal tag " + tag);
+                }
+            }
+            procs[i] = new Proc(name, formals, stmt());
+        }
+        Stmt body = stmt();
+        if (in.hasRemaining()) {
+            throw new IOException(file + ": " + in.remaining() + " bytes left over");
+        }
+        return new Program(procs, body);
+    }
+
+    private int tag() {
+        return in.get() & 0xff;
+    }
+
+    // An unsigned varint of up to 32 bits, in at most five bytes:
+    private int number() throws IOException {
+        int n = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get();
+            n |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return n;
+            }
+        }
+        throw new IOException("bad number");
+    }
+
+    // The number of items that follow:
+    private int count() throws IOException {
+        int n = number();
+        if (n < 0 || n > in.remaining()) {
+            throw new IOException("bad count " + (n & 0xffffffffL));
+        }
+        return n;
+    }
+
+    private int integer() throws IOException {
+        int n = number();
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private String name() throws IOException {
+        int i = number();
+        if (i < 0 || i >= names.length) {
+            throw new IOException("bad name index " + (i & 0xffffffffL));
+        }
+        return names[i];
+    }
+
+    private Expr expr() throws IOException {
+        return expr(tag());
+    }
+
+    private Expr expr(int tag) throws IOException {
+        switch (tag) {
+        case Encoder.NIL:
+            return new Nil();
+        case Encoder.CONS:
+            ArrayList<Expr> heads = new ArrayList<Expr>();
+            do {
+                heads.add(expr());
+                tag = tag();
+            } while (tag == Encoder.CONS);
+            Expr list = expr(tag);
+            for (int i = heads.size() - 1; i >= 0; i--) {
+                list = new Cons(heads.get(i), list);
+            }
+            return list;
+        case Encoder.NONEMPTY:
+            return new NonEmpty(expr());
+        case Encoder.HEAD:
+            return new Head(expr());
+        case Encoder.TAIL:
+            return new Tail(expr());
+        case Encoder.VAR:
+            return new Var(name());
+        case Encoder.INT:
+            return new Int(integer());
+        case Encoder.TRUE:
+            return new Bool(true);
+        case Encoder.FALSE:
+            return new Bool(false);
+        case Encoder.PLUS:
+            return new Plus(expr(), expr());
+        case Encoder.MULT:
+            return new Mult(expr(), expr());
+        case Encoder.MINUS:
+            return new Minus(expr(), expr());
+        case Encoder.LT:
+            return new LT(expr(), expr());
+        case Encoder.EQEQ:
+            return new EqEq(expr(), expr());
+        case Encoder.LAMBDA:
+            return new Lambda(name(), expr());
+        case Encoder.APPLY:
+            return new Apply(expr(), expr());
+        default:
+            throw new IOException("bad expression tag " + tag);
+        }
+    }
+
+    private Stmt stmt() throws IOException {
+        int tag = tag();
+        switch (tag) {
+        case Encoder.SKIP:
+            return new Skip();
+        case Encoder.SEQ:
+            Stmt[] stmts = new Stmt[count()];
+            if (stmts.length < 2) {
+                throw new IOException("bad statement count " + stmts.length);
+            }
+            for (int i = 0; i < stmts.length; i++) {
+                stmts[i] = stmt();
+            }
+            return new Block(stmts);
+        case Encoder.ASSIGN:
+            return new Assign(name(), expr());
+        case Encoder.WHILE:
+            return new While(expr(), stmt());
+        case Encoder.IF:
+            return new If(expr(), stmt(), stmt());
+        case Encoder.PRINT:
+            return new Print(expr());
+        case Encoder.VARDECL:
+            return new VarDecl(name(), expr());
+        case Encoder.FOR:
+            return new For(name(), expr(), stmt());
+        case Encoder.CASE:
+            return new Case(expr(), stmt(), name(), name(), stmt());
+        case Encoder.CALL:
+            String name = name();
+            Expr[] actuals = new Expr[count()];
+            for (int i = 0; i < actuals.length; i++) {
+                actuals[i] = expr();
+            }
+            return new Call(name, actuals);
+        default:
+            throw new IOException("bad statement tag " + tag);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+// What a piece of code does besides compute values (see Program.memoize and
+// the effects methods in Src.java): whether it prints, which procedures it
+// calls, and which variables it reads and assigns.  Reads and writes are
+// only recorded for free variables, those not declared in the code itself;
+// declarations come and go with mark() and release(), as in a Scope.
+//
+// The Effects of a whole program are collected in several pieces (one per
+// procedure, and one for the main body), which share the set of every name
+// that is assigned anywhere and the free variables of every lambda.
+//
+// Names only tell which variables are assigned if no variable has two
+// names.  A by-ref formal is another name for its caller's variable, so a
+// lambda that reads one is never taken to be pure (see aliased()).
+class Effects {
+    private ArrayList<String> bound = new ArrayList<String>();
+    private ArrayList<Boolean> refs = new ArrayList<Boolean>();    // is bound[i] a by-ref formal?
+    private Effects up;                     // the code around a nested piece, or null
+    private HashSet<String> reads = new HashSet<String>();
+    private HashSet<String> writes = new HashSet<String>();
+    private ArrayList<Proc> calls = new ArrayList<Proc>();
+    private boolean prints = false, unlinked = false;
+    private HashSet<String> assigned;
+    private LinkedHashMap<Lambda, HashSet<String>> lambdas;
+    private HashSet<Lambda> aliased;
+
+    Effects() {
+        assigned = new HashSet<String>();
+        lambdas = new LinkedHashMap<Lambda, HashSet<String>>();
+        aliased = new HashSet<Lambda>();
+    }
+
+    // Another piece of the same program:
+    Effects fresh() {
+        Effects e = new Effects();
+        e.assigned = assigned;
+        e.lambdas = lambdas;
+        e.aliased = aliased;
+        return e;
+    }
+
+    // A piece of the same program that can see the variables of this one,
+    // such as a loop body or the body of a lambda:
+    Effects nested() {
+        Effects e = fresh();
+        e.up = this;
+        return e;
+    }
+
+    void declare(String name) {
+        declare(name, false);
+    }
+
+    void declare(String name, boolean ref) {
+        bound.add(name);
+        refs.add(ref);
+    }
+
+    int mark() {
+        return bound.size();
+    }
+
+    void release(int mark) {
+        while (bound.size() > mark) {
+            bound.remove(bound.size() - 1);
+            refs.remove(refs.size() - 1);
+        }
+    }
+
+    // Is name, where it is bound, a by-ref formal?
+    private boolean ref(String name) {
+        for (Effects e = this; e != null; e = e.up) {
+            int i = e.bound.lastIndexOf(name);
+            if (i >= 0) {
+                return e.refs.get(i);
+            }
+        }
+        return false;
+    }
+
+    void read(String name) {
+        if (!bound.contains(name)) {
+            reads.add(name);
+        }
+    }
+
+    void write(String name) {
+        assigned.add(name);
+        if (!bound.contains(name)) {
+            writes.add(name);
+        }
+    }
+
+    void print() {
+        prints = true;
+    }
+
+    // A call, linked to p, or to null if it could not be linked:
+    void call(Proc p) {
+        if (p == null) {
+            unlinked = true;
+        } else {
+            calls.add(p);
+        }
+    }
+
+    // Add the effects of inner, a nested piece of this code:
+    void include(Effects inner) {
+        for (String name : inner.reads) {
+            read(name);
+        }
+        for (String name : inner.writes) {
+            write(name);
+        }
+        calls.addAll(inner.calls);
+        prints |= inner.prints;
+        unlinked |= inner.unlinked;
+    }
+
+    // The body of a lambda runs later, but reads the same variables:
+    void lambda(Lambda l, String var, Expr body) {
+        Effects inner = nested();
+        inner.declare(var);
+        body.effects(inner);
+        lambdas.put(l, inner.reads);
+        for (String name : inner.reads) {
+            read(name);
+            if (ref(name)) {
+                aliased.add(l);
+            }
+        }
+    }
+
+    boolean prints() {
+        return prints;
+    }
+
+    boolean unlinked() {
+        return unlinked;
+    }
+
+    ArrayList<Proc> calls() {
+        return calls;
+    }
+
+    HashSet<String> reads() {
+        return reads;
+    }
+
+    HashSet<String> writes() {
+        return writes;
+    }
+
+    HashSet<String> assigned() {
+        return assigned;
+    }
+
+    LinkedHashMap<Lambda, HashSet<String>> lambdas() {
+        return lambdas;
+    }
+
+    // The lambdas that read a variable through a by-ref formal, which may
+    // be assigned under the name that its caller gives it:
+    HashSet<Lambda> aliased() {
+        return aliased;
+    }
+}
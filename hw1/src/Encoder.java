@@ -0,0 +1,80 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Writes a program in a compact binary form that Decoder reads back
+// without the parser (see Program.save and Program.load).  A file holds:
+//
+//    MAGIC VERSION
+//    count, then each name: length, UTF-8 bytes
+//    count, then each procedure: name, count, formals, body
+//    the main body
+//
+// Every name in the program is stored once, in the table at the front,
+// and is written as its index there.  Each node is a one-byte tag
+// followed by its parts, in the order that its constructor takes them.
+// Numbers (counts, indexes and int constants) are varints: seven bits to
+// a byte, low bits first, with the top bit set on all but the last byte.
+// Ints are zigzag-coded first, so that small negative ones are short too.
+class Encoder {
+    static final int MAGIC = 0x48573150;   // "HW1P"
+    static final int VERSION = 1;
+
+    static final int NIL = 0, CONS = 1, NONEMPTY = 2, HEAD = 3, TAIL = 4, VAR = 5, INT = 6, TRUE = 7,
+                     FALSE = 8, PLUS = 9, MULT = 10, MINUS = 11, LT = 12, EQEQ = 13, LAMBDA = 14,
+                     APPLY = 15, SKIP = 16, SEQ = 17, ASSIGN = 18, WHILE = 19, IF = 20, PRINT = 21,
+                     VARDECL = 22, FOR = 23, CASE = 24, CALL = 25, FORMAL = 26, BYREF = 27,
+                     BYNEED = 28;
+
+    private ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private LinkedHashMap<String, Integer> names = new LinkedHashMap<String, Integer>();
+
+    void tag(int tag) {
+        out.write(tag);
+    }
+
+    void number(int n) {
+        while ((n & ~0x7f) != 0) {
+            out.write((n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.write(n);
+    }
+
+    void integer(int n) {
+        number((n << 1) ^ (n >> 31));
+    }
+
+    void name(String name) {
+        Integer index = names.get(name);
+        if (index == null) {
+            index = names.size();
+            names.put(name, index);
+        }
+        number(index);
+    }
+
+    // Write the header and the name table, then the nodes written so far:
+    void save(String file) throws IOException {
+        Encoder header = new Encoder();
+        header.number(names.size());
+        for (Map.Entry<String, Integer> n : names.entrySet()) {
+            byte[] bytes = n.getKey().getBytes(StandardCharsets.UTF_8);
+            header.number(bytes.length);
+            header.out.write(bytes);
+        }
+        DataOutputStream data = new DataOutputStream(new FileOutputStream(file));
+        try {
+            data.writeInt(MAGIC);
+            data.writeByte(VERSION);
+            header.out.writeTo(data);
+            out.writeTo(data);
+        } finally {
+            data.close();
+        }
+    }
+}
@@ -13,9 +13,11 @@ abstract class Env {
                 return env;
             }
         }
-        System.out.println("ABORT: Variable " + name + " not defined");
-        System.exit(1);
-        return null; // not reached
+        throw new InterpreterException("ABORT: Variable " + name + " not defined");
+    }
+
+    Env rest() {
+        return rest;
     }
 
     abstract Value getValue();
@@ -44,7 +46,14 @@ class RefEnv extends Env {
 
     RefEnv(String var, Env ref, Env rest) {
         super(var, rest);
-        this.ref = ref;
+        // Point straight at the variable, not at another reference to it,
+        // so that passing a ref formal on does not build up a chain:
+        this.ref = ref instanceof RefEnv ? ((RefEnv) ref).ref : ref;
+    }
+
+    // The variable that this refers to:
+    Env target() {
+        return ref;
     }
 
     Value getValue() {
@@ -54,4 +63,152 @@ class RefEnv extends Env {
     void setValue(Value val) {
         ref.setValue(val);
     }
-}
\ No newline at end of file
+}
+
+// The cell of a call-by-need formal: it holds the code of the actual and
+// the environment of the call, and runs the code the first time that the
+// formal is read.  Later reads see the value that was stored then, or
+// whatever the procedure has assigned since.  If two threads read the
+// formal at once, both may run the code; expressions have no effects, so
+// both store the same value.
+class ThunkEnv extends Env {
+    private final ValueCode code;
+    private final Env env;
+    private Value val;              // null until the formal is read or assigned
+
+    ThunkEnv(String var, ValueCode code, Env env, Env rest) {
+        super(var, rest);
+        this.code = code;
+        this.env = env;
+    }
+
+    boolean forced() {
+        return val != null;
+    }
+
+    Value getValue() {
+        Value v = val;
+        if (v == null) {
+            v = code.eval(env);
+            val = v;
+        }
+        return v;
+    }
+
+    void setValue(Value val) {
+        this.val = val;
+    }
+}
+
+// A Frame holds every variable of one resolved scope in an array, indexed
+// by the slot numbers that a Scope hands out at resolve time.  Each slot
+// holds a ValEnv or RefEnv cell, so call-by-reference works just as it does
+// with the linked environments above.  The chain of frames is only ever
+// walked a fixed number of steps; no names are compared at run time.
+//
+// Each frame also carries the Fuel of the metered run that it belongs to,
+// if any (see Fuel.java): the run's first frame gets it, and every frame
+// made below it, or for a procedure or closure that the run calls, gets
+// it from there.
+class Frame extends Env {
+    private Env[] cells;
+    private Frame up;
+    Fuel fuel;
+
+    Frame(int size, Env up) {
+        super(null, up);
+        this.cells = new Env[size];
+        this.up = (Frame) up;
+        this.fuel = up != null ? this.up.fuel : null;
+    }
+
+    // The Fuel of the run that env belongs to, or null:
+    static Fuel fuel(Env env) {
+        while (env != null && !(env instanceof Frame)) {
+            env = env.rest();
+        }
+        return env != null ? ((Frame) env).fuel : null;
+    }
+
+    static Env cell(Env env, int depth, int slot) {
+        Frame f = (Frame) env;
+        for (; depth > 0; depth--) {
+            f = f.up;
+        }
+        return f.cells[slot];
+    }
+
+    // The frame that a closure keeps: the cells at the (depth, slot) pairs
+    // in where, copied into slots 0, 1, ... of a frame with nothing above
+    // it.  The cells themselves are shared, so assignments are still seen
+    // both ways, but the frames they came from are not kept alive.  The
+    // steps that the closure takes are charged to the run that made it.
+    static Frame capture(Env env, int[] where) {
+        Fuel fuel = fuel(env);
+        if (where.length == 0 && fuel == null) {
+            return EMPTY;
+        }
+        Frame f = new Frame(where.length / 2, null);
+        f.fuel = fuel;
+        for (int i = 0; i < f.cells.length; i++) {
+            f.cells[i] = cell(env, where[2 * i], where[2 * i + 1]);
+        }
+        return f;
+    }
+
+    private static final Frame EMPTY = new Frame(0, null);
+
+    // Bind var to val: in a resolved frame the new cell goes into its slot,
+    // otherwise it is pushed onto the front of the environment.
+    static Env declare(Env env, int slot, String var, Value val) {
+        if (slot < 0) {
+            return new ValEnv(var, val, env);
+        }
+        ((Frame) env).cells[slot] = new ValEnv(var, val, null);
+        return env;
+    }
+
+    Frame parent() {
+        return up;
+    }
+
+    Env get(int slot) {
+        return cells[slot];
+    }
+
+    void set(int slot, Env cell) {
+        cells[slot] = cell;
+    }
+
+    Value getValue() {
+        throw new InterpreterException("ABORT: Frame used as a variable");
+    }
+
+    void setValue(Value val) {
+        getValue();
+    }
+}
+
+// Returned by exec() for a procedure call in tail position: the loop in
+// the caller's Proc.enter runs the callee once the caller's body has
+// finished, so tail-recursive procedures run in constant Java stack space.
+// Compiled code and the generated JVM classes return them as well (see
+// TailCode), and code holds the callee's body in the same engine.
+class TailCall extends Env {
+    TailCode code;
+    Frame frame;
+
+    TailCall(TailCode code, Frame frame) {
+        super(null, null);
+        this.code = code;
+        this.frame = frame;
+    }
+
+    Value getValue() {
+        throw new InterpreterException("ABORT: Tail call used as a variable");
+    }
+
+    void setValue(Value val) {
+        getValue();
+    }
+}
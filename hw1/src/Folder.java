@@ -0,0 +1,71 @@
+// One pass of constant folding and partial evaluation over a program (see
+// Program.optimize and the fold methods in Src.java).  Each node's fold
+// method returns a simplified copy of the node: arithmetic and comparisons
+// on literals become literals, If and While on a literal test lose their
+// dead code, and a literal Lambda applied to a literal is replaced by its
+// body, with the argument's value known while the body is folded.
+//
+// Children are folded with fold(), which counts the nodes it visits, so
+// that the size of the tree before and after a pass can be compared.
+class Folder {
+    // Variables whose value is known, innermost first.  A null val hides
+    // an outer binding of the same name.
+    private static class Known {
+        String var;
+        Expr val;
+        Known next;
+
+        Known(String var, Expr val, Known next) {
+            this.var = var;
+            this.val = val;
+            this.next = next;
+        }
+    }
+
+    private Known known = null;
+    private int visits = 0;
+
+    Expr fold(Expr e) {
+        visits++;
+        return e.fold(this);
+    }
+
+    Stmt fold(Stmt s) {
+        visits++;
+        return s.fold(this);
+    }
+
+    // Fold e knowing that var has the value val (or, if val is null, that
+    // var is bound to something unknown):
+    Expr fold(Expr e, String var, Expr val) {
+        Known saved = known;
+        known = new Known(var, val, known);
+        try {
+            return fold(e);
+        } finally {
+            known = saved;
+        }
+    }
+
+    Expr lookup(String var) {
+        for (Known k = known; k != null; k = k.next) {
+            if (k.var.equals(var)) {
+                return k.val;
+            }
+        }
+        return null;
+    }
+
+    // For a node that is folded without going through fold():
+    void visit() {
+        visits++;
+    }
+
+    int visits() {
+        return visits;
+    }
+
+    static boolean isConstant(Expr e) {
+        return e instanceof Int || e instanceof Bool;
+    }
+}
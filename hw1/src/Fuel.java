@@ -0,0 +1,79 @@
+// A budget of steps for one run of a metered program (see Program.meter).
+// A step is one iteration of a loop, one procedure call, or one
+// application of a function: a program can only keep running by taking
+// steps, so counting them bounds how long it runs, without a count on
+// every statement.
+//
+// A run finds its Fuel once, when it starts inside Fuel.run(), and keeps
+// it in its frames (see Frame.fuel); loops fetch it from there once before
+// they start.  A step only counts down a plain field of the Fuel.  Only
+// when a slice of steps has been used does the Fuel do anything more: it
+// stops the run with an InterpreterException if the whole budget is gone,
+// and otherwise calls its onSlice hook.  The hook may block until the
+// program's next turn (see Batch.run); when it returns, the run goes on
+// from the step where it stopped.
+class Fuel {
+    private static final ThreadLocal<Fuel> CURRENT = new ThreadLocal<Fuel>();
+
+    private final long limit;
+    private final int slice;
+    private final Runnable onSlice;     // may be null
+    private long used = 0;              // steps in the slices before this one
+    private int granted, left;          // the size of this slice, and what is left of it
+
+    Fuel(long limit, int slice, Runnable onSlice) {
+        this.limit = limit;
+        this.slice = slice;
+        this.onSlice = onSlice;
+        this.granted = this.left = (int) Math.min(slice, limit);
+    }
+
+    // Run code with this as the current thread's Fuel:
+    void run(Runnable code) {
+        Fuel saved = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            code.run();
+        } finally {
+            CURRENT.set(saved);
+        }
+    }
+
+    // The Fuel that the current thread runs with, or null; a metered run
+    // calls this once, for its first frame:
+    static Fuel current() {
+        return CURRENT.get();
+    }
+
+    // Called by metered code for every step:
+    void step() {
+        if (--left < 0) {
+            refill();
+        }
+    }
+
+    // A step taken in env.  Code run without a Fuel is not counted.
+    static void step(Env env) {
+        Fuel f = Frame.fuel(env);
+        if (f != null) {
+            f.step();
+        }
+    }
+
+    private void refill() {
+        used += granted;
+        if (used >= limit) {
+            granted = left = 0;
+            throw new InterpreterException("ABORT: Step limit of " + limit + " exceeded");
+        }
+        if (onSlice != null) {
+            onSlice.run();
+        }
+        granted = (int) Math.min(slice, limit - used);
+        left = granted - 1;             // this step is the first of the slice
+    }
+
+    long used() {
+        return used + granted - left;
+    }
+}
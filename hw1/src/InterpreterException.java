@@ -0,0 +1,14 @@
+// A run-time error in an interpreted program: a value of the wrong type, a
+// variable that is not defined, a call that cannot be made.  The message
+// starts with "ABORT:".  Program prints it to the program's output and then
+// passes the exception on to the caller, so a bad program ends its own run
+// rather than the whole JVM (see Batch.java).  These are thrown for what
+// the program did, not where the interpreter was, so no stack trace is
+// recorded.
+class InterpreterException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    InterpreterException(String msg) {
+        super(msg, null, false, false);
+    }
+}
@@ -0,0 +1,769 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Translates a program's Bytecode (see Bytecode.java) into real JVM
+// classes, so that HotSpot can compile the user's program directly.  The
+// top-level statements become the exec() method of a StmtCode, and the
+// body of each procedure or lambda becomes a small class of its own.  A
+// lambda's implements ValueCode and is used as the body of an FValue.  A
+// procedure's implements TailCode: a call in tail position returns a
+// TailCall instead of making it, and call() below runs the tail calls in a
+// loop, so that tail recursion needs no Java stack.  While and If turn
+// into ordinary JVM branches, and ints stay unboxed on the JVM operand
+// stack.
+//
+// The classes are written by hand (see ClassFile below) and loaded as
+// hidden classes in this package, so that they can use the interpreter's
+// package-private classes.  They are version 49 class files, which do not
+// need a StackMapTable.  A program that does not fit a class file, with
+// a method that is too big for example, runs on the tree-walking engine
+// instead (see Program.runJvm); any other failure is a bug, and is not
+// hidden that way.
+class JVMCompiler {
+    private Bytecode prog;
+    private int[] code;
+    private Object[] k;                     // prog.consts plus lambda code and captures
+    private ArrayList<Object> extra = new ArrayList<Object>();
+    private HashMap<Bytecode.Function, Integer> lambdas = new HashMap<Bytecode.Function, Integer>();
+    private HashMap<Bytecode.Function, Integer> procs = new HashMap<Bytecode.Function, Integer>();
+    private ArrayList<Class<?>> classes = new ArrayList<Class<?>>();
+    private ArrayList<MethodHandles.Lookup> lookups = new ArrayList<MethodHandles.Lookup>();
+
+    private static final String SELF = "JVMCode";
+
+    JVMCompiler(Bytecode prog) {
+        this.prog = prog;
+        this.code = prog.code;
+    }
+
+    // Translate prog, or throw ClassFile.TooLarge if it does not fit the
+    // limits of a class file.  Anything else that goes wrong is a bug in
+    // the translation, and is passed on.
+    static StmtCode compile(Bytecode prog) {
+        try {
+            return new JVMCompiler(prog).compile();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // From the method handles that make and set up the classes:
+            throw new RuntimeException(e);
+        }
+    }
+
+    private StmtCode compile() throws Throwable {
+        // Each procedure gets its place in K first, so that calls to it
+        // can be translated before its class is made:
+        for (int pc = 0; pc < code.length; pc += Bytecode.length(code[pc])) {
+            if (code[pc] == Bytecode.CALL || code[pc] == Bytecode.TAILCALL) {
+                Bytecode.Function f = (Bytecode.Function) prog.consts[code[pc + 1]];
+                if (!procs.containsKey(f)) {
+                    extra.add(null);
+                    procs.put(f, prog.consts.length + extra.size() - 1);
+                }
+            }
+        }
+        ClassFile main = new ClassFile(SELF, "StmtCode");
+        method(main, 0, "exec", "(LEnv;)V");
+        StmtCode result = (StmtCode) define(main);
+        for (Bytecode.Function f : procs.keySet()) {
+            ClassFile cf = new ClassFile(SELF, "TailCode");
+            method(cf, f.entry, "exec", "(LEnv;)LEnv;");
+            extra.set(procs.get(f) - prog.consts.length, define(cf));
+        }
+
+        k = new Object[prog.consts.length + extra.size()];
+        System.arraycopy(prog.consts, 0, k, 0, prog.consts.length);
+        for (int i = 0; i < extra.size(); i++) {
+            k[prog.consts.length + i] = extra.get(i);
+        }
+        for (int i = 0; i < classes.size(); i++) {
+            lookups.get(i).findStaticSetter(classes.get(i), "K", Object[].class).invoke(k);
+        }
+        return result;
+    }
+
+    // Index in K of the ValueCode for a lambda body, compiling it if needed.
+    // Lambda bodies are compiled innermost first, as they are reached:
+    private int lambda(Bytecode.Function f) throws Throwable {
+        Integer i = lambdas.get(f);
+        if (i == null) {
+            ClassFile cf = new ClassFile(SELF, "ValueCode");
+            method(cf, f.entry, "eval", "(LEnv;)LValue;");
+            extra.add(define(cf));
+            i = prog.consts.length + extra.size() - 1;
+            lambdas.put(f, i);
+        }
+        return i;
+    }
+
+    private Object define(ClassFile cf) throws Throwable {
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(cf.toBytes(), true);
+        Class<?> c = lookup.lookupClass();
+        classes.add(c);
+        lookups.add(lookup);
+        return lookup.findConstructor(c, MethodType.methodType(void.class)).invoke();
+    }
+
+    // Change in VM stack depth when op falls through to the next
+    // instruction (CASE and FORNEXT pop one less when they jump):
+    private int effect(int pc) {
+        switch (code[pc]) {
+        case Bytecode.ICONST: case Bytecode.VCONST: case Bytecode.LOAD: case Bytecode.LOADINT:
+        case Bytecode.LOADREF: case Bytecode.NIL: case Bytecode.LAMBDA: case Bytecode.CASE:
+        case Bytecode.FORNEXT: case Bytecode.THUNK:
+            return 1;
+        case Bytecode.STORE: case Bytecode.DECL: case Bytecode.IADD: case Bytecode.ISUB:
+        case Bytecode.IMUL: case Bytecode.ILT: case Bytecode.IEQ: case Bytecode.JUMPF:
+        case Bytecode.PRINT: case Bytecode.CONS: case Bytecode.APPLY:
+            return -1;
+        case Bytecode.CALL: case Bytecode.TAILCALL:
+            return -((Bytecode.Function) prog.consts[code[pc + 1]]).arity;
+        default:
+            return 0;
+        }
+    }
+
+    private boolean ends(int op) {
+        return op == Bytecode.HALT || op == Bytecode.RETURN || op == Bytecode.ABORT
+            || op == Bytecode.JUMP || op == Bytecode.TAILCALL;
+    }
+
+    private boolean branches(int op) {
+        return op == Bytecode.JUMP || op == Bytecode.JUMPF || op == Bytecode.CASE
+            || op == Bytecode.FORNEXT;
+    }
+
+    // Translate the function that starts at entry into a method of cf.
+    // The environment lives in the first argument's local, and two more
+    // locals serve as temporaries.
+    private void method(ClassFile cf, int entry, String name, String desc) throws Throwable {
+        // Find the instructions that belong to this function, and the
+        // stack depth at each of them:
+        int[] depth = new int[code.length];
+        java.util.Arrays.fill(depth, -1);
+        boolean[] target = new boolean[code.length];
+        ArrayList<Integer> work = new ArrayList<Integer>();
+        depth[entry] = 0;
+        work.add(entry);
+        int maxDepth = 0;
+        while (!work.isEmpty()) {
+            int pc = work.remove(work.size() - 1);
+            int op = code[pc];
+            int d = depth[pc] + effect(pc);
+            maxDepth = Math.max(maxDepth, d);
+            if (!ends(op)) {
+                flow(depth, work, pc + Bytecode.length(op), d);
+            }
+            if (branches(op)) {
+                target[code[pc + 1]] = true;
+                flow(depth, work, code[pc + 1], op == Bytecode.JUMP || op == Bytecode.JUMPF ? d : depth[pc] - 1);
+            }
+        }
+
+        int env = 1, tmp = 2, tmp2 = 3;
+        ClassFile.Code c = cf.method(name, desc, maxDepth + 8, 4);
+        int[] where = new int[code.length];
+        ArrayList<Integer> fixFrom = new ArrayList<Integer>();
+        ArrayList<Integer> fixAt = new ArrayList<Integer>();
+        ArrayList<Integer> fixTo = new ArrayList<Integer>();
+
+        for (int pc = 0; pc < code.length; pc += Bytecode.length(code[pc])) {
+            if (depth[pc] < 0) {
+                continue;
+            }
+            where[pc] = c.pc();
+            int op = code[pc];
+            int arg = pc + 1 < code.length ? code[pc + 1] : 0;
+            switch (op) {
+            case Bytecode.HALT:
+                c.op(ClassFile.RETURN);
+                break;
+            case Bytecode.ICONST:
+                c.iconst(arg);
+                break;
+            case Bytecode.VCONST:
+                konst(c, arg, "Value");
+                break;
+            case Bytecode.LOAD:
+            case Bytecode.LOADINT:
+            case Bytecode.LOADREF:
+                c.aload(env);
+                c.iconst(arg);
+                c.iconst(code[pc + 2]);
+                c.invoke(ClassFile.INVOKESTATIC, "Frame", "cell", "(LEnv;II)LEnv;");
+                if (op != Bytecode.LOADREF) {
+                    c.invoke(ClassFile.INVOKEVIRTUAL, "Env", "getValue", "()LValue;");
+                }
+                if (op == Bytecode.LOADINT) {
+                    c.invoke(ClassFile.INVOKEVIRTUAL, "Value", "asInt", "()I");
+                }
+                break;
+            case Bytecode.STORE:
+                c.astore(tmp);
+                c.aload(env);
+                c.iconst(arg);
+                c.iconst(code[pc + 2]);
+                c.invoke(ClassFile.INVOKESTATIC, "Frame", "cell", "(LEnv;II)LEnv;");
+                c.aload(tmp);
+                c.invoke(ClassFile.INVOKEVIRTUAL, "Env", "setValue", "(LValue;)V");
+                break;
+            case Bytecode.DECL:
+                c.astore(tmp);
+                c.aload(env);
+                c.type(ClassFile.CHECKCAST, "Frame");
+                c.iconst(arg);
+                c.type(ClassFile.NEW, "ValEnv");
+                c.op(ClassFile.DUP);
+                c.ldc((String) prog.consts[code[pc + 2]]);
+                c.aload(tmp);
+                c.op(ClassFile.ACONST_NULL);
+                c.invoke(ClassFile.INVOKESPECIAL, "ValEnv", "<init>", "(Ljava/lang/String;LValue;LEnv;)V");
+                c.invoke(ClassFile.INVOKEVIRTUAL, "Frame", "set", "(ILEnv;)V");
+                break;
+            case Bytecode.BOXINT:
+                c.invoke(ClassFile.INVOKESTATIC, "Values", "integer", "(I)LIValue;");
+                break;
+            case Bytecode.BOXBOOL:
+                c.invoke(ClassFile.INVOKESTATIC, "Values", "bool", "(Z)LBValue;");
+                break;
+            case Bytecode.UNBOXINT:
+                c.invoke(ClassFile.INVOKEVIRTUAL, "Value", "asInt", "()I");
+                break;
+            case Bytecode.UNBOXBOOL:
+                c.invoke(ClassFile.INVOKEVIRTUAL, "Value", "asBool", "()Z");
+                break;
+            case Bytecode.IADD:
+                c.op(ClassFile.IADD);
+                break;
+            case Bytecode.ISUB:
+                c.op(ClassFile.ISUB);
+                break;
+            case Bytecode.IMUL:
+                c.op(ClassFile.IMUL);
+                break;
+            case Bytecode.ILT:
+            case Bytecode.IEQ: {
+                int inverse = op == Bytecode.ILT ? ClassFile.IF_ICMPGE : ClassFile.IF_ICMPNE;
+                int next = pc + 1;
+                if (code[next] == Bytecode.JUMPF && !target[next]) {
+                    // Compare and branch in one instruction:
+                    fixFrom.add(c.pc());
+                    c.op(inverse);
+                    fixAt.add(c.pc());
+                    c.u2(0);
+                    fixTo.add(code[next + 1]);
+                    where[next] = where[pc];
+                    pc = next;          // skip the JUMPF
+                } else {
+                    c.op(inverse);
+                    c.u2(7);
+                    c.op(ClassFile.ICONST_1);
+                    c.op(ClassFile.GOTO);
+                    c.u2(4);
+                    c.op(ClassFile.ICONST_0);
+                }
+                break;
+            }
+            case Bytecode.JUMP:
+            case Bytecode.JUMPF:
+                fixFrom.add(c.pc());
+                c.op(op == Bytecode.JUMP ? ClassFile.GOTO : ClassFile.IFEQ);
+                fixAt.add(c.pc());
+                c.u2(0);
+                fixTo.add(arg);
+                break;
+            case Bytecode.PRINT:
+                c.invoke(ClassFile.INVOKESTATIC, "JVMCompiler", "print", "(LValue;)V");
+                break;
+            case Bytecode.NIL:
+                c.invoke(ClassFile.INVOKESTATIC, "Values", "nil", "()LEmptyList;");
+                break;
+            case Bytecode.CONS:
+                c.invoke(ClassFile.INVOKESTATIC, "JVMCompiler", "cons", "(LValue;LValue;)LValue;");
+                break;
+            case Bytecode.HEAD:
+                c.invoke(ClassFile.INVOKESTATIC, "JVMCompiler", "head", "(LValue;)LValue;");
+                break;
+            case Bytecode.TAIL:
+                c.invoke(ClassFile.INVOKESTATIC, "JVMCompiler", "tail", "(LValue;)LValue;");
+                break;
+            case Bytecode.NONEMPTY:
+                c.invoke(ClassFile.INVOKESTATIC, "JVMCompiler", "nonEmpty", "(LValue;)Z");
+                break;
+            case Bytecode.CHECKLIST:
+                c.op(ClassFile.DUP);
+                c.invoke(ClassFile.INVOKESTATIC, "JVMCompiler", "nonEmpty", "(LValue;)Z");
+                c.op(ClassFile.POP);
+                break;
+            case Bytecode.CASE:
+            case Bytecode.FORNEXT: {
+                // if the list is empty, pop it and jump; otherwise replace it
+                // with its head and tail (CASE) or tail and head (FORNEXT)
+                c.op(ClassFile.DUP);
+                c.invoke(ClassFile.INVOKESTATIC, "JVMCompiler", "nonEmpty", "(LValue;)Z");
+                c.op(ClassFile.IFNE);
+                c.u2(7);
+                c.op(ClassFile.POP);
+                fixFrom.add(c.pc());
+                c.op(ClassFile.GOTO);
+                fixAt.add(c.pc());
+                c.u2(0);
+                fixTo.add(arg);
+                c.op(ClassFile.DUP);
+                String first = op == Bytecode.CASE ? "head" : "tail";
+                String second = op == Bytecode.CASE ? "tail" : "head";
+                c.invoke(ClassFile.INVOKESTATIC, "JVMCompiler", first, "(LValue;)LValue;");
+                c.op(ClassFile.SWAP);
+                c.invoke(ClassFile.INVOKESTATIC, "JVMCompiler", second, "(LValue;)LValue;");
+                break;
+            }
+            case Bytecode.ENTER:
+                c.type(ClassFile.NEW, "Frame");
+                c.op(ClassFile.DUP);
+                c.iconst(arg);
+                c.aload(env);
+                c.invoke(ClassFile.INVOKESPECIAL, "Frame", "<init>", "(ILEnv;)V");
+                c.astore(env);
+                break;
+            case Bytecode.LEAVE:
+                c.aload(env);
+                c.type(ClassFile.CHECKCAST, "Frame");
+                c.invoke(ClassFile.INVOKEVIRTUAL, "Frame", "parent", "()LFrame;");
+                c.astore(env);
+                break;
+            case Bytecode.CELL:
+            case Bytecode.TOCELL:
+            case Bytecode.REFCELL: {
+                String cls = op == Bytecode.REFCELL ? "RefEnv" : "ValEnv";
+                c.type(ClassFile.NEW, cls);
+                c.op(ClassFile.DUP_X1);
+                c.op(ClassFile.SWAP);
+                c.ldc(op == Bytecode.TOCELL ? "" : (String) prog.consts[arg]);
+                c.op(ClassFile.SWAP);
+                c.op(ClassFile.ACONST_NULL);
+                c.invoke(ClassFile.INVOKESPECIAL, cls, "<init>",
+                         op == Bytecode.REFCELL ? "(Ljava/lang/String;LEnv;LEnv;)V"
+                                                : "(Ljava/lang/String;LValue;LEnv;)V");
+                break;
+            }
+            case Bytecode.CALL:
+            case Bytecode.TAILCALL: {
+                Bytecode.Function f = (Bytecode.Function) prog.consts[arg];
+                c.type(ClassFile.NEW, "Frame");
+                c.op(ClassFile.DUP);
+                c.iconst(f.frameSize);
+                c.op(ClassFile.ACONST_NULL);
+                c.invoke(ClassFile.INVOKESPECIAL, "Frame", "<init>", "(ILEnv;)V");
+                c.astore(tmp2);
+                for (int i = f.arity - 1; i >= 0; i--) {
+                    c.astore(tmp);
+                    c.aload(tmp2);
+                    c.iconst(i);
+                    c.aload(tmp);
+                    c.invoke(ClassFile.INVOKEVIRTUAL, "Frame", "set", "(ILEnv;)V");
+                }
+                if (op == Bytecode.TAILCALL) {
+                    // return new TailCall(callee, frame):
+                    c.type(ClassFile.NEW, "TailCall");
+                    c.op(ClassFile.DUP);
+                    konst(c, procs.get(f), "TailCode");
+                    c.aload(tmp2);
+                    c.invoke(ClassFile.INVOKESPECIAL, "TailCall", "<init>", "(LTailCode;LFrame;)V");
+                    c.op(ClassFile.ARETURN);
+                } else {
+                    konst(c, procs.get(f), "TailCode");
+                    c.aload(tmp2);
+                    c.invoke(ClassFile.INVOKESTATIC, "JVMCompiler", "call", "(LTailCode;LEnv;)V");
+                }
+                break;
+            }
+            case Bytecode.LAMBDA: {
+                Bytecode.Function f = (Bytecode.Function) prog.consts[arg];
+                int index = lambda(f);
+                c.type(ClassFile.NEW, "FValue");
+                c.op(ClassFile.DUP);
+                c.aload(env);
+                extra.add(f.captures);
+                konst(c, prog.consts.length + extra.size() - 1, "[I");
+                c.invoke(ClassFile.INVOKESTATIC, "Frame", "capture", "(LEnv;[I)LFrame;");
+                c.ldc(f.name);
+                konst(c, index, "ValueCode");
+                c.iconst(f.frameSize);
+                c.invoke(ClassFile.INVOKESPECIAL, "FValue", "<init>", "(LEnv;Ljava/lang/String;LValueCode;I)V");
+                break;
+            }
+            case Bytecode.THUNK: {
+                // The actual becomes a ValueCode class, as a lambda body does:
+                Bytecode.Function f = (Bytecode.Function) prog.consts[arg];
+                int index = lambda(f);
+                c.type(ClassFile.NEW, "ThunkEnv");
+                c.op(ClassFile.DUP);
+                c.ldc(f.name);
+                konst(c, index, "ValueCode");
+                c.aload(env);
+                c.op(ClassFile.ACONST_NULL);
+                c.invoke(ClassFile.INVOKESPECIAL, "ThunkEnv", "<init>", "(Ljava/lang/String;LValueCode;LEnv;LEnv;)V");
+                break;
+            }
+            case Bytecode.APPLY:
+                c.invoke(ClassFile.INVOKEVIRTUAL, "Value", "enter", "(LValue;)LValue;");
+                break;
+            case Bytecode.RETURN:
+                if (desc.endsWith("V")) {
+                    c.op(ClassFile.RETURN);
+                } else {
+                    if (desc.endsWith("LEnv;")) {
+                        c.op(ClassFile.ACONST_NULL);    // a procedure, with no tail call
+                    }
+                    c.op(ClassFile.ARETURN);
+                }
+                break;
+            case Bytecode.ABORT:
+                c.ldc((String) prog.consts[arg]);
+                c.invoke(ClassFile.INVOKESTATIC, "JVMCompiler", "abort", "(Ljava/lang/String;)V");
+                if (desc.endsWith("V")) {
+                    c.op(ClassFile.RETURN);
+                } else {
+                    c.op(ClassFile.ACONST_NULL);
+                    c.op(ClassFile.ARETURN);
+                }
+                break;
+            default:
+                throw new RuntimeException("ABORT: bad opcode " + op + " at " + pc);
+            }
+        }
+        for (int i = 0; i < fixAt.size(); i++) {
+            c.patch(fixAt.get(i), where[fixTo.get(i)] - fixFrom.get(i));
+        }
+    }
+
+    private static void flow(int[] depth, ArrayList<Integer> work, int pc, int d) {
+        if (depth[pc] < 0) {
+            depth[pc] = d;
+            work.add(pc);
+        }
+    }
+
+    // Push K[index], cast to the given class:
+    private void konst(ClassFile.Code c, int index, String cls) {
+        c.field(ClassFile.GETSTATIC, c.owner(), "K", "[Ljava/lang/Object;");
+        c.iconst(index);
+        c.op(ClassFile.AALOAD);
+        c.type(ClassFile.CHECKCAST, cls);
+    }
+
+    // Run-time support for the generated code.  These report errors in the
+    // same way as the other engines.
+
+    static void print(Value val) {
+        Output.current().println("Output: " + val.show());
+    }
+
+    static void abort(String msg) {
+        throw new InterpreterException(msg);
+    }
+
+    // A procedure call; the tail calls that the callee returns are made
+    // here, one after another, as in Proc.enter:
+    static void call(TailCode code, Env frame) {
+        Env next = code.exec(frame);
+        while (next instanceof TailCall) {
+            TailCall call = (TailCall) next;
+            next = call.code.exec(call.frame);
+        }
+    }
+
+    static boolean nonEmpty(Value val) {
+        if (!(val instanceof LValue)) {
+            throw new InterpreterException("ABORT: list value expected");
+        }
+        return val instanceof NonEmptyList;
+    }
+
+    static Value cons(Value tail, Value head) {
+        return Values.cons(head, (LValue) tail);
+    }
+
+    static Value head(Value val) {
+        if (!nonEmpty(val)) {
+            throw new InterpreterException("ABORT: nonempty list value expected");
+        }
+        return ((NonEmptyList) val).getHead();
+    }
+
+    static Value tail(Value val) {
+        if (!nonEmpty(val)) {
+            throw new InterpreterException("ABORT: nonempty list value expected");
+        }
+        return ((NonEmptyList) val).getTail();
+    }
+}
+
+// Just enough of the class file format to write the classes that the
+// JVMCompiler generates: a constant pool, a static Object[] K field, a
+// public no-argument constructor, and methods with a Code attribute.
+class ClassFile {
+    static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, ICONST_1 = 0x04, BIPUSH = 0x10, SIPUSH = 0x11,
+        LDC_W = 0x13, ALOAD = 0x19, AALOAD = 0x32, ASTORE = 0x3a, POP = 0x57, DUP = 0x59,
+        DUP_X1 = 0x5a, SWAP = 0x5f, IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IFEQ = 0x99,
+        IFNE = 0x9a, IF_ICMPNE = 0xa0, IF_ICMPGE = 0xa2, GOTO = 0xa7, ARETURN = 0xb0,
+        RETURN = 0xb1, GETSTATIC = 0xb2, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7,
+        INVOKESTATIC = 0xb8, NEW = 0xbb, CHECKCAST = 0xc0;
+
+    // A program that does not fit the limits of the class file format:
+    static class TooLarge extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooLarge(String what) {
+            super(what);
+        }
+    }
+
+    private String name;
+    private Bytes pool = new Bytes();
+    private int poolCount = 1;
+    private HashMap<String, Integer> entries = new HashMap<String, Integer>();
+    private ArrayList<Code> methods = new ArrayList<Code>();
+    private int self, parent, iface;
+
+    ClassFile(String name, String iface) {
+        this.name = name;
+        this.self = classRef(name);
+        this.parent = classRef("java/lang/Object");
+        this.iface = classRef(iface);
+        Code init = method("<init>", "()V", 1, 1);
+        init.aload(0);
+        init.invoke(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        init.op(RETURN);
+    }
+
+    String name() {
+        return name;
+    }
+
+    // A public instance method:
+    Code method(String name, String desc, int maxStack, int maxLocals) {
+        Code c = new Code(utf8(name), utf8(desc), 0x0001, maxStack, maxLocals);
+        methods.add(c);
+        return c;
+    }
+
+    byte[] toBytes() {
+        Bytes out = new Bytes();
+        out.u4(0xCAFEBABE);
+        out.u2(0);
+        out.u2(49);
+        int fieldName = utf8("K"), fieldType = utf8("[Ljava/lang/Object;"), codeAttr = utf8("Code");
+        if (poolCount > 65535) {
+            throw new TooLarge("too many constants");
+        }
+        out.u2(poolCount);
+        out.add(pool);
+        out.u2(0x0031);         // public final super
+        out.u2(self);
+        out.u2(parent);
+        out.u2(1);
+        out.u2(iface);
+        out.u2(1);              // public static Object[] K
+        out.u2(0x0009);
+        out.u2(fieldName);
+        out.u2(fieldType);
+        out.u2(0);
+        out.u2(methods.size());
+        for (Code m : methods) {
+            if (m.body.size() > 65535) {
+                throw new TooLarge("method too large");
+            }
+            out.u2(m.access);
+            out.u2(m.nameIndex);
+            out.u2(m.descIndex);
+            out.u2(1);
+            out.u2(codeAttr);
+            out.u4(12 + m.body.size());
+            out.u2(m.maxStack);
+            out.u2(m.maxLocals);
+            out.u4(m.body.size());
+            out.add(m.body);
+            out.u2(0);          // no exception table
+            out.u2(0);          // no attributes
+        }
+        out.u2(0);
+        return out.toArray();
+    }
+
+    private int entry(String key, int tag, int a, int b, String text) {
+        Integer i = entries.get(key);
+        if (i == null) {
+            pool.u1(tag);
+            if (text != null) {
+                byte[] utf = text.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                pool.u2(utf.length);
+                pool.add(utf, utf.length);
+            } else if (tag == 3) {
+                pool.u4(a);
+            } else {
+                pool.u2(a);
+                if (b >= 0) {
+                    pool.u2(b);
+                }
+            }
+            i = poolCount++;
+            entries.put(key, i);
+        }
+        return i;
+    }
+
+    int utf8(String s) {
+        return entry("U" + s, 1, 0, -1, s);
+    }
+
+    int classRef(String cls) {
+        return entry("C" + cls, 7, utf8(cls), -1, null);
+    }
+
+    int string(String s) {
+        return entry("S" + s, 8, utf8(s), -1, null);
+    }
+
+    int integer(int n) {
+        return entry("I" + n, 3, n, -1, null);
+    }
+
+    int member(int tag, String owner, String name, String desc) {
+        int nt = entry("N" + name + ":" + desc, 12, utf8(name), utf8(desc), null);
+        return entry(tag + owner + "." + name + ":" + desc, tag, classRef(owner), nt, null);
+    }
+
+    class Code {
+        private int nameIndex, descIndex, access, maxStack, maxLocals;
+        private Bytes body = new Bytes();
+
+        Code(int nameIndex, int descIndex, int access, int maxStack, int maxLocals) {
+            this.nameIndex = nameIndex;
+            this.descIndex = descIndex;
+            this.access = access;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        String owner() {
+            return name;
+        }
+
+        int pc() {
+            return body.size();
+        }
+
+        void op(int op) {
+            body.u1(op);
+        }
+
+        void u2(int n) {
+            body.u2(n);
+        }
+
+        void patch(int at, int offset) {
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new TooLarge("branch too far");
+            }
+            body.patch2(at, offset);
+        }
+
+        void aload(int local) {
+            body.u1(ALOAD);
+            body.u1(local);
+        }
+
+        void astore(int local) {
+            body.u1(ASTORE);
+            body.u1(local);
+        }
+
+        void iconst(int n) {
+            if (n >= -1 && n <= 5) {
+                body.u1(ICONST_0 + n);
+            } else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+                body.u1(BIPUSH);
+                body.u1(n);
+            } else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+                body.u1(SIPUSH);
+                body.u2(n);
+            } else {
+                body.u1(LDC_W);
+                body.u2(integer(n));
+            }
+        }
+
+        void ldc(String s) {
+            body.u1(LDC_W);
+            body.u2(string(s));
+        }
+
+        void type(int op, String cls) {
+            body.u1(op);
+            body.u2(classRef(cls));
+        }
+
+        void field(int op, String owner, String name, String desc) {
+            body.u1(op);
+            body.u2(member(9, owner, name, desc));
+        }
+
+        void invoke(int op, String owner, String name, String desc) {
+            body.u1(op);
+            body.u2(member(10, owner, name, desc));
+        }
+    }
+
+    // A growable byte array, written big-endian:
+    static class Bytes {
+        private byte[] buf = new byte[256];
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        void u1(int b) {
+            if (size == buf.length) {
+                byte[] bigger = new byte[2 * size];
+                System.arraycopy(buf, 0, bigger, 0, size);
+                buf = bigger;
+            }
+            buf[size++] = (byte) b;
+        }
+
+        void u2(int n) {
+            u1(n >> 8);
+            u1(n);
+        }
+
+        void u4(int n) {
+            u2(n >> 16);
+            u2(n);
+        }
+
+        void patch2(int at, int n) {
+            buf[at] = (byte) (n >> 8);
+            buf[at + 1] = (byte) n;
+        }
+
+        void add(byte[] bytes, int len) {
+            for (int i = 0; i < len; i++) {
+                u1(bytes[i]);
+            }
+        }
+
+        void add(Bytes other) {
+            add(other.buf, other.size);
+        }
+
+        byte[] toArray() {
+            byte[] result = new byte[size];
+            System.arraycopy(buf, 0, result, 0, size);
+            return result;
+        }
+    }
+}
@@ -30,7 +30,25 @@ class Main {
 //        progRock.print();
 
         System.out.println("Running in an empty environment:");
-        prog.run();
+        if (args.length > 0 && args[0].equals("-compiled")) {
+            prog.runCompiled();
+        } else if (args.length > 0 && args[0].equals("-bytecode")) {
+            prog.runBytecode();
+        } else if (args.length > 0 && args[0].equals("-jvm")) {
+            prog.runJvm();
+        } else if (args.length > 0 && args[0].equals("-generic")) {
+            prog.generic();
+            prog.run();
+        } else if (args.length > 0 && args[0].equals("-tier")) {
+            prog.tier(2, (node, from, to, why) -> System.out.println("  " + node + ": " + from + " -> " + to));
+            prog.run();
+        } else if (args.length > 0 && args[0].equals("-profile")) {
+            Profiler profiler = new Profiler();
+            profiler.reportAtExit(20);
+            prog.profile(profiler).run();
+        } else {
+            prog.run();
+        }
 //        progRock.run();
 
         System.out.println("Done!");
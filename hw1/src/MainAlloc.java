@@ -0,0 +1,67 @@
+import java.lang.management.ManagementFactory;
+
+// Measures how much the interpreter allocates per loop iteration.  The
+// same arithmetic is evaluated through the boxing eval() entry point and
+// through evalInt()/evalBool(), and then a complete counting loop is run.
+//
+//    $ java MainAlloc [iterations]
+class MainAlloc {
+    private static com.sun.management.ThreadMXBean threads
+        = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static long allocated() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static void report(String what, long bytes, int n) {
+        System.out.println(what + ": " + bytes + " bytes, "
+                           + (bytes / (double) n) + " bytes/iteration");
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        // ((3 * 4) + 5) < (100 - 1)
+        Expr test = new LT(new Plus(new Mult(new Int(3), new Int(4)), new Int(5)),
+                           new Minus(new Int(100), new Int(1)));
+
+        // Run both versions once first so that class loading and the
+        // interpreter's own warm up are not counted:
+        test.eval(null).asBool();
+        test.evalBool(null);
+
+        int count = 0;
+        long start = allocated();
+        for (int i = 0; i < n; i++) {
+            if (test.eval(null).asBool()) {
+                count++;
+            }
+        }
+        report("boxed eval()      ", allocated() - start, n);
+
+        start = allocated();
+        for (int i = 0; i < n; i++) {
+            if (test.evalBool(null)) {
+                count++;
+            }
+        }
+        report("unboxed evalBool()", allocated() - start, n);
+
+        // var i = 0; var t = 0; while (i < n) { t = t + (i * 2); i = i + 1; }
+        Stmt s = new Seq(new VarDecl("i", new Int(0)),
+                 new Seq(new VarDecl("t", new Int(0)),
+                 new Seq(new While(new LT(new Var("i"), new Int(n)),
+                           new Seq(new Assign("t", new Plus(new Var("t"),
+                                                            new Mult(new Var("i"),
+                                                                     new Int(2)))),
+                                   new Assign("i", new Plus(new Var("i"), new Int(1))))),
+                         new Print(new Var("t")))));
+        Program prog = new Program(s);
+        prog.resolve();
+
+        start = allocated();
+        prog.run();
+        report("counting loop     ", allocated() - start, n);
+        System.out.println("(" + count + " tests passed)");
+    }
+}
@@ -0,0 +1,136 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs a batch of example programs, some of which fail, in this one JVM
+// (see Batch.java): first one of each, with their output, and then many
+// copies, timed against running the same copies one after another.
+// Then one Program is run many times in the same batch, to show that
+// each run gets its own output.  Last, the copies and some programs that
+// never stop are metered and run time-sliced, to show how many threads
+// that takes at most.
+//
+//    $ java MainBatch [copies] [threads]
+class MainBatch {
+    static void add(List<String> names, List<Program> programs, int copy) {
+        names.add("factorial");
+        programs.add(MainEngines.factorial(10 + copy % 5));
+        names.add("procs");
+        programs.add(MainEngines.procs(100));
+        names.add("closures");
+        programs.add(MainEngines.closures(1000));
+        names.add("dynamic types");
+        programs.add(MainTypes.changing());
+        names.add("mixed (fails)");
+        programs.add(MainTypes.mixed());
+        names.add("fib");
+        programs.add(MainMemo.fib(15));
+    }
+
+    // var i = 0; while (i < lines) { print i; i = i + 1; }
+    static Program counting(int lines) {
+        return new Program(
+            new Seq(new VarDecl("i", new Int(0)),
+                    new While(new LT(new Var("i"), new Int(lines)),
+                              new Seq(new Print(new Var("i")),
+                                      new Assign("i", new Plus(new Var("i"), new Int(1)))))));
+    }
+
+    // Run one Program runs times in a batch and check that every run
+    // printed all of its lines, and nothing of the others':
+    static void shared(int runs, int threads) {
+        Program prog = counting(2000);
+        List<String> names = new ArrayList<String>();
+        List<Program> programs = new ArrayList<Program>();
+        for (int i = 0; i < runs; i++) {
+            names.add("counting " + i);
+            programs.add(prog);
+        }
+        Output out = Output.capture();
+        out.run(prog::run);
+        String expected = out.text();
+        int wrong = 0;
+        for (Batch.Result r : Batch.run(names, programs, threads)) {
+            wrong += r.output.equals(expected) ? 0 : 1;
+        }
+        out = Output.capture();
+        out.run(prog::run);
+        System.out.println("one program " + runs + " times in a batch: "
+                           + (wrong == 0 ? "each run printed its own output" : wrong + " runs wrong")
+                           + "; afterwards it prints "
+                           + (out.text().equals(expected) ? "to the caller's output" : "elsewhere"));
+    }
+
+    public static void main(String[] args) {
+        int copies = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        List<String> names = new ArrayList<String>();
+        List<Program> programs = new ArrayList<Program>();
+        add(names, programs, 0);
+        Batch.report(Batch.run(names, programs, threads));
+
+        for (int round = 0; round < 3; round++) {
+            names.clear();
+            programs.clear();
+            for (int i = 0; i < copies; i++) {
+                add(names, programs, i);
+            }
+            long start = System.nanoTime();
+            List<Batch.Result> results = Batch.run(names, programs, threads);
+            long batch = System.nanoTime() - start;
+            int failed = 0;
+            for (Batch.Result r : results) {
+                failed += r.error != null ? 1 : 0;
+            }
+
+            // The same programs again, one after another on this thread:
+            programs.clear();
+            for (int i = 0; i < copies; i++) {
+                add(new ArrayList<String>(), programs, i);
+            }
+            start = System.nanoTime();
+            for (Program prog : programs) {
+                prog.setOutput(Output.capture());
+                try {
+                    prog.run();
+                } catch (InterpreterException e) {
+                    // counted above
+                }
+            }
+            long serial = System.nanoTime() - start;
+            System.out.println(results.size() + " programs (" + failed + " failed) on " + threads
+                               + " threads: " + batch / 1000000 + " ms; one after another: "
+                               + serial / 1000000 + " ms");
+        }
+
+        shared(8, threads);
+
+        names.clear();
+        programs.clear();
+        for (int i = 0; i < copies; i++) {
+            add(names, programs, i);
+            if (i % 20 == 0) {
+                names.add("spinning (stopped)");
+                programs.add(MainFuel.spinning());
+            }
+        }
+        for (Program prog : programs) {
+            prog.meter();
+        }
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        int before = bean.getThreadCount();
+        bean.resetPeakThreadCount();
+        long start = System.nanoTime();
+        List<Batch.Result> results = Batch.run(names, programs, threads, 1000, 100000);
+        long sliced = System.nanoTime() - start;
+        int failed = 0;
+        for (Batch.Result r : results) {
+            failed += r.error != null ? 1 : 0;
+        }
+        System.out.println(results.size() + " programs (" + failed + " failed) time-sliced on " + threads
+                           + " threads: " + sliced / 1000000 + " ms, at most "
+                           + (bean.getPeakThreadCount() - before) + " more threads at once");
+    }
+}
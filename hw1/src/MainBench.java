@@ -0,0 +1,154 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+// Compares the versions of the interpreter in ../Nest, ../Proc, ../Ref and
+// this directory on the same workloads: a factorial loop, recursive
+// procedure calls, arguments passed by reference, closures, and building
+// and walking a list.  Each version's Bench class builds the workloads
+// that it can run, with its own syntax classes.  The versions cannot share
+// one class path, since they all use the same class names, so each one is
+// compiled to a directory of its own and loaded with a class loader of its
+// own.
+//
+// Every workload is measured in a JVM of its own, so that what the JIT
+// learns from one workload does not slow down the next.  It is run for a
+// warm-up period and then for a measured one, with its output thrown
+// away.  The table gives the runs per second and the bytes allocated, per
+// run and per second.
+//
+//    $ java MainBench [millis] [directory ...]      (from this directory)
+class MainBench {
+    static final String[] WORKLOADS = {"factorial", "calls", "byref", "closures", "lists"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 4 && args[0].equals("-fork")) {
+            // One measurement: -fork classes workload millis
+            Runnable run = (Runnable) bench(new File(args[1])).invoke(null, args[2]);
+            int millis = Integer.parseInt(args[3]);
+            measure(run, millis / 2);           // warm up
+            double[] m = measure(run, millis);
+            System.out.println(m[0] + " " + m[1]);
+            return;
+        }
+        int millis = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        List<String> dirs = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+            dirs.add(args[i]);
+        }
+        if (dirs.isEmpty()) {
+            dirs.add("../Nest");
+            dirs.add("../Proc");
+            dirs.add("../Ref");
+            dirs.add(".");
+        }
+
+        List<String> names = new ArrayList<String>();
+        List<File> classes = new ArrayList<File>();
+        for (String dir : dirs) {
+            File out = compile(dir);
+            if (out != null) {
+                names.add(new File(dir).getCanonicalFile().getName());
+                classes.add(out);
+            }
+        }
+
+        System.out.printf("%-10s %-6s %12s %12s %10s%n", "workload", "", "runs/s", "bytes/run", "MB/s");
+        for (String workload : WORKLOADS) {
+            for (int v = 0; v < classes.size(); v++) {
+                if (bench(classes.get(v)).invoke(null, workload) == null) {
+                    System.out.printf("%-10s %-6s %12s%n", workload, names.get(v), "-");
+                    continue;
+                }
+                double[] m = fork(classes.get(v), workload, millis);
+                System.out.printf("%-10s %-6s %12.0f %12.0f %10.1f%n", workload, names.get(v),
+                                  m[0], m[1], m[0] * m[1] / (1 << 20));
+            }
+        }
+    }
+
+    // Compile the version in dir to a fresh directory, and return that,
+    // or null if it cannot be compiled:
+    static File compile(String dir) throws Exception {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new IllegalStateException("MainBench needs a JDK, to compile each version");
+        }
+        List<String> args = new ArrayList<String>();
+        File out = Files.createTempDirectory("bench").toFile();
+        args.add("-nowarn");
+        args.add("-d");
+        args.add(out.getPath());
+        File[] files = new File(dir).listFiles((d, name) -> name.endsWith(".java"));
+        if (files == null) {
+            System.err.println(dir + ": no such directory");
+            return null;
+        }
+        for (File f : files) {
+            args.add(f.getPath());
+        }
+        if (javac.run(null, null, OutputStream.nullOutputStream(), args.toArray(new String[0])) != 0) {
+            System.err.println(dir + ": does not compile");
+            return null;
+        }
+        return out;
+    }
+
+    // The Bench.workload method of the version compiled to classes:
+    static Method bench(File classes) throws Exception {
+        ClassLoader loader = new URLClassLoader(new URL[] {classes.toURI().toURL()},
+                                                ClassLoader.getPlatformClassLoader());
+        Method bench = loader.loadClass("Bench").getDeclaredMethod("workload", String.class);
+        bench.setAccessible(true);
+        return bench;
+    }
+
+    // Measure a workload in a new JVM, running this class with -fork:
+    static double[] fork(File classes, String workload, int millis) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "MainBench",
+                                       "-fork", classes.getPath(), workload, String.valueOf(millis))
+            .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        String line = in.readLine();
+        if (p.waitFor() != 0 || line == null) {
+            throw new IllegalStateException(workload + " failed in " + classes);
+        }
+        String[] m = line.split(" ");
+        return new double[] {Double.parseDouble(m[0]), Double.parseDouble(m[1])};
+    }
+
+    // Run for about millis ms, and return the runs per second and the
+    // bytes allocated per run:
+    static double[] measure(Runnable run, int millis) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long runs = 0;
+            long bytes = threads.getThreadAllocatedBytes(id);
+            long start = System.nanoTime(), end = start + millis * 1000000L, now;
+            do {
+                run.run();
+                runs++;
+                now = System.nanoTime();
+            } while (now < end);
+            bytes = threads.getThreadAllocatedBytes(id) - bytes;
+            return new double[] {runs * 1e9 / (now - start), (double) bytes / runs};
+        } finally {
+            System.setOut(out);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+// Saving programs in binary and loading them again (Program.save and
+// Program.load; see Encoder.java and Decoder.java).  The example programs
+// must print the same text and the same output after the round trip.
+// Then large generated programs are timed: saving them, loading them, and
+// building them in Java as the other drivers do.  "java Parser -save" and
+// "java Parser -load" time the parser against the loader on source files.
+// A file that is cut short or corrupt must fail to load with an
+// IOException, and nothing else.
+//
+//    $ java MainBinary [statements]
+class MainBinary {
+    static Program roundTrip(Program prog, File file) throws IOException {
+        prog.save(file.getPath());
+        return Program.load(file.getPath());
+    }
+
+    // Compare the output, and the text too unless, as with a Given list,
+    // it is not meant to survive the round trip:
+    static void check(String name, Program prog, Program copy, boolean text) {
+        boolean same = MainEngines.capture(prog::runBytecode).equals(MainEngines.capture(copy::runBytecode));
+        if (text) {
+            same &= MainEngines.capture(prog::print).equals(MainEngines.capture(copy::print));
+        }
+        System.out.println(name + ": " + (same ? "same" : "DIFFERENT") + (text ? " text and output" : " output"));
+    }
+
+    // Load the given bytes, which should fail with an IOException:
+    static String load(byte[] bytes, File file) throws IOException {
+        Files.write(file.toPath(), bytes);
+        try {
+            Program.load(file.getPath());
+            return "loaded";
+        } catch (IOException e) {
+            return "IOException";
+        } catch (RuntimeException | Error e) {
+            return e.getClass().getName();
+        }
+    }
+
+    // Cut the file short at every length, then flip random bytes in it:
+    static void broken(String name, Program prog, File file) throws IOException {
+        prog.save(file.getPath());
+        byte[] good = Files.readAllBytes(file.toPath());
+        boolean ok = true;
+        for (int length = 0; length < good.length; length++) {
+            String result = load(Arrays.copyOf(good, length), file);
+            if (!result.equals("IOException")) {
+                System.out.println("  cut to " + length + " bytes: " + result);
+                ok = false;
+            }
+        }
+        System.out.println(name + " truncated: " + (ok ? "IOException at every length" : "WRONG"));
+
+        Random random = new Random(1);
+        int failed = 0, loaded = 0, other = 0;
+        for (int i = 0; i < 10000; i++) {
+            byte[] bad = good.clone();
+            for (int j = 1 + random.nextInt(4); j > 0; j--) {
+                bad[5 + random.nextInt(bad.length - 5)] = (byte) random.nextInt(256);
+            }
+            String result = load(bad, file);
+            if (result.equals("IOException")) {
+                failed++;
+            } else if (result.equals("loaded")) {
+                loaded++;
+            } else {
+                System.out.println("  corrupt: " + result);
+                other++;
+            }
+        }
+        System.out.println(name + " corrupt: " + failed + " IOException, " + loaded + " still loaded"
+                           + (other == 0 ? "" : ", " + other + " WRONG"));
+    }
+
+    // A header followed by a count that is negative, or too large:
+    static void counts(File file) throws IOException {
+        byte[] negative = {0x48, 0x57, 0x31, 0x50, 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f};
+        byte[] huge = {0x48, 0x57, 0x31, 0x50, 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f};
+        byte[] endless = {0x48, 0x57, 0x31, 0x50, 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1};
+        System.out.println("negative count: " + load(negative, file) + ", huge count: " + load(huge, file)
+                           + ", endless number: " + load(endless, file));
+    }
+
+    interface Maker {
+        Program make();
+    }
+
+    static void time(String name, Maker make, File file, int reps) throws IOException {
+        Program prog = make.make();
+        long save = MainEngines.time(() -> {
+            try {
+                prog.save(file.getPath());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, reps);
+        long load = MainEngines.time(() -> {
+            try {
+                Program.load(file.getPath());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, reps);
+        long build = MainEngines.time(make::make, reps);
+        System.out.println(name + ": " + file.length() + " bytes; save "
+                           + save / 1000 + " us, load " + load / 1000 + " us, build in Java " + build / 1000 + " us");
+    }
+
+    public static void main(String[] args) throws IOException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        File file = File.createTempFile("program", ".bin");
+        file.deleteOnExit();
+
+        check("factorial", MainEngines.factorial(10), roundTrip(MainEngines.factorial(10), file), true);
+        check("procs", MainEngines.procs(10), roundTrip(MainEngines.procs(10), file), true);
+        check("closures", MainEngines.closures(10), roundTrip(MainEngines.closures(10), file), true);
+        check("walking", MainTail.walking(10), roundTrip(MainTail.walking(10), file), true);
+        check("changing", MainTypes.changing(), roundTrip(MainTypes.changing(), file), true);
+        check("fib", MainMemo.fib(15), roundTrip(MainMemo.fib(15), file), true);
+        check("lambdas", MainMemo.lambdas(), roundTrip(MainMemo.lambdas(), file), true);
+        check("lazy", MainLazy.picking(new ByNeed("big"), 100, 3),
+              roundTrip(MainLazy.picking(new ByNeed("big"), 100, 3), file), true);
+        Value[] values = {new IValue(-1), new IValue(2), new IValue(300000)};
+        check("given list", MainLists.forSum(ChunkedList.of(values)),
+              roundTrip(MainLists.forSum(ChunkedList.of(values)), file), false);
+        check("long", MainEngines.longProgram(n), roundTrip(MainEngines.longProgram(n), file), true);
+
+        counts(file);
+        broken("procs", MainEngines.procs(10), file);
+        broken("lambdas", MainMemo.lambdas(), file);
+
+        for (int round = 0; round < 3; round++) {
+            time("long " + n, () -> MainEngines.longProgram(n), file, 10);
+            time("1000 procedures", () -> MainLink.many(1000, 10), file, 10);
+        }
+    }
+}
@@ -20,6 +20,17 @@ class MainDT {
         System.out.println("Complete program is:");
         prog.print();
 
+        if (args.length > 0 && args[0].equals("-typecheck")) {
+            // Reject the program before it runs, rather than part way through:
+            java.util.ArrayList<String> errors = prog.typecheck();
+            if (!errors.isEmpty()) {
+                for (String e : errors) {
+                    System.out.println(e);
+                }
+                return;
+            }
+        }
+
         System.out.println("Running in an empty environment:");
         prog.run();
 
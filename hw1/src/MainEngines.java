@@ -0,0 +1,139 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+// Runs the same programs with the tree-walking engine (Program.run), the
+// closure-compilation engine (Program.runCompiled), the bytecode VM
+// (Program.runBytecode) and the generated JVM classes (Program.runJvm),
+// checks that all of them print exactly the same output, and reports how
+// long each one takes.
+//
+//    $ java MainEngines [repetitions]
+class MainEngines {
+    // var t = 1; var i = 1; while (i < limit) { t = t * i; i = i + 1; } print t;
+    static Program factorial(int limit) {
+        return new Program(
+            new Seq(new VarDecl("t", new Int(1)),
+            new Seq(new VarDecl("i", new Int(1)),
+            new Seq(new While(new LT(new Var("i"), new Int(limit)),
+                              new Seq(new Assign("t", new Mult(new Var("t"), new Var("i"))),
+                                      new Assign("i", new Plus(new Var("i"), new Int(1))))),
+                    new Print(new Var("t"))))));
+    }
+
+    // The gauss and sum procedures from MainProc, called in a loop.
+    static Program procs(int calls) {
+        Proc[] procs = new Proc[] {
+          new Proc("gauss", new Formal[] {new Formal("limit"), new ByRef("out")},
+            new Seq(new VarDecl("t", new Int(0)),
+            new Seq(new VarDecl("i", new Int(0)),
+            new Seq(new While(new LT(new Var("i"), new Var("limit")),
+                              new Seq(new Assign("i", new Plus(new Var("i"), new Int(1))),
+                                      new Assign("t", new Plus(new Var("t"), new Var("i"))))),
+                    new Assign("out", new Plus(new Var("out"), new Var("t"))))))),
+
+          new Proc("sum", new Formal[] {new Formal("n"), new Formal("a"), new ByRef("out")},
+            new If(new LT(new Int(0), new Var("n")),
+                   new Call("sum", new Expr[] {
+                                     new Minus(new Var("n"), new Int(1)),
+                                     new Plus(new Var("a"), new Var("n")),
+                                     new Var("out")
+                                   }),
+                   new Assign("out", new Plus(new Var("out"), new Var("a")))))
+        };
+        return new Program(procs,
+            new Seq(new VarDecl("out", new Int(0)),
+            new Seq(new VarDecl("k", new Int(0)),
+            new Seq(new While(new LT(new Var("k"), new Int(calls)),
+                              new Seq(new Call("gauss", new Expr[] {new Var("k"), new Var("out")}),
+                              new Seq(new Call("sum", new Expr[] {new Int(50), new Int(0), new Var("out")}),
+                                      new Assign("k", new Plus(new Var("k"), new Int(1)))))),
+                    new Print(new Var("out"))))));
+    }
+
+    // Builds and applies closures: var twice = \f -> \x -> f @ (f @ x); ...
+    static Program closures(int limit) {
+        return new Program(
+            new Seq(new VarDecl("twice", new Lambda("f", new Lambda("x",
+                                           new Apply(new Var("f"),
+                                           new Apply(new Var("f"), new Var("x")))))),
+            new Seq(new VarDecl("i", new Int(0)),
+            new Seq(new VarDecl("t", new Int(0)),
+            new Seq(new While(new LT(new Var("i"), new Int(limit)),
+                              new Seq(new VarDecl("add", new Lambda("y", new Plus(new Var("y"), new Var("i")))),
+                              new Seq(new Assign("t", new Apply(new Apply(new Var("twice"), new Var("add")),
+                                                                new Var("t"))),
+                                      new Assign("i", new Plus(new Var("i"), new Int(1)))))),
+                    new Print(new Var("t")))))));
+    }
+
+    // A straight-line program of n statements: var x = 0; x = x + 1; ...
+    static Program longProgram(int n) {
+        Stmt s = new Print(new Var("x"));
+        for (int i = 0; i < n; i++) {
+            s = new Seq(new Assign("x", new Plus(new Var("x"), new Int(1))), s);
+        }
+        return new Program(new Seq(new VarDecl("x", new Int(0)), s));
+    }
+
+    static String capture(Runnable run) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buf));
+        try {
+            run.run();
+        } finally {
+            System.setOut(out);
+        }
+        return buf.toString();
+    }
+
+    static long time(Runnable run, int reps) {
+        long start = System.nanoTime();
+        for (int i = 0; i < reps; i++) {
+            run.run();
+        }
+        return (System.nanoTime() - start) / reps;
+    }
+
+    static void compare(String name, Program prog, int reps) {
+        String[] engines = {"tree:    ", "compiled:", "bytecode:", "jvm:     "};
+        Runnable[] runs = {prog::run, prog::runCompiled, prog::runBytecode, prog::runJvm};
+        String expected = capture(runs[0]);
+        for (int i = 1; i < runs.length; i++) {
+            String actual = capture(runs[i]);
+            if (!expected.equals(actual)) {
+                System.out.println(name + ": DIFFERENT OUTPUT");
+                System.out.print("  " + engines[0] + " " + expected);
+                System.out.print("  " + engines[i] + " " + actual);
+                return;
+            }
+        }
+        System.out.println(name + ": same output");
+        long[] times = new long[runs.length];
+        for (int i = 0; i < runs.length; i++) {
+            Runnable run = runs[i];
+            time(() -> capture(run), reps); // warm up
+            times[i] = time(() -> capture(run), reps);
+            System.out.println("  " + engines[i] + " " + times[i] / 1000 + " us/run  ("
+                               + String.format("%.2f", times[0] / (double) times[i]) + "x)");
+        }
+    }
+
+    public static void main(String[] args) {
+        int reps = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        compare("factorial loop", factorial(1000000), reps);
+        compare("procedure calls", procs(1000), reps);
+        compare("closures", closures(100000), reps);
+
+        // The chain of Seqs is flattened into one Block (see Stmt.flatten),
+        // so the tree walker runs it in a loop, as the VM does:
+        Program prog = longProgram(100000);
+        System.out.print("100000 statements, bytecode: " + capture(prog::runBytecode));
+        try {
+            capture(prog::run);
+            System.out.println("100000 statements, tree: ok");
+        } catch (StackOverflowError e) {
+            System.out.println("100000 statements, tree: StackOverflowError");
+        }
+    }
+}
@@ -36,7 +36,19 @@ class MainFCF {
     prog.print();
 
     System.out.println("Running program:");
-    prog.run();
+    if (args.length > 0 && args[0].equals("-compiled")) {
+      prog.runCompiled();
+    } else if (args.length > 0 && args[0].equals("-bytecode")) {
+      prog.runBytecode();
+    } else if (args.length > 0 && args[0].equals("-jvm")) {
+      prog.runJvm();
+    } else if (args.length > 0 && args[0].equals("-profile")) {
+      Profiler profiler = new Profiler();
+      profiler.reportAtExit(20);
+      prog.profile(profiler).run();
+    } else {
+      prog.run();
+    }
 
     System.out.println("Done!");
   }
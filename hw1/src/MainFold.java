@@ -0,0 +1,80 @@
+// Constant folding (Program.optimize): prints a program before and after,
+// with the number of nodes that were removed, and checks that every engine
+// still prints the same output.  Then two programs are made from one
+// array of procedures, and one of them is folded: the array and the other
+// program must be left as they were.
+//
+//    $ java MainFold
+class MainFold {
+    // var x = 2 * 3 + 4;
+    // if (1 < 2) { print x; } else { print 0; }
+    // while (3 < 1) { print 99; }
+    // var y = (\a -> a * (a + 1)) @ 6;
+    // print y;
+    // var f = \b -> (\a -> a + b) @ (10 - 1);
+    // print f @ 5;
+    // if (0 == 1) { print 1; } else { var z = y + 1; print z; }
+    static Program sample() {
+        return new Program(
+            new Seq(new VarDecl("x", new Plus(new Mult(new Int(2), new Int(3)), new Int(4))),
+            new Seq(new If(new LT(new Int(1), new Int(2)),
+                           new Print(new Var("x")),
+                           new Print(new Int(0))),
+            new Seq(new While(new LT(new Int(3), new Int(1)), new Print(new Int(99))),
+            new Seq(new VarDecl("y", new Apply(new Lambda("a", new Mult(new Var("a"),
+                                                                       new Plus(new Var("a"), new Int(1)))),
+                                               new Int(6))),
+            new Seq(new Print(new Var("y")),
+            new Seq(new VarDecl("f", new Lambda("b", new Apply(new Lambda("a", new Plus(new Var("a"), new Var("b"))),
+                                                               new Minus(new Int(10), new Int(1))))),
+            new Seq(new Print(new Apply(new Var("f"), new Int(5))),
+                    new If(new EqEq(new Int(0), new Int(1)),
+                           new Print(new Int(1)),
+                           new Seq(new VarDecl("z", new Plus(new Var("y"), new Int(1))),
+                                   new Print(new Var("z"))))))))))));
+    }
+
+    static void show(String name, Program prog) {
+        System.out.println(name + ", before:");
+        prog.print();
+        int removed = prog.optimize();
+        System.out.println(name + ", after (" + removed + " nodes removed):");
+        prog.print();
+        String tree = MainEngines.capture(prog::run);
+        String[] others = {
+            MainEngines.capture(prog::runCompiled),
+            MainEngines.capture(prog::runBytecode),
+            MainEngines.capture(prog::runJvm)
+        };
+        for (String other : others) {
+            if (!other.equals(tree)) {
+                System.out.println("DIFFERENT OUTPUT:\n" + tree + "--\n" + other);
+                return;
+            }
+        }
+        System.out.print(tree);
+        System.out.println();
+    }
+
+    // procedure p(ref out) { out = 2 * 3; print out + 1; }
+    static void sharing() {
+        Proc p = new Proc("p", new Formal[] {new ByRef("out")},
+                          new Seq(new Assign("out", new Mult(new Int(2), new Int(3))),
+                                  new Print(new Plus(new Var("out"), new Int(1)))));
+        Proc[] procs = {p};
+        Stmt body = new Seq(new VarDecl("x", new Int(0)), new Call("p", new Expr[] {new Var("x")}));
+        Program folded = new Program(procs, body), plain = new Program(procs, body);
+        String before = MainEngines.capture(plain::print);
+        folded.optimize();
+        boolean same = procs[0] == p && MainEngines.capture(plain::print).equals(before)
+                       && !MainEngines.capture(folded::print).equals(before);
+        System.out.println("sharing procedures: " + (same ? "the array and the other program are unchanged"
+                                                          : "CHANGED"));
+    }
+
+    public static void main(String[] args) {
+        show("sample", sample());
+        show("factorial", MainEngines.factorial(10));
+        sharing();
+    }
+}
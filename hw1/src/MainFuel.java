@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Metered programs (Program.meter and Fuel.java): what counting steps
+// costs, and a batch in which two programs never stop, run in turns on
+// one thread.  The programs that do stop still finish, and the other two
+// are stopped at the step limit; every program reports the steps it took.
+// Last, a metered program with a pool for its For loops must still count
+// every step, and stop at its limit.
+//
+//    $ java MainFuel [repetitions]
+class MainFuel {
+    // var i = 0; while (0 < 1) { i = i + 1; }
+    static Program spinning() {
+        return new Program(
+            new Seq(new VarDecl("i", new Int(0)),
+                    new While(new LT(new Int(0), new Int(1)),
+                              new Assign("i", new Plus(new Var("i"), new Int(1))))));
+    }
+
+    // var f = 0; f = \x -> f @ (x + 1); print f @ 0;
+    static Program applying() {
+        return new Program(
+            new Seq(new VarDecl("f", new Int(0)),
+            new Seq(new Assign("f", new Lambda("x", new Apply(new Var("f"), new Plus(new Var("x"), new Int(1))))),
+                    new Print(new Apply(new Var("f"), new Int(0))))));
+    }
+
+    static Program metered(Program prog) {
+        prog.meter();
+        return prog;
+    }
+
+    // The time per run of prog, fresh from make, as it is, metered, and
+    // metered inside a Fuel:
+    interface Maker {
+        Program make();
+    }
+
+    static void cost(String name, Maker make, int reps) {
+        Program plain = make.make(), counted = metered(make.make()), fueled = metered(make.make());
+        Fuel fuel = new Fuel(Long.MAX_VALUE, 10000, null);
+        for (boolean compiled : new boolean[] {false, true}) {
+            Runnable a = compiled ? plain::runCompiled : plain::run;
+            Runnable b = compiled ? counted::runCompiled : counted::run;
+            Runnable c = compiled ? fueled::runCompiled : fueled::run;
+            Runnable[] runs = {
+                () -> MainEngines.capture(a),
+                () -> MainEngines.capture(b),
+                () -> MainEngines.capture(() -> fuel.run(c))
+            };
+            long[] t = new long[runs.length];
+            for (int round = 0; round < 2; round++) {   // the first round warms up
+                for (int i = 0; i < runs.length; i++) {
+                    t[i] = MainEngines.time(runs[i], reps);
+                }
+            }
+            System.out.println(name + (compiled ? ", compiled: " : ", tree: ") + t[0] / 1000 + " us, metered "
+                               + t[1] / 1000 + " us, with fuel " + t[2] / 1000 + " us");
+        }
+        Fuel once = new Fuel(Long.MAX_VALUE, 10000, null);
+        MainEngines.capture(() -> once.run(metered(make.make())::run));
+        System.out.println(name + ": " + once.used() + " steps");
+    }
+
+    public static void main(String[] args) {
+        int reps = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        cost("factorial", () -> MainEngines.factorial(100000), reps);
+        cost("procs", () -> MainEngines.procs(100), reps);
+        cost("closures", () -> MainEngines.closures(10000), reps);
+
+        List<String> names = new ArrayList<String>();
+        List<Program> programs = new ArrayList<Program>();
+        names.add("spinning");
+        programs.add(metered(spinning()));
+        names.add("applying");
+        programs.add(metered(applying()));
+        names.add("factorial");
+        programs.add(metered(MainEngines.factorial(10)));
+        names.add("procs");
+        programs.add(metered(MainEngines.procs(100)));
+        names.add("fib");
+        programs.add(metered(MainMemo.fib(15)));
+        Batch.report(Batch.run(names, programs, 1, 1000, 10000000));
+
+        Fuel serial = new Fuel(Long.MAX_VALUE, 10000, null);
+        String expected = MainEngines.capture(() -> serial.run(metered(MainParallel.heavy(8, 100000))::run));
+        for (boolean compiled : new boolean[] {false, true}) {
+            Program prog = metered(MainParallel.heavy(8, 100000));
+            prog.parallel(4);
+            Fuel all = new Fuel(Long.MAX_VALUE, 10000, null), some = new Fuel(serial.used() / 2, 10000, null);
+            Runnable run = compiled ? prog::runCompiled : prog::run;
+            String output = MainEngines.capture(() -> all.run(run));
+            String stopped;
+            try {
+                MainEngines.capture(() -> some.run(run));
+                stopped = ", NOT STOPPED";
+            } catch (InterpreterException e) {
+                stopped = ", stopped after " + some.used() + " steps";
+            }
+            System.out.println("parallel, " + (compiled ? "compiled: " : "tree: ")
+                               + (output.equals(expected) && all.used() == serial.used() ? "same output and "
+                                  + all.used() + " steps" : "DIFFERENT: " + all.used() + " steps")
+                               + stopped);
+        }
+    }
+}
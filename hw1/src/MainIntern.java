@@ -0,0 +1,101 @@
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+
+// Shared values (Program.intern) against a new object for every value, on
+// list programs.  "copies" builds the same list of small ints many times
+// and keeps every copy: with hash-consing, all the copies are one list.
+// "walking" from MainTail builds one long list of 1s and sums it.  For
+// each, the output must not change; the table gives the bytes allocated
+// per run on every engine, and the heap that the copies keep alive.
+//
+//    $ java MainIntern [copies] [size]
+class MainIntern {
+    // procedure build(copies, size, ref all) {
+    //   var k = 0;
+    //   while (k < copies) {
+    //     var l = []; var i = 0;
+    //     while (i < size) { l = cons(i, l); i = i + 1; }
+    //     all = cons(l, all); k = k + 1;
+    //   }
+    // }
+    // var all = []; build(copies, size, all); print head(head(all));
+    static Program copies(int copies, int size) {
+        Proc build = new Proc("build", new Formal[] {new Formal("copies"), new Formal("size"), new ByRef("all")},
+            new Seq(new VarDecl("k", new Int(0)),
+                    new While(new LT(new Var("k"), new Var("copies")),
+                        new Seq(new VarDecl("l", new Nil()),
+                        new Seq(new VarDecl("i", new Int(0)),
+                        new Seq(new While(new LT(new Var("i"), new Var("size")),
+                                          new Seq(new Assign("l", new Cons(new Var("i"), new Var("l"))),
+                                                  new Assign("i", new Plus(new Var("i"), new Int(1))))),
+                        new Seq(new Assign("all", new Cons(new Var("l"), new Var("all"))),
+                                new Assign("k", new Plus(new Var("k"), new Int(1))))))))));
+        return new Program(new Proc[] {build},
+            new Seq(new VarDecl("all", new Nil()),
+            new Seq(new Call("build", new Expr[] {new Int(copies), new Int(size), new Var("all")}),
+                    new Print(new Head(new Head(new Var("all")))))));
+    }
+
+    static void intern(Program prog, boolean on) {
+        if (on) {
+            prog.intern(-128, 1024, 1 << 16);
+        } else {
+            prog.plain();
+        }
+    }
+
+    // Bytes allocated by one run, after a few to warm up:
+    static long allocated(Runnable run) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < 3; i++) {
+            MainEngines.capture(run);
+        }
+        long before = threads.getThreadAllocatedBytes(id);
+        MainEngines.capture(run);
+        return threads.getThreadAllocatedBytes(id) - before;
+    }
+
+    static void compare(String name, Program prog) {
+        String[] engines = {"tree", "compiled", "bytecode", "jvm"};
+        Runnable[] runs = {prog::run, prog::runCompiled, prog::runBytecode, prog::runJvm};
+        intern(prog, false);
+        String expected = MainEngines.capture(runs[0]);
+        for (int i = 0; i < runs.length; i++) {
+            intern(prog, false);
+            long plain = allocated(runs[i]);
+            intern(prog, true);
+            long shared = allocated(runs[i]);
+            String out = MainEngines.capture(runs[i]);
+            System.out.printf("%-8s %-9s %12d %12d  %s%n", name, engines[i], plain, shared,
+                              out.equals(expected) ? "same output" : "DIFFERENT OUTPUT");
+        }
+    }
+
+    // The heap that the lists made by build keep alive, counting the cells
+    // that the table of Values keeps as well:
+    static long retained(Program prog, int copies, int size) {
+        java.lang.management.MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long before = MainRetain.used(memory);
+        Value[] out = prog.call("build", new IValue(copies), new IValue(size), new EmptyList());
+        long held = MainRetain.used(memory);
+        Reference.reachabilityFence(out);
+        return held - before;
+    }
+
+    public static void main(String[] args) {
+        int copies = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        System.out.printf("%-8s %-9s %12s %12s%n", "program", "engine", "plain bytes", "shared bytes");
+        compare("copies", copies(copies, size));
+        compare("walking", MainTail.walking(10000));
+
+        long plain = retained(copies(copies, size), copies, size);
+        Program prog = copies(copies, size);
+        intern(prog, true);
+        long shared = retained(prog, copies, size);
+        System.out.printf("%d copies of %d ints kept: plain %.1f KB, shared %.1f KB (%s)%n", copies, size,
+                          plain / 1024.0, shared / 1024.0, prog.internStats());
+    }
+}
@@ -0,0 +1,90 @@
+// Call-by-need formals (ByNeed in Src.java; "lazy x" in Parser.jj).  The
+// procedure pick reads its second argument on only one call in many, and
+// that argument applies a function 2^k times.  Passed by value, it is
+// worked out on every call; passed by need, only on the calls that read it,
+// and only once on each, though pick reads it twice.  The step counts of
+// the metered runs show both.  An argument that would abort is fine if it
+// is passed by need and never read.
+//
+//    $ java MainLazy [calls] [k] [repetitions]
+class MainLazy {
+    // procedure pick(n, big, ref out) {
+    //   if (n < 1) { out = out + big + big; } else { out = out + n; }
+    // }
+    static Proc pick(Formal big) {
+        return new Proc("pick", new Formal[] {new Formal("n"), big, new ByRef("out")},
+            new If(new LT(new Var("n"), new Int(1)),
+                   new Assign("out", new Plus(new Plus(new Var("out"), new Var("big")), new Var("big"))),
+                   new Assign("out", new Plus(new Var("out"), new Var("n")))));
+    }
+
+    // (twice @ (twice @ ... (twice @ inc))) @ 0, with k twices:
+    static Expr big(int k) {
+        Expr f = new Var("inc");
+        for (int i = 0; i < k; i++) {
+            f = new Apply(new Var("twice"), f);
+        }
+        return new Apply(f, new Int(0));
+    }
+
+    // var twice = \f -> \x -> f @ (f @ x); var inc = \x -> x + 1;
+    // var out = 0; var i = 0; var j = 0;
+    // while (i < calls) {
+    //   pick(j, big, out); i = i + 1; j = j + 1; if (j == 100) { j = 0; } else { skip; }
+    // }
+    // print out;
+    static Program picking(Formal big, int calls, int k) {
+        return new Program(new Proc[] {pick(big)},
+            new Seq(new VarDecl("twice", new Lambda("f", new Lambda("x",
+                        new Apply(new Var("f"), new Apply(new Var("f"), new Var("x")))))),
+            new Seq(new VarDecl("inc", new Lambda("x", new Plus(new Var("x"), new Int(1)))),
+            new Seq(new VarDecl("out", new Int(0)),
+            new Seq(new VarDecl("i", new Int(0)),
+            new Seq(new VarDecl("j", new Int(0)),
+            new Seq(new While(new LT(new Var("i"), new Int(calls)),
+                              new Seq(new Call("pick", new Expr[] {new Var("j"), big(k), new Var("out")}),
+                              new Seq(new Assign("i", new Plus(new Var("i"), new Int(1))),
+                              new Seq(new Assign("j", new Plus(new Var("j"), new Int(1))),
+                                      new If(new EqEq(new Var("j"), new Int(100)),
+                                             new Assign("j", new Int(0)),
+                                             new Skip()))))),
+                    new Print(new Var("out")))))))));
+    }
+
+    // var out = 0; pick(5, head([]), out); print out;
+    static Program skipping(Formal big) {
+        return new Program(new Proc[] {pick(big)},
+            new Seq(new VarDecl("out", new Int(0)),
+            new Seq(new Call("pick", new Expr[] {new Int(5), new Head(new Nil()), new Var("out")}),
+                    new Print(new Var("out")))));
+    }
+
+    static long steps(Program prog) {
+        prog.meter();
+        Fuel fuel = new Fuel(Long.MAX_VALUE, 10000, null);
+        MainEngines.capture(() -> fuel.run(prog::run));
+        return fuel.used();
+    }
+
+    public static void main(String[] args) {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int reps = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        MainEngines.compare("by value", picking(new Formal("big"), calls, k), reps);
+        MainEngines.compare("by need", picking(new ByNeed("big"), calls, k), reps);
+        String value = MainEngines.capture(picking(new Formal("big"), calls, k)::run);
+        String need = MainEngines.capture(picking(new ByNeed("big"), calls, k)::run);
+        System.out.println("by value and by need: " + (value.equals(need) ? "same output" : "DIFFERENT OUTPUT"));
+        System.out.println("steps: by value " + steps(picking(new Formal("big"), calls, k))
+                           + ", by need " + steps(picking(new ByNeed("big"), calls, k)));
+
+        MainEngines.compare("unused head([]), by need", skipping(new ByNeed("big")), 1);
+        try {
+            skipping(new Formal("big")).run();
+            System.out.println("unused head([]), by value: ran");
+        } catch (InterpreterException e) {
+            System.out.println("unused head([]), by value: " + e.getMessage());
+        }
+    }
+}
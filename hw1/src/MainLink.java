@@ -0,0 +1,51 @@
+// Calls are linked to their procedures once, when the program is resolved
+// (see Program.link), so the cost of a call does not depend on how many
+// procedures the program has.  Each program here has n procedures and
+// calls the last of them in a loop; with the old linear search by name,
+// every call compared its name with all n.  Then a program with calls that
+// cannot be linked is rejected before it prints anything.
+//
+//    $ java MainLink [calls]
+class MainLink {
+    // procedure p0(ref out) { out = out + 0; } ... procedure p<n-1>(ref out) { ... }
+    // var out = 0; var i = 0;
+    // while (i < calls) { p<n-1>(out); i = i + 1; } print out;
+    static Program many(int n, int calls) {
+        Proc[] procs = new Proc[n];
+        for (int k = 0; k < n; k++) {
+            procs[k] = new Proc("p" + k, new Formal[] {new ByRef("out")},
+                new Assign("out", new Plus(new Var("out"), new Int(k))));
+        }
+        return new Program(procs,
+            new Seq(new VarDecl("out", new Int(0)),
+            new Seq(new VarDecl("i", new Int(0)),
+            new Seq(new While(new LT(new Var("i"), new Int(calls)),
+                              new Seq(new Call("p" + (n - 1), new Expr[] {new Var("out")}),
+                                      new Assign("i", new Plus(new Var("i"), new Int(1))))),
+                    new Print(new Var("out"))))));
+    }
+
+    public static void main(String[] args) {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        for (int n : new int[] {1, 10, 100, 500, 1000}) {
+            Program prog = many(n, calls);
+            String out = MainEngines.capture(prog::run).trim();
+            long tree = MainEngines.time(() -> MainEngines.capture(prog::run), 5);
+            long compiled = MainEngines.time(() -> MainEngines.capture(prog::runCompiled), 5);
+            System.out.println(n + " procedures, " + out + ": tree " + tree / 1000000
+                               + " ms, compiled " + compiled / 1000000 + " ms");
+        }
+
+        // procedure p(ref out) { out = out; }  print 1; missing(1); p(1, 2);
+        Program bad = new Program(
+            new Proc[] {new Proc("p", new Formal[] {new ByRef("out")}, new Assign("out", new Var("out")))},
+            new Seq(new Print(new Int(1)),
+            new Seq(new Call("missing", new Expr[] {new Int(1)}),
+                    new Call("p", new Expr[] {new Int(1), new Int(2)}))));
+        try {
+            bad.run();
+        } catch (InterpreterException e) {
+            System.out.println("(rejected before running)");
+        }
+    }
+}
@@ -0,0 +1,141 @@
+// Compares cons-cell lists (NonEmptyList) with unrolled ones (ChunkedList)
+// of a million elements: length, show, a For loop over the list, and a
+// tail-recursive walk that takes it apart with Case.  Then a program that
+// builds a list literal and loops over it, again and again: the tree and
+// closure engines build the literal in chunks, and the bytecode engine
+// builds cells, and all three must print the same.
+//
+//    $ java MainLists [length]
+class MainLists {
+    // A list that already exists, for the programs to work on:
+    static class Given extends Expr {
+        private Value val;
+
+        Given(Value val) {
+            this.val = val;
+        }
+
+        Value eval(Env env) {
+            return val;
+        }
+
+        String show() {
+            return "<list>";
+        }
+
+        void resolve(Scope sc) {
+        }
+
+        Type check(Checker c) {
+            return Type.list(c.fresh());
+        }
+
+        void emit(Assembler a) {
+            a.emit(Bytecode.VCONST, a.constant(val));
+        }
+
+        // Saved as the cons cells that would build the list again:
+        void encode(Encoder e) {
+            ((LValue) val).forEach(elem -> {
+                e.tag(Encoder.CONS);
+                if (elem instanceof IValue) {
+                    e.tag(Encoder.INT);
+                    e.integer(elem.asInt());
+                } else {
+                    e.tag(elem.asBool() ? Encoder.TRUE : Encoder.FALSE);
+                }
+            });
+            e.tag(Encoder.NIL);
+        }
+    }
+
+    // var s = 0; for (x in list) { s = s + x; } print s;
+    static Program forSum(LValue list) {
+        return new Program(
+            new Seq(new VarDecl("s", new Int(0)),
+            new Seq(new For("x", new Given(list), new Assign("s", new Plus(new Var("s"), new Var("x")))),
+                    new Print(new Var("s")))));
+    }
+
+    // var s = 0; sum(list, s); print s;   (sum is from MainTail)
+    static Program caseSum(LValue list) {
+        return new Program(new Proc[] {MainTail.sum()},
+            new Seq(new VarDecl("s", new Int(0)),
+            new Seq(new Call("sum", new Expr[] {new Given(list), new Var("s")}),
+                    new Print(new Var("s")))));
+    }
+
+    // [0, 1, ..., n - 1]
+    static Expr literalExpr(int n) {
+        Expr list = new Nil();
+        for (int x = n - 1; x >= 0; x--) {
+            list = new Cons(new Int(x), list);
+        }
+        return list;
+    }
+
+    // var s = 0; var i = 0;
+    // while (i < reps) { for (x in [0, 1, ..., n - 1]) { s = s + x; } i = i + 1; }
+    // print s;
+    static Program literal(int n, int reps) {
+        return new Program(
+            new Seq(new VarDecl("s", new Int(0)),
+            new Seq(new VarDecl("i", new Int(0)),
+            new Seq(new While(new LT(new Var("i"), new Int(reps)),
+                              new Seq(new For("x", literalExpr(n), new Assign("s", new Plus(new Var("s"), new Var("x")))),
+                                      new Assign("i", new Plus(new Var("i"), new Int(1))))),
+                    new Print(new Var("s"))))));
+    }
+
+    static void literals(int n, int reps) {
+        Program prog = literal(n, reps);
+        Runnable[] runs = {prog::run, prog::runCompiled, prog::runBytecode};
+        String[] engines = {"tree", "compiled", "bytecode"};
+        String expected = MainEngines.capture(prog::run);
+        StringBuilder line = new StringBuilder("literal of " + n + ", " + reps + " times:");
+        for (int i = 0; i < runs.length; i++) {
+            Runnable run = runs[i];
+            MainEngines.time(() -> MainEngines.capture(run), 3);     // warm up
+            long t = MainEngines.time(() -> MainEngines.capture(run), 3) / 3;
+            line.append(" " + engines[i] + " " + t / 1000 + " us"
+                        + (MainEngines.capture(run).equals(expected) ? "" : " DIFFERENT OUTPUT") + ";");
+        }
+        System.out.println(line + " the literal is a " + literalExpr(n).eval(null).getClass().getName());
+    }
+
+    static void report(String name, LValue cons, LValue chunked, java.util.function.Function<LValue, Object> op) {
+        long[] times = new long[2];
+        Object[] results = new Object[2];
+        LValue[] lists = {cons, chunked};
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 2; i++) {
+                long start = System.nanoTime();
+                results[i] = op.apply(lists[i]);
+                times[i] = System.nanoTime() - start;
+            }
+        }
+        System.out.println(name + ": cons " + times[0] / 1000 + " us, chunked " + times[1] / 1000
+                           + " us" + (results[0].equals(results[1]) ? "" : "  DIFFERENT RESULTS"));
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Value[] values = new Value[n];
+        LValue cons = new EmptyList();
+        for (int i = n - 1; i >= 0; i--) {
+            values[i] = new IValue(i % 100);
+            cons = new NonEmptyList(values[i], cons);
+        }
+        LValue chunked = ChunkedList.of(values);
+
+        report("length", cons, chunked, l -> l.length());
+        report("show", cons, chunked, l -> l.show().length());
+        report("for, tree", cons, chunked, l -> MainEngines.capture(forSum(l)::run));
+        report("for, compiled", cons, chunked, l -> MainEngines.capture(forSum(l)::runCompiled));
+        report("case, tree", cons, chunked, l -> MainEngines.capture(caseSum(l)::run));
+        System.out.println("copyOf: " + ChunkedList.copyOf(cons).show().equals(cons.show()));
+        literals(4, 100000);
+        literals(100, 10000);
+        literals(1000, 1000);
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.function.Supplier;
+
+// Memoization of pure procedures and lambdas (Program.memoize): a doubly
+// recursive Fibonacci procedure with and without memo tables, with tables
+// too small to hold every result, and a lambda that is memoized next to
+// one that is not, because a variable that it captures is assigned.  Last,
+// a lambda that reads a by-ref formal, whose variable the caller assigns
+// under its own name: it must not be memoized, so the output is the same
+// as without memo tables.  The same goes for a procedure that is passed
+// one variable for two by-ref formals, after a call with two variables
+// that held the same values.
+//
+//    $ java MainMemo [n]
+class MainMemo {
+    // procedure fib(n, ref out) {
+    //   if (n < 2) { out = n; }
+    //   else { var a = 0; var b = 0; fib(n - 1, a); fib(n - 2, b); out = a + b; }
+    // }
+    // var r = 0; fib(n, r); print r;
+    static Program fib(int n) {
+        Proc fib = new Proc("fib", new Formal[] {new Formal("n"), new ByRef("out")},
+            new If(new LT(new Var("n"), new Int(2)),
+                   new Assign("out", new Var("n")),
+                   new Seq(new VarDecl("a", new Int(0)),
+                   new Seq(new VarDecl("b", new Int(0)),
+                   new Seq(new Call("fib", new Expr[] {new Minus(new Var("n"), new Int(1)), new Var("a")}),
+                   new Seq(new Call("fib", new Expr[] {new Minus(new Var("n"), new Int(2)), new Var("b")}),
+                           new Assign("out", new Plus(new Var("a"), new Var("b")))))))));
+        return new Program(new Proc[] {fib},
+            new Seq(new VarDecl("r", new Int(0)),
+            new Seq(new Call("fib", new Expr[] {new Int(n), new Var("r")}),
+                    new Print(new Var("r")))));
+    }
+
+    // var k = 10; var cube = \x -> x * x * x; var shift = \x -> x + k;
+    // for (x in [1, 2, 1, 2, 1]) { print cube @ x; print shift @ x; k = k + 1; }
+    static Program lambdas() {
+        Expr list = new Nil();
+        for (int x : new int[] {1, 2, 1, 2, 1}) {
+            list = new Cons(new Int(x), list);
+        }
+        return new Program(
+            new Seq(new VarDecl("k", new Int(10)),
+            new Seq(new VarDecl("cube", new Lambda("x", new Mult(new Var("x"), new Mult(new Var("x"), new Var("x"))))),
+            new Seq(new VarDecl("shift", new Lambda("x", new Plus(new Var("x"), new Var("k")))),
+                    new For("x", list,
+                            new Seq(new Print(new Apply(new Var("cube"), new Var("x"))),
+                            new Seq(new Print(new Apply(new Var("shift"), new Var("x"))),
+                                    new Assign("k", new Plus(new Var("k"), new Int(1))))))))));
+    }
+
+    // procedure mk(ref x, ref out) { out = \y -> x + y; }
+    // var z = 1; var f = 0; mk(z, f); print f @ 1; z = 10; print f @ 1;
+    static Program aliasing() {
+        Proc mk = new Proc("mk", new Formal[] {new ByRef("x"), new ByRef("out")},
+            new Assign("out", new Lambda("y", new Plus(new Var("x"), new Var("y")))));
+        return new Program(new Proc[] {mk},
+            new Seq(new VarDecl("z", new Int(1)),
+            new Seq(new VarDecl("f", new Int(0)),
+            new Seq(new Call("mk", new Expr[] {new Var("z"), new Var("f")}),
+            new Seq(new Print(new Apply(new Var("f"), new Int(1))),
+            new Seq(new Assign("z", new Int(10)),
+                    new Print(new Apply(new Var("f"), new Int(1)))))))));
+    }
+
+    // procedure p(ref a, ref b) { a = a + 1; b = b + 1; }
+    // var u = 0; var w = 0; p(u, w); var x = 0; p(x, x); print x;
+    static Program sharing() {
+        Proc p = new Proc("p", new Formal[] {new ByRef("a"), new ByRef("b")},
+            new Seq(new Assign("a", new Plus(new Var("a"), new Int(1))),
+                    new Assign("b", new Plus(new Var("b"), new Int(1)))));
+        return new Program(new Proc[] {p},
+            new Seq(new VarDecl("u", new Int(0)),
+            new Seq(new VarDecl("w", new Int(0)),
+            new Seq(new Call("p", new Expr[] {new Var("u"), new Var("w")}),
+            new Seq(new VarDecl("x", new Int(0)),
+            new Seq(new Call("p", new Expr[] {new Var("x"), new Var("x")}),
+                    new Print(new Var("x"))))))));
+    }
+
+    // Run prog on the tree and compiled engines with memo tables, and
+    // check that it prints what it does without them:
+    static void aliases(String name, Supplier<Program> prog) {
+        String expected = MainEngines.capture(prog.get()::run);
+        for (boolean compiled : new boolean[] {false, true}) {
+            Program p = prog.get();
+            p.memoize(10);
+            String out = MainEngines.capture(compiled ? p::runCompiled : p::run);
+            System.out.println(name + (compiled ? ", compiled: " : ", tree: ")
+                               + (out.equals(expected) ? "same output" : "DIFFERENT OUTPUT") + ", "
+                               + out.trim().replace('\n', ' '));
+        }
+    }
+
+    // Run a fresh fib(n) on one engine, memoized if capacity > 0:
+    static void time(int n, int capacity, boolean compiled) {
+        Program prog = fib(n);
+        Memo.Stats stats = capacity > 0 ? prog.memoize(capacity) : null;
+        long start = System.nanoTime();
+        String out = MainEngines.capture(compiled ? prog::runCompiled : prog::run).trim();
+        long t = System.nanoTime() - start;
+        System.out.println("fib " + n + (compiled ? ", compiled" : ", tree") + ", "
+                           + (capacity > 0 ? capacity + " entries" : "plain") + ": " + out + ", "
+                           + t / 1000000 + " ms" + (stats != null ? "  (" + stats + ")" : ""));
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 27;
+        for (int capacity : new int[] {0, 1000, 2}) {
+            time(n, capacity, false);
+            time(n, capacity, true);
+        }
+
+        Program prog = lambdas();
+        Memo.Stats stats = prog.memoize(100);
+        prog.run();
+        System.out.println("lambdas: " + stats);
+        aliases("aliasing", MainMemo::aliasing);
+        aliases("sharing", MainMemo::sharing);
+    }
+}
@@ -0,0 +1,54 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+// An output-heavy program, run three ways: printing one line at a time
+// to a stream set up like System.out (what Print used to do), through a
+// buffered Output (see Output.java) on the same kind of stream, and into
+// an Output that captures the text in memory.
+//
+//    $ java MainOutput [lines]
+class MainOutput {
+    // var i = 0; while (i < n) { print i; i = i + 1; }
+    static Program counter(int n) {
+        return new Program(
+            new Seq(new VarDecl("i", new Int(0)),
+                    new While(new LT(new Var("i"), new Int(n)),
+                              new Seq(new Print(new Var("i")),
+                                      new Assign("i", new Plus(new Var("i"), new Int(1)))))));
+    }
+
+    // Like System.out: a small buffer, flushed at every line.
+    static PrintStream devNull() throws IOException {
+        return new PrintStream(new BufferedOutputStream(new FileOutputStream("/dev/null"), 128), true);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Program prog = counter(n);
+        PrintStream lines = devNull(), buffered = devNull();
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                lines.println("Output: " + new IValue(i).show());
+            }
+            long perLine = System.nanoTime() - start;
+
+            prog.setOutput(new Output(buffered));
+            start = System.nanoTime();
+            prog.run();
+            long batched = System.nanoTime() - start;
+
+            Output out = Output.capture();
+            prog.setOutput(out);
+            start = System.nanoTime();
+            prog.run();
+            long captured = System.nanoTime() - start;
+
+            System.out.println(n + " lines: println " + perLine / 1000000 + " ms, buffered "
+                               + batched / 1000000 + " ms, captured " + captured / 1000000 + " ms ("
+                               + out.text().length() + " chars)");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+// Parallel For loops (Program.parallel): a loop with a CPU-heavy body that
+// only assigns its own variables, run one iteration after another and then
+// on pools of different sizes, checking that the output is the same every
+// time; and a loop that adds to an outer variable, which is left alone.
+//
+//    $ java MainParallel [elements] [work]
+class MainParallel {
+    // for (x in [1 .. n]) {
+    //   var i = 0; var t = 0;
+    //   while (i < work) { t = t + i * x; i = i + 1; }
+    //   print t;
+    // }
+    static Program heavy(int n, int work) {
+        Expr list = new Nil();
+        for (int x = n; x > 0; x--) {
+            list = new Cons(new Int(x), list);
+        }
+        return new Program(
+            new For("x", list,
+                new Seq(new VarDecl("i", new Int(0)),
+                new Seq(new VarDecl("t", new Int(0)),
+                new Seq(new While(new LT(new Var("i"), new Int(work)),
+                                  new Seq(new Assign("t", new Plus(new Var("t"), new Mult(new Var("i"), new Var("x")))),
+                                          new Assign("i", new Plus(new Var("i"), new Int(1))))),
+                        new Print(new Var("t")))))));
+    }
+
+    // var s = 0; for (x in [1 .. n]) { s = s + x; print s; }
+    static Program summing(int n) {
+        Expr list = new Nil();
+        for (int x = n; x > 0; x--) {
+            list = new Cons(new Int(x), list);
+        }
+        return new Program(
+            new Seq(new VarDecl("s", new Int(0)),
+                    new For("x", list,
+                            new Seq(new Assign("s", new Plus(new Var("s"), new Var("x"))),
+                                    new Print(new Var("s"))))));
+    }
+
+    static void run(String name, Program prog, int threads, String expected) {
+        prog.parallel(threads);
+        for (int compiled = 0; compiled < 2; compiled++) {
+            Runnable run = compiled == 0 ? prog::run : prog::runCompiled;
+            MainEngines.capture(run); // warm up
+            long start = System.nanoTime();
+            String out = MainEngines.capture(run);
+            long t = System.nanoTime() - start;
+            System.out.println(name + ", " + threads + (threads == 1 ? " thread, " : " threads, ")
+                               + (compiled == 0 ? "tree" : "compiled") + ": " + t / 1000000 + " ms"
+                               + (out.equals(expected) ? "" : "  DIFFERENT OUTPUT"));
+        }
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int work = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors");
+        String expected = MainEngines.capture(heavy(n, work)::run);
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            run("heavy", heavy(n, work), threads, expected);
+        }
+        expected = MainEngines.capture(summing(n)::run);
+        run("summing", summing(n), 4, expected);
+    }
+}
@@ -0,0 +1,85 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+
+// How much memory a list of closures keeps alive (see Lambda.resolve and
+// Frame.capture).  Each call of make builds a big list in a local
+// variable and then adds a closure to fs.  A closure keeps only the
+// variables that its body reads, so one that reads n alone lets the big
+// list go when make returns; one that also reads big keeps every list, as
+// all closures did when they kept the whole frame they were made in.  The
+// heap in use is measured after a full GC, with fs held and then without.
+//
+//    $ java MainRetain [closures] [list size]
+class MainRetain {
+    // procedure make(n, size, ref fs) {
+    //   var big = []; var i = 0;
+    //   while (i < size) { big = cons(i, big); i = i + 1; }
+    //   fs = cons(f, fs);
+    // }
+    // procedure build(count, size, ref fs) {
+    //   var k = 0; while (k < count) { make(k, size, fs); k = k + 1; }
+    // }
+    // var fs = []; build(count, size, fs); print head(fs) @ 1;
+    static Program making(Expr f, int count, int size) {
+        Proc[] procs = {
+            new Proc("make", new Formal[] {new Formal("n"), new Formal("size"), new ByRef("fs")},
+                new Seq(new VarDecl("big", new Nil()),
+                new Seq(new VarDecl("i", new Int(0)),
+                new Seq(new While(new LT(new Var("i"), new Var("size")),
+                                  new Seq(new Assign("big", new Cons(new Var("i"), new Var("big"))),
+                                          new Assign("i", new Plus(new Var("i"), new Int(1))))),
+                        new Assign("fs", new Cons(f, new Var("fs"))))))),
+            new Proc("build", new Formal[] {new Formal("count"), new Formal("size"), new ByRef("fs")},
+                new Seq(new VarDecl("k", new Int(0)),
+                        new While(new LT(new Var("k"), new Var("count")),
+                                  new Seq(new Call("make", new Expr[] {new Var("k"), new Var("size"), new Var("fs")}),
+                                          new Assign("k", new Plus(new Var("k"), new Int(1)))))))
+        };
+        return new Program(procs,
+            new Seq(new VarDecl("fs", new Nil()),
+            new Seq(new Call("build", new Expr[] {new Int(count), new Int(size), new Var("fs")}),
+                    new Print(new Apply(new Head(new Var("fs")), new Int(1))))));
+    }
+
+    // \x -> x + n
+    static Expr small() {
+        return new Lambda("x", new Plus(new Var("x"), new Var("n")));
+    }
+
+    // \x -> x + n + 0 * head(big)
+    static Expr keeping() {
+        return new Lambda("x", new Plus(new Plus(new Var("x"), new Var("n")),
+                                        new Mult(new Int(0), new Head(new Var("big")))));
+    }
+
+    static long used(MemoryMXBean memory) {
+        for (int i = 0; i < 3; i++) {
+            memory.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    // The heap that the closures built by build keep alive: what is in use
+    // while they are held, less what is in use once they are dropped.
+    static long retained(Program prog, int count, int size) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Value[] out = prog.call("build", new IValue(count), new IValue(size), new EmptyList());
+        long held = used(memory);
+        Reference.reachabilityFence(out);
+        out = null;
+        return held - used(memory);
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        System.out.printf("%d closures, reads n:         %8.1f KB retained%n", count,
+                          retained(making(small(), count, size), count, size) / 1024.0);
+        System.out.printf("%d closures, reads n and big: %8.1f KB retained%n", count,
+                          retained(making(keeping(), count, size), count, size) / 1024.0);
+        MainEngines.compare("reads n", making(small(), count, size), 3);
+        MainEngines.compare("reads n and big", making(keeping(), count, size), 3);
+    }
+}
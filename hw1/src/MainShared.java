@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// One Program run by many threads at once.  64 tasks (virtual threads
+// where the JDK has them, see Batch.executor) are released together on a
+// fresh program, so they race to resolve and compile it as well as to run
+// it; each prints to an Output of its own, and must print exactly what a
+// run of a private copy prints.  Then 64 tasks call the same procedure of
+// one program with different arguments (Program.call), with and without
+// memo tables, and check the results.
+//
+//    $ java MainShared [rounds]
+class MainShared {
+    static final int TASKS = 64;
+
+    interface Task {
+        String run(Program prog, int i);
+    }
+
+    // Run task(prog, i) for i < TASKS, all starting at the same moment,
+    // and return the number of tasks whose result was not expected[i]:
+    static int race(Program prog, Task task, String[] expected) {
+        ExecutorService executor = Batch.executor(TASKS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int i = 0; i < TASKS; i++) {
+                int n = i;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return task.run(prog, n);
+                }));
+            }
+            start.countDown();
+            int wrong = 0;
+            for (int i = 0; i < TASKS; i++) {
+                String got = futures.get(i).get();
+                if (!got.equals(expected[i])) {
+                    if (wrong++ == 0) {
+                        System.out.println("  task " + i + ": expected " + expected[i] + ", got " + got);
+                    }
+                }
+            }
+            return wrong;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Each task runs the program on one of the four engines:
+    static String runOn(Program prog, int i) {
+        Output out = Output.capture();
+        Runnable[] engines = {prog::run, prog::runCompiled, prog::runBytecode, prog::runJvm};
+        out.run(engines[i % engines.length]);
+        return out.text();
+    }
+
+    static String fib(Program prog, int i) {
+        Value[] results = prog.call("fib", new IValue(i % 20), new IValue(0));
+        return String.valueOf(results[1].asInt());
+    }
+
+    static void check(String name, int wrong) {
+        System.out.println(name + ": " + (wrong == 0 ? "ok" : wrong + " of " + TASKS + " wrong"));
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        String[] names = {"factorial", "procs", "closures", "counting", "chaining"};
+        for (int round = 0; round < rounds; round++) {
+            Program[][] pairs = {
+                {MainEngines.factorial(10), MainEngines.factorial(10)},
+                {MainEngines.procs(10), MainEngines.procs(10)},
+                {MainEngines.closures(10), MainEngines.closures(10)},
+                {MainTail.counting(1000), MainTail.counting(1000)},
+                {MainTail.chaining(100), MainTail.chaining(100)}
+            };
+            for (int k = 0; k < pairs.length; k++) {
+                String[] expected = new String[TASKS];
+                for (int i = 0; i < TASKS; i++) {
+                    expected[i] = runOn(pairs[k][0], 0);
+                }
+                check("round " + round + ", " + names[k], race(pairs[k][1], MainShared::runOn, expected));
+            }
+
+            String[] fibs = new String[TASKS];
+            int[] f = new int[20];
+            for (int i = 0; i < f.length; i++) {
+                f[i] = i < 2 ? i : f[i - 1] + f[i - 2];
+            }
+            for (int i = 0; i < TASKS; i++) {
+                fibs[i] = String.valueOf(f[i % 20]);
+            }
+            check("round " + round + ", fib", race(MainMemo.fib(0), MainShared::fib, fibs));
+            Program memoized = MainMemo.fib(0);
+            Memo.Stats stats = memoized.memoize(8);
+            check("round " + round + ", fib memoized", race(memoized, MainShared::fib, fibs));
+            System.out.println("  (" + stats + ")");
+        }
+    }
+}
@@ -0,0 +1,58 @@
+// Nodes that specialize themselves as they run (see Assign.exec and
+// LT.evalBool), on the factorial loop from Main.java: "t = t * i" becomes
+// a multiply in place, "i = i + 1" an increment of the local, and
+// "i < limit" a compare of the local with a constant.  The same program is
+// timed on the tree-walking engine with its nodes kept general
+// (Program.generic) and with them specialized.  Then a variable changes
+// type under a specialized node, which must fall back and fail just as
+// the general node does.
+//
+//    $ java MainSpecial [limit] [repetitions]
+class MainSpecial {
+    static Program generic(Program prog) {
+        prog.generic();
+        return prog;
+    }
+
+    // var i = 0; var k = 0;
+    // while (k < 3) { i = i + 1; k = k + 1; if (k == 2) { i = true; } else { skip; } }
+    // print i;
+    static Program changing() {
+        return new Program(
+            new Seq(new VarDecl("i", new Int(0)),
+            new Seq(new VarDecl("k", new Int(0)),
+            new Seq(new While(new LT(new Var("k"), new Int(3)),
+                              new Seq(new Assign("i", new Plus(new Var("i"), new Int(1))),
+                              new Seq(new Assign("k", new Plus(new Var("k"), new Int(1))),
+                                      new If(new EqEq(new Var("k"), new Int(2)),
+                                             new Assign("i", new Bool(true)),
+                                             new Skip())))),
+                    new Print(new Var("i"))))));
+    }
+
+    static String run(Program prog) {
+        try {
+            return MainEngines.capture(prog::run);
+        } catch (InterpreterException e) {
+            return e.getMessage();
+        }
+    }
+
+    public static void main(String[] args) {
+        int limit = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int reps = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Program plain = generic(MainEngines.factorial(limit)), special = MainEngines.factorial(limit);
+        System.out.println("factorial: " + (run(plain).equals(run(special)) ? "same output" : "DIFFERENT OUTPUT"));
+        long[] t = new long[2];
+        for (int round = 0; round < 2; round++) {   // the first round warms up
+            t[0] = MainEngines.time(() -> MainEngines.capture(plain::run), reps);
+            t[1] = MainEngines.time(() -> MainEngines.capture(special::run), reps);
+        }
+        System.out.println("factorial " + limit + ", tree: general " + t[0] / 1000 + " us, specialized "
+                           + t[1] / 1000 + " us  (" + String.format("%.2f", t[0] / (double) t[1]) + "x)");
+
+        String a = run(generic(changing())), b = run(changing());
+        System.out.println("changing type: " + (a.equals(b) ? "same output" : "DIFFERENT OUTPUT") + ", " + b.trim());
+    }
+}
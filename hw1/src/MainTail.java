@@ -0,0 +1,115 @@
+// Deep recursion in tail position.  The tree-walking engine runs tail
+// calls from a loop in Proc.enter and FValue.enter (see TailCall and
+// TailApply), so these programs need no more Java stack than a while
+// loop does.  Compiled code and the generated JVM classes return their
+// tail calls to a loop in the same way (see TailCode), and the VM reuses
+// the caller's call record, so every engine runs them, memoized or
+// with a pool for parallel loops as well.
+//
+//    $ java MainTail [depth]
+class MainTail {
+    // procedure count(n, ref out) {
+    //   if (0 < n) { out = out + 1; count(n - 1, out); } else { out = out; }
+    // }
+    static Proc count() {
+        return new Proc("count", new Formal[] {new Formal("n"), new ByRef("out")},
+            new If(new LT(new Int(0), new Var("n")),
+                   new Seq(new Assign("out", new Plus(new Var("out"), new Int(1))),
+                           new Call("count", new Expr[] {new Minus(new Var("n"), new Int(1)),
+                                                         new Var("out")})),
+                   new Assign("out", new Var("out"))));
+    }
+
+    // procedure sum(list, ref acc) {
+    //   case list of [] -> acc = acc; | cons(h, t) -> acc = acc + h; sum(t, acc);
+    // }
+    static Proc sum() {
+        return new Proc("sum", new Formal[] {new Formal("list"), new ByRef("acc")},
+            new Case(new Var("list"),
+                     new Assign("acc", new Var("acc")),
+                     "h", "t",
+                     new Seq(new Assign("acc", new Plus(new Var("acc"), new Var("h"))),
+                             new Call("sum", new Expr[] {new Var("t"), new Var("acc")}))));
+    }
+
+    // var out = 0; count(depth, out); print out;
+    static Program counting(int depth) {
+        return new Program(new Proc[] {count()},
+            new Seq(new VarDecl("out", new Int(0)),
+            new Seq(new Call("count", new Expr[] {new Int(depth), new Var("out")}),
+                    new Print(new Var("out")))));
+    }
+
+    // The same count, as a loop:
+    static Program looping(int depth) {
+        return new Program(
+            new Seq(new VarDecl("out", new Int(0)),
+            new Seq(new VarDecl("n", new Int(depth)),
+            new Seq(new While(new LT(new Int(0), new Var("n")),
+                              new Seq(new Assign("out", new Plus(new Var("out"), new Int(1))),
+                                      new Assign("n", new Minus(new Var("n"), new Int(1))))),
+                    new Print(new Var("out"))))));
+    }
+
+    // var l = []; var i = 0; while (i < length) { i = i + 1; l = cons(1, l); }
+    // var acc = 0; sum(l, acc); print acc;
+    static Program walking(int length) {
+        return new Program(new Proc[] {sum()},
+            new Seq(new VarDecl("l", new Nil()),
+            new Seq(new VarDecl("i", new Int(0)),
+            new Seq(new While(new LT(new Var("i"), new Int(length)),
+                              new Seq(new Assign("i", new Plus(new Var("i"), new Int(1))),
+                                      new Assign("l", new Cons(new Int(1), new Var("l"))))),
+            new Seq(new VarDecl("acc", new Int(0)),
+            new Seq(new Call("sum", new Expr[] {new Var("l"), new Var("acc")}),
+                    new Print(new Var("acc"))))))));
+    }
+
+    // var f = \x -> x; var i = 0;
+    // while (i < length) { var g = f; f = \x -> g @ (x + 1); i = i + 1; }
+    // print f @ 0;
+    static Program chaining(int length) {
+        return new Program(
+            new Seq(new VarDecl("f", new Lambda("x", new Var("x"))),
+            new Seq(new VarDecl("i", new Int(0)),
+            new Seq(new While(new LT(new Var("i"), new Int(length)),
+                              new Seq(new VarDecl("g", new Var("f")),
+                              new Seq(new Assign("f", new Lambda("x", new Apply(new Var("g"),
+                                                         new Plus(new Var("x"), new Int(1))))),
+                                      new Assign("i", new Plus(new Var("i"), new Int(1)))))),
+                    new Print(new Apply(new Var("f"), new Int(0)))))));
+    }
+
+    static void attempt(String name, Runnable run) {
+        System.out.print(name + ": ");
+        long start = System.nanoTime();
+        try {
+            run.run();
+            System.out.println("  " + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (StackOverflowError e) {
+            System.out.println("StackOverflowError");
+        }
+    }
+
+    public static void main(String[] args) {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        for (int i = 0; i < 3; i++) {
+            attempt("count, tree", counting(depth)::run);
+            attempt("loop, tree", looping(depth)::run);
+        }
+        attempt("count, compiled", counting(depth)::runCompiled);
+        attempt("count, bytecode", counting(depth)::runBytecode);
+        attempt("count, jvm", counting(depth)::runJvm);
+        Program memoized = counting(depth), parallel = counting(depth);
+        memoized.memoize(100);
+        parallel.parallel(4);
+        attempt("count, compiled, memoized", memoized::runCompiled);
+        attempt("count, compiled, parallel", parallel::runCompiled);
+        attempt("sum, tree", walking(depth)::run);
+        attempt("sum, compiled", walking(depth)::runCompiled);
+        attempt("sum, bytecode", walking(depth)::runBytecode);
+        attempt("sum, jvm", walking(depth)::runJvm);
+        attempt("chain, tree", chaining(depth)::run);
+        attempt("chain, compiled", chaining(depth)::runCompiled);
+    }
+}
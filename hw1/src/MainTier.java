@@ -0,0 +1,51 @@
+import java.util.ArrayList;
+
+// Tiered execution (see Tiers.java) on the programs of MainEngines and
+// MainTail.  Each program is run on the tree-walking engine as it is, with
+// tiers, and on the closure-compiled engine; all of them must print the
+// same thing.  The transitions that the tiered run made are listed below
+// it.  "sum" and "count" make tail calls, which still run in constant
+// Java stack once they are compiled.  The long program has no loops, so
+// nothing in it is compiled.
+//
+//    $ java MainTier [threshold] [repetitions]
+class MainTier {
+    static void compare(String name, Program plain, Program tiered, int threshold, int reps) {
+        ArrayList<String> log = new ArrayList<String>();
+        Tiers tiers = tiered.tier(threshold, (node, from, to, why) ->
+                                  log.add("    " + node + ": " + from + " -> " + to + " (" + why + ")"));
+        String expected = MainEngines.capture(plain::run);
+        String a = MainEngines.capture(tiered::run), b = MainEngines.capture(plain::runCompiled);
+        System.out.println(name + ": " + (a.equals(expected) && b.equals(expected) ? "same output" : "DIFFERENT OUTPUT"));
+        for (String line : log) {
+            System.out.println(line);
+        }
+        System.out.println("    " + tiers);
+
+        Runnable[] runs = {plain::run, tiered::run, plain::runCompiled};
+        String[] engines = {"tree", "tiered", "compiled"};
+        long[] times = new long[runs.length];
+        for (int i = 0; i < runs.length; i++) {
+            Runnable run = runs[i];
+            MainEngines.time(() -> MainEngines.capture(run), reps);  // warm up
+            times[i] = MainEngines.time(() -> MainEngines.capture(run), reps);
+        }
+        StringBuilder line = new StringBuilder("  ");
+        for (int i = 0; i < runs.length; i++) {
+            line.append(String.format("%s %d us  ", engines[i], times[i] / 1000));
+        }
+        System.out.println(line + String.format("(tiered %.2fx tree)", times[0] / (double) times[1]));
+    }
+
+    public static void main(String[] args) {
+        int threshold = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int reps = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        compare("factorial loop", MainEngines.factorial(1000000), MainEngines.factorial(1000000), threshold, reps);
+        compare("procedure calls", MainEngines.procs(1000), MainEngines.procs(1000), threshold, reps);
+        compare("closures", MainEngines.closures(100000), MainEngines.closures(100000), threshold, reps);
+        compare("walking", MainTail.walking(100000), MainTail.walking(100000), threshold, reps);
+        compare("counting", MainTail.counting(100000), MainTail.counting(100000), threshold, reps);
+        compare("long program", MainEngines.longProgram(10000), MainEngines.longProgram(10000), threshold, reps);
+    }
+}
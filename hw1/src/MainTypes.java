@@ -0,0 +1,113 @@
+// Static type checking (Program.typecheck): well-typed programs pass and
+// are then run on every engine, and ill-typed ones are rejected with
+// their errors before anything runs.
+//
+//    $ java MainTypes
+class MainTypes {
+    static void check(String name, Program prog) {
+        java.util.ArrayList<String> errors = prog.typecheck();
+        if (errors.isEmpty()) {
+            System.out.print(name + ": ok, " + MainEngines.capture(prog::run));
+            String[] others = {
+                MainEngines.capture(prog::runCompiled),
+                MainEngines.capture(prog::runBytecode),
+                MainEngines.capture(prog::runJvm)
+            };
+            for (String other : others) {
+                if (!other.equals(MainEngines.capture(prog::run))) {
+                    System.out.println("  DIFFERENT OUTPUT: " + other);
+                }
+            }
+        } else {
+            System.out.println(name + ": rejected");
+            for (String e : errors) {
+                System.out.println("  " + e);
+            }
+        }
+    }
+
+    // The program from MainDT: i is a bool, then an int.
+    static Program changing() {
+        return new Program(
+            new Seq(new VarDecl("i", new EqEq(new Int(0), new Int(0))),
+            new Seq(new If(new Var("i"),
+                           new Assign("i", new Plus(new Int(41), new Int(1))),
+                           new Print(new Var("i"))),
+                    new Print(new Var("i")))));
+    }
+
+    // var l = cons(1, []); print head(l) + tail(l); print y;
+    static Program mixed() {
+        return new Program(
+            new Seq(new VarDecl("l", new Cons(new Int(1), new Nil())),
+            new Seq(new Print(new Plus(new Head(new Var("l")), new Tail(new Var("l")))),
+                    new Print(new Var("y")))));
+    }
+
+    // var self = \x -> x @ x; count(1); for (x in 3) { print x; }
+    static Program misc() {
+        return new Program(new Proc[] {MainTail.count()},
+            new Seq(new VarDecl("self", new Lambda("x", new Apply(new Var("x"), new Var("x")))),
+            new Seq(new Call("count", new Expr[] {new Int(1)}),
+                    new For("x", new Int(3), new Print(new Var("x"))))));
+    }
+
+    // var l = []; var i = 0; while (i < n) { l = cons(i, l); i = i + 1; }
+    // var s = 0; for (x in l) { s = s + x; } print s;
+    static Program building(int n) {
+        return new Program(
+            new Seq(new VarDecl("l", new Nil()),
+            new Seq(new VarDecl("i", new Int(0)),
+            new Seq(new While(new LT(new Var("i"), new Int(n)),
+                              new Seq(new Assign("l", new Cons(new Var("i"), new Var("l"))),
+                                      new Assign("i", new Plus(new Var("i"), new Int(1))))),
+            new Seq(new VarDecl("s", new Int(0)),
+            new Seq(new For("x", new Var("l"), new Assign("s", new Plus(new Var("s"), new Var("x")))),
+                    new Print(new Var("s"))))))));
+    }
+
+    // proc p(xs) { for x in xs print x; }  p([1]);
+    static Program walkingProc() {
+        Proc[] procs = {
+            new Proc("p", new Formal[] {new Formal("xs")}, new For("x", new Var("xs"), new Print(new Var("x"))))
+        };
+        return new Program(procs, new Call("p", new Expr[] {new Cons(new Int(1), new Nil())}));
+    }
+
+    // A checked program can still be handed any value through
+    // Program.call, which must fail as the language does, not the JVM:
+    static void called() {
+        Program prog = walkingProc();
+        Value list = Values.list(new Value[] {new IValue(1), new IValue(2)}, new EmptyList());
+        System.out.println("walking proc: " + (prog.typecheck().isEmpty() ? "ok" : "rejected")
+                           + ", called with 3: " + call(prog, new IValue(3))
+                           + ", called with [1, 2]: " + call(prog, list));
+    }
+
+    static String call(Program prog, Value arg) {
+        Output out = Output.capture();
+        try {
+            out.run(() -> prog.call("p", arg));
+            return "ran, " + out.text().trim().replace('\n', ' ');
+        } catch (InterpreterException e) {
+            return e.getMessage();
+        } catch (RuntimeException e) {
+            return e.toString();
+        }
+    }
+
+    public static void main(String[] args) {
+        check("factorial", MainEngines.factorial(10));
+        check("procs", MainEngines.procs(10));
+        check("closures", MainEngines.closures(10));
+        check("counting", MainTail.counting(10));
+        check("walking", MainTail.walking(10));
+        check("chaining", MainTail.chaining(10));
+        check("changing", changing());
+        check("mixed", mixed());
+        check("misc", misc());
+
+        check("building", building(10));
+        called();
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A bounded table of the results of a pure procedure or lambda (see
+// Program.memoize), keyed on the values of its arguments.  Only int and
+// bool values make keys: a call with any other argument is run as usual
+// and not remembered.  When the table is full, the entry that was used
+// least recently is dropped.  All the tables of a program count their
+// hits, misses and evictions in the same Stats.  Tables may be shared by
+// the threads of a parallel For, so they are used under the lock of their
+// Stats.
+class Memo {
+    static class Stats {
+        long hits, misses, evictions;
+
+        public String toString() {
+            return "hits " + hits + ", misses " + misses + ", evictions " + evictions;
+        }
+    }
+
+    private int capacity;
+    private Stats stats;
+    private LinkedHashMap<Object, Object> table;   // made on the first put
+
+    Memo(int capacity, Stats stats) {
+        this.capacity = capacity;
+        this.stats = stats;
+    }
+
+    // An empty table of the same size, for each closure that a memoized
+    // lambda makes:
+    Memo fresh() {
+        return new Memo(capacity, stats);
+    }
+
+    // The key for a value, or null if it cannot be one:
+    static Object key(Value val) {
+        if (val instanceof IValue) {
+            return val.asInt();
+        } else if (val instanceof BValue) {
+            return val.asBool();
+        }
+        return null;
+    }
+
+    // The key for the values in the first n slots of a frame.  A lazy
+    // formal that has not been read yet makes no key, since reading it
+    // here would run an argument that the call might never use.  Nor do
+    // two by-ref formals that are the same variable: the results are
+    // written back one formal at a time, so the last would overwrite the
+    // others, where the call itself might have assigned both.
+    static Object key(Frame frame, int n) {
+        Object[] keys = new Object[n];
+        for (int i = 0; i < n; i++) {
+            Env cell = frame.get(i);
+            if (cell instanceof ThunkEnv && !((ThunkEnv) cell).forced()) {
+                return null;
+            }
+            if (cell instanceof RefEnv) {
+                for (int j = 0; j < i; j++) {
+                    Env other = frame.get(j);
+                    if (other instanceof RefEnv && ((RefEnv) other).target() == ((RefEnv) cell).target()) {
+                        return null;
+                    }
+                }
+            }
+            keys[i] = key(cell.getValue());
+            if (keys[i] == null) {
+                return null;
+            }
+        }
+        return Arrays.asList(keys);
+    }
+
+    Object get(Object key) {
+        synchronized (stats) {
+            Object val = table != null ? table.get(key) : null;
+            if (val != null) {
+                stats.hits++;
+            } else {
+                stats.misses++;
+            }
+            return val;
+        }
+    }
+
+    void put(Object key, Object val) {
+        synchronized (stats) {
+            if (table == null) {
+                table = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+                    protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                        if (size() > capacity) {
+                            stats.evictions++;
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+            }
+            table.put(key, val);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// Everything the interpreter writes (Print statements, the text of a
+// program, and error messages) goes through the current thread's Output
+// rather than straight to System.out.  Text is collected in a buffer and
+// only handed to the sink, in one piece, when the buffer is full or when a
+// program finishes, normally or with an InterpreterException.  An Output
+// made by capture() never flushes: it keeps everything in memory for
+// text() to return.
+// Outside of run(), as when a statement is executed directly, every line
+// is flushed as soon as it is written, just as System.out would do.
+class Output {
+    static final int SIZE = 1 << 16;
+
+    private static final ThreadLocal<Output> CURRENT = ThreadLocal.withInitial(() -> new Output(null));
+
+    private Appendable sink;        // null: whatever System.out is at flush time
+    private StringBuilder buf = new StringBuilder();
+    private boolean capturing = false;
+    private int running = 0;        // how many calls of run() are active
+
+    Output(Appendable sink) {
+        this.sink = sink;
+    }
+
+    static Output capture() {
+        Output out = new Output(null);
+        out.capturing = true;
+        return out;
+    }
+
+    static Output current() {
+        return CURRENT.get();
+    }
+
+    // Run code with this as the current output, and flush afterwards,
+    // however code finishes:
+    void run(Runnable code) {
+        Output saved = CURRENT.get();
+        CURRENT.set(this);
+        running++;
+        try {
+            code.run();
+        } finally {
+            running--;
+            flush();
+            CURRENT.set(saved);
+        }
+    }
+
+    void print(String s) {
+        buf.append(s);
+        if (buf.length() >= SIZE) {
+            flush();
+        }
+    }
+
+    void println(String s) {
+        buf.append(s).append('\n');
+        if (buf.length() >= SIZE || running == 0) {
+            flush();
+        }
+    }
+
+    void println() {
+        println("");
+    }
+
+    void indent(int ind) {
+        for (int i = 0; i < ind; i++) {
+            buf.append(' ');
+        }
+    }
+
+    void flush() {
+        if (capturing) {
+            return;
+        }
+        Appendable out = sink != null ? sink : System.out;
+        try {
+            out.append(buf);
+            if (out instanceof Flushable) {
+                ((Flushable) out).flush();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buf.setLength(0);
+    }
+
+    // Everything captured so far:
+    String text() {
+        return buf.toString();
+    }
+}
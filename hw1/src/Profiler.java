@@ -0,0 +1,248 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+// Counts how often each node of a program runs and how long it takes.
+// Program.profile(p) makes a copy of the program in which every Expr and
+// Stmt (and the body of every Proc and Lambda) is wrapped in a
+// ProfiledExpr or ProfiledStmt that reports to p; the original program
+// is not touched, so there is no cost when profiling is off.
+//
+// Nodes are grouped by their text: show() for expressions, and the first
+// line that print() writes for statements.  Each entry records the number
+// of runs, the total time, and the self time, which leaves out the time
+// spent in the other profiled nodes that it ran.
+class Profiler {
+    static class Entry {
+        String text;
+        long count, total, self;
+
+        Entry(String text) {
+            this.text = text;
+        }
+    }
+
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private long inner = 0;     // time in profiled nodes run by the current one
+
+    Entry entry(String text) {
+        Entry e = entries.get(text);
+        if (e == null) {
+            e = new Entry(text);
+            entries.put(text, e);
+        }
+        return e;
+    }
+
+    Expr wrap(Expr expr, String text) {
+        return new ProfiledExpr(this, entry(text), expr);
+    }
+
+    Stmt wrap(Stmt stmt, String text) {
+        return new ProfiledStmt(this, entry(text), stmt);
+    }
+
+    Stmt wrap(Stmt stmt, Stmt original) {
+        return wrap(stmt, original.text());
+    }
+
+    // Called by a wrapper as it starts and finishes running its node:
+    long enter() {
+        long saved = inner;
+        inner = 0;
+        return saved;
+    }
+
+    void leave(Entry e, long saved, long start) {
+        long t = System.nanoTime() - start;
+        e.count++;
+        e.total += t;
+        e.self += t - inner;
+        inner = saved + t;
+    }
+
+    // Print the n entries with the most self time:
+    void report(int n) {
+        ArrayList<Entry> hot = new ArrayList<Entry>(entries.values());
+        hot.sort((a, b) -> Long.compare(b.self, a.self));
+        Output out = Output.current();
+        out.run(() -> {
+            out.println("Profile (hottest " + Math.min(n, hot.size()) + " of " + hot.size() + " nodes):");
+            out.println(String.format("%12s %10s %10s  %s", "count", "self ms", "total ms", "node"));
+            for (int i = 0; i < n && i < hot.size(); i++) {
+                Entry e = hot.get(i);
+                out.println(String.format("%12d %10.3f %10.3f  %s", e.count, e.self / 1e6,
+                                          e.total / 1e6, e.text));
+            }
+        });
+    }
+
+    // Print the report when the JVM exits, even after an error:
+    void reportAtExit(int n) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> report(n)));
+    }
+}
+
+class ProfiledExpr extends Expr {
+    private Profiler p;
+    private Profiler.Entry entry;
+    private Expr e;
+
+    ProfiledExpr(Profiler p, Profiler.Entry entry, Expr e) {
+        this.p = p;
+        this.entry = entry;
+        this.e = e;
+    }
+
+    Value eval(Env env) {
+        long saved = p.enter(), start = System.nanoTime();
+        try {
+            return e.eval(env);
+        } finally {
+            p.leave(entry, saved, start);
+        }
+    }
+
+    int evalInt(Env env) {
+        long saved = p.enter(), start = System.nanoTime();
+        try {
+            return e.evalInt(env);
+        } finally {
+            p.leave(entry, saved, start);
+        }
+    }
+
+    boolean evalBool(Env env) {
+        long saved = p.enter(), start = System.nanoTime();
+        try {
+            return e.evalBool(env);
+        } finally {
+            p.leave(entry, saved, start);
+        }
+    }
+
+    Env evalRef(Env env) {
+        long saved = p.enter(), start = System.nanoTime();
+        try {
+            return e.evalRef(env);
+        } finally {
+            p.leave(entry, saved, start);
+        }
+    }
+
+    RefCode compileRef(Program prog) {
+        return this::evalRef;
+    }
+
+    String show() {
+        return e.show();
+    }
+
+    void resolve(Scope sc) {
+        e.resolve(sc);
+    }
+
+    void markTail() {
+        e.markTail();
+    }
+
+    Expr profile(Profiler p) {
+        return e.profile(p);
+    }
+
+    Expr fold(Folder f) {
+        return new ProfiledExpr(p, entry, f.fold(e));
+    }
+
+    Type check(Checker c) {
+        return e.check(c);
+    }
+
+    void effects(Effects effects) {
+        e.effects(effects);
+    }
+
+    void emit(Assembler a) {
+        e.emit(a);
+    }
+
+    void emitInt(Assembler a) {
+        e.emitInt(a);
+    }
+
+    void emitBool(Assembler a) {
+        e.emitBool(a);
+    }
+
+    void emitRef(Assembler a) {
+        e.emitRef(a);
+    }
+
+    void encode(Encoder enc) {
+        e.encode(enc);
+    }
+}
+
+class ProfiledStmt extends Stmt {
+    private Profiler p;
+    private Profiler.Entry entry;
+    private Stmt s;
+
+    ProfiledStmt(Profiler p, Profiler.Entry entry, Stmt s) {
+        this.p = p;
+        this.entry = entry;
+        this.s = s;
+    }
+
+    Env exec(Program prog, Env env) {
+        long saved = p.enter(), start = System.nanoTime();
+        try {
+            return s.exec(prog, env);
+        } finally {
+            p.leave(entry, saved, start);
+        }
+    }
+
+    void print(int ind) {
+        s.print(ind);
+    }
+
+    void resolve(Scope sc) {
+        s.resolve(sc);
+    }
+
+    boolean declares() {
+        return s.declares();
+    }
+
+    boolean markTail() {
+        return s.markTail();
+    }
+
+    TailCode compileTail(Program prog) {
+        return env -> exec(prog, env);
+    }
+
+    Stmt profile(Profiler p) {
+        return s.profile(p);
+    }
+
+    Stmt fold(Folder f) {
+        return new ProfiledStmt(p, entry, f.fold(s));
+    }
+
+    void check(Checker c) {
+        s.check(c);
+    }
+
+    void effects(Effects e) {
+        s.effects(e);
+    }
+
+    void emit(Assembler a) {
+        s.emit(a);
+    }
+
+    void encode(Encoder e) {
+        s.encode(e);
+    }
+}
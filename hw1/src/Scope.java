@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+
+// A Scope is the resolve-time picture of a Frame: it hands out a slot for
+// each variable declared in the frame and turns every variable reference
+// into a (depth, slot) pair, where depth counts the frames to walk up.
+//
+// Statements that open a nested block without needing a frame of their own
+// (if branches, case alternatives) use mark() and release() so that their
+// declarations go out of scope again.  Slots are never reused, because a
+// lazy argument (see ThunkEnv) may still be holding on to the frame.
+//
+// The outermost scope of a program or procedure knows the Program, so that
+// calls can be linked to their procedures as they are resolved.
+class Scope {
+    private Scope up;
+    private Program prog;
+    private ArrayList<String> names = new ArrayList<String>();
+    private ArrayList<Integer> slots = new ArrayList<Integer>();
+    private int size = 0;
+
+    Scope(Scope up) {
+        this.up = up;
+        this.prog = up.prog;
+    }
+
+    Scope(Program prog) {
+        this.prog = prog;
+    }
+
+    // The procedure that a call of name with arity actuals will run (see
+    // Program.link), or null if there is none:
+    Proc link(String name, int arity) {
+        return prog.link(name, arity);
+    }
+
+    // A scope for the frame that a closure keeps (see Frame.capture),
+    // which has nothing above it:
+    Scope capture() {
+        return new Scope(prog);
+    }
+
+    // Should loops and calls count their steps (see Program.meter)?
+    boolean metered() {
+        return prog.metered();
+    }
+
+    // May nodes specialize themselves as they run (see Program.generic)?
+    boolean specializes() {
+        return prog.specializes();
+    }
+
+    // How hot code is compiled as it runs (see Program.tier), or null:
+    Tiers tiers() {
+        return prog.tiers();
+    }
+
+    int declare(String name) {
+        names.add(name);
+        slots.add(size);
+        return size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int mark() {
+        return names.size();
+    }
+
+    void release(int mark) {
+        while (names.size() > mark) {
+            names.remove(names.size() - 1);
+            slots.remove(slots.size() - 1);
+        }
+    }
+
+    // Returns the number of frames between this scope and the one that
+    // binds name, or -1 if name is not in scope at all.
+    int depth(String name) {
+        int depth = 0;
+        for (Scope sc = this; sc != null; sc = sc.up) {
+            if (sc.names.lastIndexOf(name) >= 0) {
+                return depth;
+            }
+            depth++;
+        }
+        return -1;
+    }
+
+    int slot(String name) {
+        for (Scope sc = this; sc != null; sc = sc.up) {
+            int i = sc.names.lastIndexOf(name);
+            if (i >= 0) {
+                return sc.slots.get(i);
+            }
+        }
+        return -1;
+    }
+}
@@ -1,3 +1,15 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
 //____________________________________________________________________________
 // Expr ::= Var
 //        |  Int
@@ -9,44 +21,225 @@ abstract class Expr {
 
     abstract String show();
 
+    // Assign frame slots to the variables that this expression mentions.
+    abstract void resolve(Scope sc);
+
+    // Called on the body of a lambda: an Apply here is a tail call.
+    void markTail() {
+    }
+
+    // A copy of this expression with every node wrapped for p to time (see
+    // Profiler.java).  Leaves that hold no state are shared with the copy.
+    Expr profile(Profiler p) {
+        return p.wrap(this, show());
+    }
+
+    // A copy of this expression with constants folded (see Folder.java).
+    // Leaves are returned as they are.
+    Expr fold(Folder f) {
+        return this;
+    }
+
+    // Infer the type of this expression (see Checker.java), and report
+    // each use of a value that does not fit.
+    abstract Type check(Checker c);
+
+    // Record what this expression reads (see Effects.java).  Leaves that
+    // mention no variable have nothing to record.
+    void effects(Effects e) {
+    }
+
+    // Unboxed entry points, for callers that only want an int or a boolean.
+    // Arithmetic and comparisons override these so that intermediate
+    // results never get wrapped in an IValue or BValue.
+    int evalInt(Env env) {
+        return eval(env).asInt();
+    }
+
+    boolean evalBool(Env env) {
+        return eval(env).asBool();
+    }
+
     Env evalRef(Env env) {
         // Store the expression in a new ValEnv and return
         // that as the reference:
         return new ValEnv("", eval(env), null);
     }
+
+    // A specialized form of assigning this expression to the local at
+    // (depth, slot), or null if there is none (see Assign.exec).  The form
+    // returns false, having changed nothing, if the local does not hold an
+    // int.
+    BoolCode assignTo(int depth, int slot) {
+        return null;
+    }
+
+    // Closure compilation (see Code.java).  Expressions without a compiled
+    // form of their own are run by their eval() method.
+    ValueCode compile(Program prog) {
+        return this::eval;
+    }
+
+    IntCode compileInt(Program prog) {
+        ValueCode c = compile(prog);
+        return env -> c.eval(env).asInt();
+    }
+
+    BoolCode compileBool(Program prog) {
+        ValueCode c = compile(prog);
+        return env -> c.eval(env).asBool();
+    }
+
+    RefCode compileRef(Program prog) {
+        ValueCode c = compile(prog);
+        return env -> new ValEnv("", c.eval(env), null);
+    }
+
+    // Bytecode (see Bytecode.java): emit code that leaves the value of
+    // this expression on the object stack.  The other variants leave an
+    // int or boolean on the int stack, or a cell for a by-ref formal.
+    abstract void emit(Assembler a);
+
+    void emitInt(Assembler a) {
+        emit(a);
+        a.emit(Bytecode.UNBOXINT);
+    }
+
+    void emitBool(Assembler a) {
+        emit(a);
+        a.emit(Bytecode.UNBOXBOOL);
+    }
+
+    void emitRef(Assembler a) {
+        emit(a);
+        a.emit(Bytecode.TOCELL);
+    }
+
+    // Write this expression in binary (see Encoder.java).
+    abstract void encode(Encoder e);
 }
 
 class Nil extends Expr {
     Value eval(Env env) {
-        return new EmptyList();
+        return Values.nil();
     }
 
     String show() {
         return "[]";
     }
+
+    void emit(Assembler a) {
+        a.emit(Bytecode.NIL);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.NIL);
+    }
+
+    void resolve(Scope sc) {
+    }
+
+    Type check(Checker c) {
+        return Type.list(c.fresh());
+    }
 }
 
 class Cons extends Expr {
-    private Expr consHead, consTail;
+    private final Expr consHead, consTail;
+    private final int length;           // of the chain of Cons nodes that starts here
+    private boolean checked = false;    // the tail is known to be a list (see emit)
 
     Cons(Expr head, Expr tail) {
         this.consHead = head;
         this.consTail = tail;
+        this.length = tail instanceof Cons ? ((Cons) tail).length + 1 : 1;
     }
 
     String show() {
-        if (consTail.eval(null) instanceof EmptyList)
+        if (consTail instanceof Nil) {
             return consHead.show();
-        return consHead.show() + ", " + consTail.show();
+        } else if (consTail instanceof Cons) {
+            return consHead.show() + ", " + consTail.show();
+        }
+        return "cons(" + consHead.show() + ", " + consTail.show() + ")";
+    }
+
+    void resolve(Scope sc) {
+        consHead.resolve(sc);
+        consTail.resolve(sc);
+    }
+
+    Expr profile(Profiler p) {
+        return p.wrap(new Cons(consHead.profile(p), consTail.profile(p)), show());
+    }
+
+    Expr fold(Folder f) {
+        return new Cons(f.fold(consHead), f.fold(consTail));
+    }
+
+    Type check(Checker c) {
+        Type list = Type.list(consHead.check(c));
+        c.expect(list, consTail.check(c), consTail, this);
+        c.ifTyped(() -> checked = true);
+        return list;
+    }
+
+    void effects(Effects e) {
+        consHead.effects(e);
+        consTail.effects(e);
+    }
+
+    void emit(Assembler a) {
+        consTail.emit(a);
+        if (!checked) {
+            a.emit(Bytecode.CHECKLIST);
+        }
+        consHead.emit(a);
+        a.emit(Bytecode.CONS);
+    }
+
+    // A chain of cells is written as a run of CONS tags, each followed by
+    // its head, and then the last tail:
+    void encode(Encoder e) {
+        Expr x = this;
+        for (; x instanceof Cons; x = ((Cons) x).consTail) {
+            e.tag(Encoder.CONS);
+            ((Cons) x).consHead.encode(e);
+        }
+        x.encode(e);
     }
 
     Value eval(Env env) {
+        if (length >= ChunkedList.LITERAL) {
+            return evalChain(env);
+        }
         Value temp = consTail.eval(env);
         if (temp instanceof LValue) {
-            return new NonEmptyList(consHead.eval(env), (LValue) consTail.eval(env));
+            return Values.cons(consHead.eval(env), (LValue) temp);
         } else {
-            throw new RuntimeException("ABORT: list value expected");
+            throw new InterpreterException("ABORT: list value expected");
+        }
+    }
+
+    // A long chain of Cons nodes, as a list literal is written, is
+    // evaluated in a loop rather than by recursion, and becomes one list
+    // (see Values.list).  The order is the same as the recursion's: the
+    // last tail first, and then the heads from the last to the first.
+    private Value evalChain(Env env) {
+        Expr[] heads = new Expr[length];
+        Expr x = this;
+        for (int i = 0; i < length; i++, x = ((Cons) x).consTail) {
+            heads[i] = ((Cons) x).consHead;
+        }
+        Value temp = x.eval(env);
+        if (!(temp instanceof LValue)) {
+            throw new InterpreterException("ABORT: list value expected");
+        }
+        Value[] values = new Value[length];
+        for (int i = length - 1; i >= 0; i--) {
+            values[i] = heads[i].eval(env);
         }
+        return Values.list(values, (LValue) temp);
     }
 }
 
@@ -57,22 +250,59 @@ argument e evaluates to a non-empty list, false if the argument
 evaluates to an empty list, or triggers a run-time error message
 (see below) if the argument does not produce a list value.*/
 class NonEmpty extends Expr {
-    private Expr e;
+    private final Expr e;
 
     NonEmpty(Expr e) {
         this.e = e;
     }
 
     Value eval(Env env) {
-        if (e.eval(env) instanceof LValue) {
-            return new BValue(e.eval(env) instanceof EmptyList);
+        Value temp = e.eval(env);
+        if (temp instanceof LValue) {
+            return Values.bool(temp instanceof NonEmptyList);
         } else {
-            throw new RuntimeException("ABORT: list value expected");
+            throw new InterpreterException("ABORT: list value expected");
         }
     }
 
     String show() {
-        return e.show();
+        return "nonEmpty(" + e.show() + ")";
+    }
+
+    void resolve(Scope sc) {
+        e.resolve(sc);
+    }
+
+    Expr profile(Profiler p) {
+        return p.wrap(new NonEmpty(e.profile(p)), show());
+    }
+
+    Expr fold(Folder f) {
+        return new NonEmpty(f.fold(e));
+    }
+
+    Type check(Checker c) {
+        c.expect(Type.list(c.fresh()), e.check(c), e, this);
+        return Type.BOOL_TYPE;
+    }
+
+    void effects(Effects effects) {
+        e.effects(effects);
+    }
+
+    void emit(Assembler a) {
+        emitBool(a);
+        a.emit(Bytecode.BOXBOOL);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.NONEMPTY);
+        this.e.encode(e);
+    }
+
+    void emitBool(Assembler a) {
+        e.emit(a);
+        a.emit(Bytecode.NONEMPTY);
     }
 }
 
@@ -81,7 +311,7 @@ Head.  If e evaluates to a non-empty list, then head(e) will return
 whatever value is stored at the head of that list.  In any other
 case, however, head(e) will trigger a run-time error message.*/
 class Head extends Expr {
-    private Expr e;
+    private final Expr e;
 
     Head(Expr e) {
         this.e = e;
@@ -92,14 +322,46 @@ class Head extends Expr {
         if (temp instanceof NonEmptyList) {
             return ((NonEmptyList) temp).getHead();
         } else if (temp instanceof EmptyList) {
-            throw new RuntimeException("ABORT: nonempty list value expected");
+            throw new InterpreterException("ABORT: nonempty list value expected");
         } else {
-            throw new RuntimeException("ABORT: list value expected");
+            throw new InterpreterException("ABORT: list value expected");
         }
     }
 
     String show() {
-        return e.show();
+        return "head(" + e.show() + ")";
+    }
+
+    void resolve(Scope sc) {
+        e.resolve(sc);
+    }
+
+    Expr profile(Profiler p) {
+        return p.wrap(new Head(e.profile(p)), show());
+    }
+
+    Expr fold(Folder f) {
+        return new Head(f.fold(e));
+    }
+
+    Type check(Checker c) {
+        Type elem = c.fresh();
+        c.expect(Type.list(elem), e.check(c), e, this);
+        return elem;
+    }
+
+    void effects(Effects effects) {
+        e.effects(effects);
+    }
+
+    void emit(Assembler a) {
+        e.emit(a);
+        a.emit(Bytecode.HEAD);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.HEAD);
+        this.e.encode(e);
     }
 }
 
@@ -108,7 +370,7 @@ Tail.  This works much like head except that, if e evaluates to a
 non-empty list, then tail(e) will return the tail of that list
 value instead of the head.*/
 class Tail extends Expr {
-    private Expr e;
+    private final Expr e;
 
     Tail(Expr e) {
         this.e = e;
@@ -119,269 +381,1569 @@ class Tail extends Expr {
         if (temp instanceof NonEmptyList) {
             return ((NonEmptyList) temp).getTail();
         } else if (temp instanceof EmptyList) {
-            throw new RuntimeException("ABORT: nonempty list value expected");
+            throw new InterpreterException("ABORT: nonempty list value expected");
         } else {
-            throw new RuntimeException("ABORT: list value expected");
+            throw new InterpreterException("ABORT: list value expected");
         }
     }
 
     String show() {
-        return e.show();
+        return "tail(" + e.show() + ")";
+    }
+
+    void resolve(Scope sc) {
+        e.resolve(sc);
+    }
+
+    Expr profile(Profiler p) {
+        return p.wrap(new Tail(e.profile(p)), show());
+    }
+
+    Expr fold(Folder f) {
+        return new Tail(f.fold(e));
+    }
+
+    Type check(Checker c) {
+        Type list = Type.list(c.fresh());
+        c.expect(list, e.check(c), e, this);
+        return list;
+    }
+
+    void effects(Effects effects) {
+        e.effects(effects);
+    }
+
+    void emit(Assembler a) {
+        e.emit(a);
+        a.emit(Bytecode.TAIL);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.TAIL);
+        this.e.encode(e);
     }
 }
 
 class Var extends Expr {
-    private String name;
+    private final String name;
+    private int depth = -1, slot = -1;
 
     Var(String name) {
         this.name = name;
     }
 
+    String getName() {
+        return name;
+    }
+
     Value eval(Env env) {
-        return Env.lookup(env, name).getValue();
+        return evalRef(env).getValue();
     }
 
     String show() {
         return name;
     }
 
-    Env evalRef(Env env) {
-        // Return a reference to this variable:
-        return Env.lookup(env, name);
+    void resolve(Scope sc) {
+        depth = sc.depth(name);
+        slot = sc.slot(name);
     }
-}
 
-class Int extends Expr {
-    private int num;
+    // Is this the resolved variable at (depth, slot)?
+    boolean is(int depth, int slot) {
+        return this.depth >= 0 && this.depth == depth && this.slot == slot;
+    }
 
-    Int(int num) {
-        this.num = num;
+    // Specialized forms of code that uses a resolved local (see
+    // Assign.exec and LT.evalBool).  Each gives up without changing
+    // anything if the local does not hold an int.
+    static BoolCode increment(int depth, int slot, int k) {
+        return env -> {
+            Env cell = Frame.cell(env, depth, slot);
+            Value v = cell.getValue();
+            if (!(v instanceof IValue)) {
+                return false;
+            }
+            cell.setValue(Values.integer(v.asInt() + k));
+            return true;
+        };
     }
 
-    Value eval(Env env) {
-        return new IValue(num);
+    IntCode lessThan(int k) {
+        int depth = this.depth, slot = this.slot;
+        if (depth < 0) {
+            return null;
+        }
+        return env -> {
+            Value v = Frame.cell(env, depth, slot).getValue();
+            return v instanceof IValue ? (v.asInt() < k ? 1 : 0) : -1;
+        };
     }
 
-    String show() {
-        return Integer.toString(num);
+    Expr profile(Profiler p) {
+        return p.wrap(new Var(name), show());
     }
-}
 
-class Plus extends Expr {
-    private Expr l, r;
+    Expr fold(Folder f) {
+        Expr val = f.lookup(name);
+        return val != null ? val : this;
+    }
 
-    Plus(Expr l, Expr r) {
-        this.l = l;
-        this.r = r;
+    Type check(Checker c) {
+        Type t = c.lookup(name);
+        if (t == null) {
+            c.error("Variable " + name + " not defined", name);
+            return c.fresh();
+        }
+        return t;
     }
 
-    Value eval(Env env) {
-        return new IValue(l.eval(env).asInt() + r.eval(env).asInt());
+    void effects(Effects e) {
+        e.read(name);
     }
 
-    String show() {
-        return "(" + l.show() + " + " + r.show() + ")";
+    Env evalRef(Env env) {
+        // Return a reference to this variable.  Unresolved variables
+        // fall back to searching the environment by name:
+        if (depth < 0) {
+            return Env.lookup(env, name);
+        }
+        return Frame.cell(env, depth, slot);
     }
-}
 
-class Mult extends Expr {
-    private Expr l, r;
+    RefCode compileRef(Program prog) {
+        int depth = this.depth, slot = this.slot;
+        if (depth < 0) {
+            return this::evalRef;
+        } else if (depth == 0) {
+            return env -> ((Frame) env).get(slot);
+        }
+        return env -> Frame.cell(env, depth, slot);
+    }
 
-    Mult(Expr l, Expr r) {
-        this.l = l;
-        this.r = r;
+    // A local of the frame that the code runs in is read in place, rather
+    // than through a RefCode:
+    ValueCode compile(Program prog) {
+        int slot = this.slot;
+        if (depth == 0) {
+            return env -> ((Frame) env).get(slot).getValue();
+        }
+        RefCode ref = compileRef(prog);
+        return env -> ref.evalRef(env).getValue();
     }
 
-    Value eval(Env env) {
-        return new IValue(l.eval(env).asInt() * r.eval(env).asInt());
+    // The slot of e, if it is a local of the frame that the code runs in,
+    // or -1.  Compiled operators read such operands with intAt(), in the
+    // same closure, so that i + 1 or i < n takes one call rather than three.
+    static int local(Expr e) {
+        return e instanceof Var && ((Var) e).depth == 0 ? ((Var) e).slot : -1;
     }
 
-    String show() {
-        return "(" + l.show() + " * " + r.show() + ")";
+    static int intAt(Env env, int slot) {
+        return ((Frame) env).get(slot).getValue().asInt();
     }
-}
 
-class Minus extends Expr {
-    private Expr l, r;
+    void emit(Assembler a) {
+        emitVar(a, Bytecode.LOAD);
+    }
 
-    Minus(Expr l, Expr r) {
-        this.l = l;
-        this.r = r;
+    void encode(Encoder e) {
+        e.tag(Encoder.VAR);
+        e.name(name);
     }
 
-    Value eval(Env env) {
-        return new IValue(l.eval(env).asInt() - r.eval(env).asInt());
+    void emitRef(Assembler a) {
+        emitVar(a, Bytecode.LOADREF);
     }
 
-    String show() {
-        return "(" + l.show() + " - " + r.show() + ")";
+    void emitInt(Assembler a) {
+        emitVar(a, Bytecode.LOADINT);
     }
-}
 
-//____________________________________________________________________________
-// Expr ::= Expr < Expr
-//        |  Expr == Expr
-/*
-abstract class Expr {
-  abstract boolean eval(Env env);
-  abstract String  show();
+    private void emitVar(Assembler a, int op) {
+        if (depth < 0) {
+            a.emit(Bytecode.ABORT, a.constant("ABORT: Variable " + name + " not defined"));
+        } else {
+            a.emit(op, depth, slot);
+        }
+    }
+
+    IntCode compileInt(Program prog) {
+        int slot = this.slot;
+        if (depth == 0) {
+            return env -> intAt(env, slot);
+        }
+        RefCode ref = compileRef(prog);
+        return env -> ref.evalRef(env).getValue().asInt();
+    }
 }
-*/
-class LT extends Expr {
-    private Expr l, r;
 
-    LT(Expr l, Expr r) {
-        this.l = l;
-        this.r = r;
+class Int extends Expr {
+    private final int num;
+    private final IValue val;
+
+    Int(int num) {
+        this.num = num;
+        this.val = new IValue(num);
     }
 
     Value eval(Env env) {
-        return new BValue(l.eval(env).asInt() < r.eval(env).asInt());
+        return val;
     }
 
-    String show() {
-        return "(" + l.show() + " < " + r.show() + ")";
+    int evalInt(Env env) {
+        return num;
     }
-}
 
-class EqEq extends Expr {
-    private Expr l, r;
+    ValueCode compile(Program prog) {
+        IValue val = this.val;
+        return env -> val;
+    }
 
-    EqEq(Expr l, Expr r) {
-        this.l = l;
-        this.r = r;
+    IntCode compileInt(Program prog) {
+        int num = this.num;
+        return env -> num;
     }
 
-    Value eval(Env env) {
-        return new BValue(l.eval(env).asInt() == r.eval(env).asInt());
+    void emit(Assembler a) {
+        a.emit(Bytecode.VCONST, a.constant(val));
     }
 
-    String show() {
-        return "(" + l.show() + " == " + r.show() + ")";
+    void encode(Encoder e) {
+        e.tag(Encoder.INT);
+        e.integer(num);
     }
-}
 
-class Lambda extends Expr {
-    private String var;
-    private Expr body;
+    void emitInt(Assembler a) {
+        a.emit(Bytecode.ICONST, num);
+    }
 
-    Lambda(String var, Expr body) {
-        this.var = var;
-        this.body = body;
+    String show() {
+        return Integer.toString(num);
     }
 
-    Value eval(Env env) {
-        return new FValue(env, var, body);
+    void resolve(Scope sc) {
     }
 
-    String show() {
-        return "(\\" + var + " -> " + body.show() + ")";
+    Type check(Checker c) {
+        return Type.INT_TYPE;
     }
 }
 
-class Apply extends Expr {
-    private Expr fun, arg;
+// A boolean literal.  The parser has no syntax for these; they are made
+// by constant folding.
+class Bool extends Expr {
+    private final boolean b;
+    private final BValue val;
 
-    Apply(Expr fun, Expr arg) {
-        this.fun = fun;
-        this.arg = arg;
+    Bool(boolean b) {
+        this.b = b;
+        this.val = new BValue(b);
     }
 
     Value eval(Env env) {
-        return fun.eval(env).enter(arg.eval(env));
+        return val;
     }
 
-    String show() {
-        return "(" + fun.show() + " @ " + arg.show() + ")";
+    boolean evalBool(Env env) {
+        return b;
     }
-}
 
-//____________________________________________________________________________
-// Stmt  ::= Seq Stmt Stmt
-//        |  Var := Expr
-//        |  While Expr Stmt
-//        |  If Expr Stmt Stmt
-//        |  Print Expr
+    ValueCode compile(Program prog) {
+        BValue val = this.val;
+        return env -> val;
+    }
 
-abstract class Stmt {
-    static void indent(int ind) {
-        for (int i = 0; i < ind; i++) {
-            System.out.print(" ");
-        }
+    BoolCode compileBool(Program prog) {
+        boolean b = this.b;
+        return env -> b;
     }
 
-    abstract Env exec(Program prog, Env env);
+    void emit(Assembler a) {
+        a.emit(Bytecode.VCONST, a.constant(val));
+    }
 
-    abstract void print(int ind);
-}
+    void encode(Encoder e) {
+        e.tag(b ? Encoder.TRUE : Encoder.FALSE);
+    }
 
-class Case extends Stmt {
-    private Expr expr;
-    private Stmt ifEmpty;
-    private String h;
-    private String t;
-    private Stmt ifNonEmpty;
+    void emitBool(Assembler a) {
+        a.emit(Bytecode.ICONST, b ? 1 : 0);
+    }
 
-    Case(Expr expr, Stmt ifEmpty, String h, String t, Stmt ifNonEmpty) {
-        this.expr = expr;
-        this.ifEmpty = ifEmpty;
-        this.h = h;
-        this.t = t;
-        this.ifNonEmpty = ifNonEmpty;
+    String show() {
+        return Boolean.toString(b);
     }
 
-    Env exec(Program prog, Env env) {
-        //
-        // What should this do in real terms? Case.exec should take in a program and an environment
-        // It then needs to... use the String h to determine if the associated Expr "h" is an empty
-        // list. If so: execute ifEmpty, if not, execute ifNotEmpty. Once the appropriate Stmt has returned,
-        // it should return the calling environment.
-        if (this.expr.eval(env).getClass() == EmptyList.class) {
-
-            ifEmpty.exec(prog, env);
-        } else if (this.expr.eval(env).getClass() == NonEmptyList.class) {
-            this.h = new Head(expr).show();
-            this.t = new Tail(expr).show();
-            ifNonEmpty.exec(prog, env);
-        } else {
-            throw new RuntimeException("DANGER WILL ROBINSON! DANGER!");
-        }
-        return env; // Is this right?
+    void resolve(Scope sc) {
     }
 
-    void print(int ind) {
-        indent(ind);
-        System.out.println("case " + expr.show() + " of");
-        indent(ind + 2);
-        System.out.println("[] ->");
-        ifEmpty.print(ind + 4);
-        indent(ind + 2);
-        System.out.println("cons(" + h + ", " + t + ") ->");
-        ifNonEmpty.print(ind + 4);
+    Type check(Checker c) {
+        return Type.BOOL_TYPE;
     }
 }
 
-class Seq extends Stmt {
-    private Stmt l, r;
+class Plus extends Expr {
+    private final Expr l, r;
 
-    Seq(Stmt l, Stmt r) {
+    Plus(Expr l, Expr r) {
         this.l = l;
         this.r = r;
     }
 
-    Env exec(Program prog, Env env) {
-        return r.exec(prog, l.exec(prog, env));
+    Value eval(Env env) {
+        return Values.integer(evalInt(env));
     }
 
-    void print(int ind) {
-        l.print(ind);
-        r.print(ind);
+    int evalInt(Env env) {
+        return l.evalInt(env) + r.evalInt(env);
     }
-}
+
+    // x = x + k or x = k + x: add the constant to the local in place.
+    BoolCode assignTo(int depth, int slot) {
+        Expr k = l instanceof Var && ((Var) l).is(depth, slot) ? r
+               : r instanceof Var && ((Var) r).is(depth, slot) ? l : null;
+        return k instanceof Int ? Var.increment(depth, slot, k.evalInt(null)) : null;
+    }
+
+    ValueCode compile(Program prog) {
+        IntCode c = compileInt(prog);
+        return env -> Values.integer(c.evalInt(env));
+    }
+
+    // Operands that are constants or locals are read in place (see Var.local):
+    IntCode compileInt(Program prog) {
+        int x = Var.local(l), y = Var.local(r), k = r instanceof Int ? r.evalInt(null) : 0;
+        if (x >= 0 && r instanceof Int) {
+            return env -> Var.intAt(env, x) + k;
+        } else if (x >= 0 && y >= 0) {
+            return env -> Var.intAt(env, x) + Var.intAt(env, y);
+        }
+        IntCode a = l.compileInt(prog);
+        if (r instanceof Int) {
+            return env -> a.evalInt(env) + k;
+        }
+        IntCode b = r.compileInt(prog);
+        return env -> a.evalInt(env) + b.evalInt(env);
+    }
+
+    void emit(Assembler a) {
+        emitInt(a);
+        a.emit(Bytecode.BOXINT);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.PLUS);
+        l.encode(e);
+        r.encode(e);
+    }
+
+    void emitInt(Assembler a) {
+        l.emitInt(a);
+        r.emitInt(a);
+        a.emit(Bytecode.IADD);
+    }
+
+    String show() {
+        return "(" + l.show() + " + " + r.show() + ")";
+    }
+
+    void resolve(Scope sc) {
+        l.resolve(sc);
+        r.resolve(sc);
+    }
+
+    Expr profile(Profiler p) {
+        return p.wrap(new Plus(l.profile(p), r.profile(p)), show());
+    }
+
+    Expr fold(Folder f) {
+        Expr a = f.fold(l), b = f.fold(r);
+        if (a instanceof Int && b instanceof Int) {
+            return new Int(a.evalInt(null) + b.evalInt(null));
+        }
+        return new Plus(a, b);
+    }
+
+    Type check(Checker c) {
+        c.expect(Type.INT_TYPE, l.check(c), l, this);
+        c.expect(Type.INT_TYPE, r.check(c), r, this);
+        return Type.INT_TYPE;
+    }
+
+    void effects(Effects e) {
+        l.effects(e);
+        r.effects(e);
+    }
+}
+
+class Mult extends Expr {
+    private final Expr l, r;
+
+    Mult(Expr l, Expr r) {
+        this.l = l;
+        this.r = r;
+    }
+
+    Value eval(Env env) {
+        return Values.integer(evalInt(env));
+    }
+
+    int evalInt(Env env) {
+        return l.evalInt(env) * r.evalInt(env);
+    }
+
+    // x = x * e: multiply the local in place.  The local is still read
+    // before e is evaluated, as it is here.
+    BoolCode assignTo(int depth, int slot) {
+        if (!(l instanceof Var && ((Var) l).is(depth, slot))) {
+            return null;
+        }
+        Expr r = this.r;
+        return env -> {
+            Env cell = Frame.cell(env, depth, slot);
+            Value v = cell.getValue();
+            if (!(v instanceof IValue)) {
+                return false;
+            }
+            cell.setValue(Values.integer(v.asInt() * r.evalInt(env)));
+            return true;
+        };
+    }
+
+    ValueCode compile(Program prog) {
+        IntCode c = compileInt(prog);
+        return env -> Values.integer(c.evalInt(env));
+    }
+
+    IntCode compileInt(Program prog) {
+        int x = Var.local(l), y = Var.local(r), k = r instanceof Int ? r.evalInt(null) : 0;
+        if (x >= 0 && r instanceof Int) {
+            return env -> Var.intAt(env, x) * k;
+        } else if (x >= 0 && y >= 0) {
+            return env -> Var.intAt(env, x) * Var.intAt(env, y);
+        }
+        IntCode a = l.compileInt(prog);
+        if (r instanceof Int) {
+            return env -> a.evalInt(env) * k;
+        }
+        IntCode b = r.compileInt(prog);
+        return env -> a.evalInt(env) * b.evalInt(env);
+    }
+
+    void emit(Assembler a) {
+        emitInt(a);
+        a.emit(Bytecode.BOXINT);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.MULT);
+        l.encode(e);
+        r.encode(e);
+    }
+
+    void emitInt(Assembler a) {
+        l.emitInt(a);
+        r.emitInt(a);
+        a.emit(Bytecode.IMUL);
+    }
+
+    String show() {
+        return "(" + l.show() + " * " + r.show() + ")";
+    }
+
+    void resolve(Scope sc) {
+        l.resolve(sc);
+        r.resolve(sc);
+    }
+
+    Expr profile(Profiler p) {
+        return p.wrap(new Mult(l.profile(p), r.profile(p)), show());
+    }
+
+    Expr fold(Folder f) {
+        Expr a = f.fold(l), b = f.fold(r);
+        if (a instanceof Int && b instanceof Int) {
+            return new Int(a.evalInt(null) * b.evalInt(null));
+        }
+        return new Mult(a, b);
+    }
+
+    Type check(Checker c) {
+        c.expect(Type.INT_TYPE, l.check(c), l, this);
+        c.expect(Type.INT_TYPE, r.check(c), r, this);
+        return Type.INT_TYPE;
+    }
+
+    void effects(Effects e) {
+        l.effects(e);
+        r.effects(e);
+    }
+}
+
+class Minus extends Expr {
+    private final Expr l, r;
+
+    Minus(Expr l, Expr r) {
+        this.l = l;
+        this.r = r;
+    }
+
+    Value eval(Env env) {
+        return Values.integer(evalInt(env));
+    }
+
+    int evalInt(Env env) {
+        return l.evalInt(env) - r.evalInt(env);
+    }
+
+    // x = x - k:
+    BoolCode assignTo(int depth, int slot) {
+        if (l instanceof Var && ((Var) l).is(depth, slot) && r instanceof Int) {
+            return Var.increment(depth, slot, -r.evalInt(null));
+        }
+        return null;
+    }
+
+    ValueCode compile(Program prog) {
+        IntCode c = compileInt(prog);
+        return env -> Values.integer(c.evalInt(env));
+    }
+
+    IntCode compileInt(Program prog) {
+        int x = Var.local(l), y = Var.local(r), k = r instanceof Int ? r.evalInt(null) : 0;
+        if (x >= 0 && r instanceof Int) {
+            return env -> Var.intAt(env, x) - k;
+        } else if (x >= 0 && y >= 0) {
+            return env -> Var.intAt(env, x) - Var.intAt(env, y);
+        }
+        IntCode a = l.compileInt(prog);
+        if (r instanceof Int) {
+            return env -> a.evalInt(env) - k;
+        }
+        IntCode b = r.compileInt(prog);
+        return env -> a.evalInt(env) - b.evalInt(env);
+    }
+
+    void emit(Assembler a) {
+        emitInt(a);
+        a.emit(Bytecode.BOXINT);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.MINUS);
+        l.encode(e);
+        r.encode(e);
+    }
+
+    void emitInt(Assembler a) {
+        l.emitInt(a);
+        r.emitInt(a);
+        a.emit(Bytecode.ISUB);
+    }
+
+    String show() {
+        return "(" + l.show() + " - " + r.show() + ")";
+    }
+
+    void resolve(Scope sc) {
+        l.resolve(sc);
+        r.resolve(sc);
+    }
+
+    Expr profile(Profiler p) {
+        return p.wrap(new Minus(l.profile(p), r.profile(p)), show());
+    }
+
+    Expr fold(Folder f) {
+        Expr a = f.fold(l), b = f.fold(r);
+        if (a instanceof Int && b instanceof Int) {
+            return new Int(a.evalInt(null) - b.evalInt(null));
+        }
+        return new Minus(a, b);
+    }
+
+    Type check(Checker c) {
+        c.expect(Type.INT_TYPE, l.check(c), l, this);
+        c.expect(Type.INT_TYPE, r.check(c), r, this);
+        return Type.INT_TYPE;
+    }
+
+    void effects(Effects e) {
+        l.effects(e);
+        r.effects(e);
+    }
+}
+
+//____________________________________________________________________________
+// Expr ::= Expr < Expr
+//        |  Expr == Expr
+/*
+abstract class Expr {
+  abstract boolean eval(Env env);
+  abstract String  show();
+}
+*/
+class LT extends Expr {
+    private final Expr l, r;
+    private IntCode fast;           // 1 or 0, or -1 if the local held no int
+    private boolean settled;        // see Assign.exec
+
+    LT(Expr l, Expr r) {
+        this.l = l;
+        this.r = r;
+    }
+
+    Value eval(Env env) {
+        return Values.bool(evalBool(env));
+    }
+
+    boolean evalBool(Env env) {
+        // i < k, for a local i, specializes to a read of i's cell and a
+        // compare with the constant:
+        IntCode f = fast;
+        if (f == null && !settled) {
+            settled = true;
+            f = fast = l instanceof Var && r instanceof Int ? ((Var) l).lessThan(r.evalInt(null)) : null;
+        }
+        if (f != null) {
+            int b = f.evalInt(env);
+            if (b >= 0) {
+                return b != 0;
+            }
+            fast = null;
+        }
+        return l.evalInt(env) < r.evalInt(env);
+    }
+
+    ValueCode compile(Program prog) {
+        BoolCode c = compileBool(prog);
+        return env -> Values.bool(c.evalBool(env));
+    }
+
+    BoolCode compileBool(Program prog) {
+        int x = Var.local(l), y = Var.local(r), k = r instanceof Int ? r.evalInt(null) : 0;
+        if (x >= 0 && r instanceof Int) {
+            return env -> Var.intAt(env, x) < k;
+        } else if (x >= 0 && y >= 0) {
+            return env -> Var.intAt(env, x) < Var.intAt(env, y);
+        }
+        IntCode a = l.compileInt(prog);
+        if (r instanceof Int) {
+            return env -> a.evalInt(env) < k;
+        }
+        IntCode b = r.compileInt(prog);
+        return env -> a.evalInt(env) < b.evalInt(env);
+    }
+
+    void emit(Assembler a) {
+        emitBool(a);
+        a.emit(Bytecode.BOXBOOL);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.LT);
+        l.encode(e);
+        r.encode(e);
+    }
+
+    void emitBool(Assembler a) {
+        l.emitInt(a);
+        r.emitInt(a);
+        a.emit(Bytecode.ILT);
+    }
+
+    String show() {
+        return "(" + l.show() + " < " + r.show() + ")";
+    }
+
+    void resolve(Scope sc) {
+        l.resolve(sc);
+        r.resolve(sc);
+        settled = !sc.specializes();
+    }
+
+    Expr profile(Profiler p) {
+        return p.wrap(new LT(l.profile(p), r.profile(p)), show());
+    }
+
+    Expr fold(Folder f) {
+        Expr a = f.fold(l), b = f.fold(r);
+        if (a instanceof Int && b instanceof Int) {
+            return new Bool(a.evalInt(null) < b.evalInt(null));
+        }
+        return new LT(a, b);
+    }
+
+    Type check(Checker c) {
+        c.expect(Type.INT_TYPE, l.check(c), l, this);
+        c.expect(Type.INT_TYPE, r.check(c), r, this);
+        return Type.BOOL_TYPE;
+    }
+
+    void effects(Effects e) {
+        l.effects(e);
+        r.effects(e);
+    }
+}
+
+class EqEq extends Expr {
+    private final Expr l, r;
+
+    EqEq(Expr l, Expr r) {
+        this.l = l;
+        this.r = r;
+    }
+
+    Value eval(Env env) {
+        return Values.bool(evalBool(env));
+    }
+
+    boolean evalBool(Env env) {
+        return l.evalInt(env) == r.evalInt(env);
+    }
+
+    ValueCode compile(Program prog) {
+        BoolCode c = compileBool(prog);
+        return env -> Values.bool(c.evalBool(env));
+    }
+
+    BoolCode compileBool(Program prog) {
+        int x = Var.local(l), y = Var.local(r), k = r instanceof Int ? r.evalInt(null) : 0;
+        if (x >= 0 && r instanceof Int) {
+            return env -> Var.intAt(env, x) == k;
+        } else if (x >= 0 && y >= 0) {
+            return env -> Var.intAt(env, x) == Var.intAt(env, y);
+        }
+        IntCode a = l.compileInt(prog);
+        if (r instanceof Int) {
+            return env -> a.evalInt(env) == k;
+        }
+        IntCode b = r.compileInt(prog);
+        return env -> a.evalInt(env) == b.evalInt(env);
+    }
+
+    void emit(Assembler a) {
+        emitBool(a);
+        a.emit(Bytecode.BOXBOOL);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.EQEQ);
+        l.encode(e);
+        r.encode(e);
+    }
+
+    void emitBool(Assembler a) {
+        l.emitInt(a);
+        r.emitInt(a);
+        a.emit(Bytecode.IEQ);
+    }
+
+    String show() {
+        return "(" + l.show() + " == " + r.show() + ")";
+    }
+
+    void resolve(Scope sc) {
+        l.resolve(sc);
+        r.resolve(sc);
+    }
+
+    Expr profile(Profiler p) {
+        return p.wrap(new EqEq(l.profile(p), r.profile(p)), show());
+    }
+
+    Expr fold(Folder f) {
+        Expr a = f.fold(l), b = f.fold(r);
+        if (a instanceof Int && b instanceof Int) {
+            return new Bool(a.evalInt(null) == b.evalInt(null));
+        }
+        return new EqEq(a, b);
+    }
+
+    Type check(Checker c) {
+        c.expect(Type.INT_TYPE, l.check(c), l, this);
+        c.expect(Type.INT_TYPE, r.check(c), r, this);
+        return Type.BOOL_TYPE;
+    }
+
+    void effects(Effects e) {
+        l.effects(e);
+        r.effects(e);
+    }
+}
+
+class Lambda extends Expr {
+    private final String var;
+    private final Expr body;
+    private int frameSize = -1;
+    private int[] captures;         // (depth, slot) of each free variable, once resolved
+    private Memo memo;              // each closure gets a fresh copy
+
+    Lambda(String var, Expr body) {
+        this.var = var;
+        this.body = body;
+    }
+
+    Value eval(Env env) {
+        return new FValue(captures != null ? Frame.capture(env, captures) : env,
+                          var, body::eval, frameSize, memo != null ? memo.fresh() : null);
+    }
+
+    ValueCode compile(Program prog) {
+        String var = this.var;
+        int frameSize = this.frameSize;
+        int[] captures = this.captures;
+        Memo memo = this.memo;
+        ValueCode code = body.compile(prog);
+        if (memo != null) {
+            return env -> new FValue(Frame.capture(env, captures), var, code, frameSize, memo.fresh());
+        }
+        return env -> new FValue(Frame.capture(env, captures), var, code, frameSize);
+    }
+
+    void memoize(Memo memo) {
+        this.memo = memo;
+    }
+
+    void emit(Assembler a) {
+        // The body is placed inline, with a jump around it:
+        Bytecode.Function f = new Bytecode.Function(var, 1, frameSize);
+        f.captures = captures;
+        int skip = a.label();
+        a.jump(Bytecode.JUMP, skip);
+        a.place(f);
+        body.emit(a);
+        a.emit(Bytecode.RETURN);
+        a.place(skip);
+        a.emit(Bytecode.LAMBDA, a.constant(f));
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.LAMBDA);
+        e.name(var);
+        body.encode(e);
+    }
+
+    String show() {
+        return "(\\" + var + " -> " + body.show() + ")";
+    }
+
+    void resolve(Scope sc) {
+        // A closure keeps only the cells of the variables that the body
+        // reads (see Frame.capture), not every frame around the lambda:
+        Effects e = new Effects();
+        e.lambda(this, var, body);
+        Scope kept = sc.capture();
+        ArrayList<Integer> where = new ArrayList<Integer>();
+        for (String name : e.reads()) {
+            int depth = sc.depth(name);
+            if (depth >= 0) {
+                kept.declare(name);
+                where.add(depth);
+                where.add(sc.slot(name));
+            }
+        }
+        captures = new int[where.size()];
+        for (int i = 0; i < captures.length; i++) {
+            captures[i] = where.get(i);
+        }
+
+        // The body runs in a frame of its own, with the argument in slot 0:
+        Scope inner = new Scope(kept);
+        inner.declare(var);
+        body.resolve(inner);
+        body.markTail();
+        frameSize = inner.size();
+    }
+
+    Expr profile(Profiler p) {
+        // The body gets a second wrapper, which counts calls of the FValue:
+        return p.wrap(new Lambda(var, p.wrap(body.profile(p), "body of " + show())), show());
+    }
+
+    Expr fold(Folder f) {
+        return new Lambda(var, f.fold(body, var, null));
+    }
+
+    Type check(Checker c) {
+        Type arg = c.fresh();
+        int mark = c.mark();
+        c.declare(var, arg);
+        Type result = body.check(c);
+        c.release(mark);
+        return Type.fun(arg, result);
+    }
+
+    void effects(Effects e) {
+        e.lambda(this, var, body);
+    }
+
+    // Fold this lambda's body for a call with a constant argument:
+    Expr inline(Folder f, Expr arg) {
+        f.visit();
+        return f.fold(body, var, arg);
+    }
+}
+
+class Apply extends Expr {
+    private final Expr fun, arg;
+    private boolean tail = false;
+    private boolean metered = false;    // see Program.meter
+
+    Apply(Expr fun, Expr arg) {
+        this.fun = fun;
+        this.arg = arg;
+    }
+
+    Value eval(Env env) {
+        Value f = fun.eval(env);
+        Value a = arg.eval(env);
+        if (metered) {
+            Fuel.step(env);
+        }
+        if (tail && f instanceof FValue) {
+            return new TailApply((FValue) f, a);
+        }
+        return f.enter(a);
+    }
+
+    void markTail() {
+        tail = true;
+    }
+
+    ValueCode compile(Program prog) {
+        ValueCode unmetered = fun.compile(prog), a = arg.compile(prog);
+        ValueCode f = !metered ? unmetered : env -> {
+            Fuel.step(env);
+            return unmetered.eval(env);
+        };
+        if (tail) {
+            return env -> {
+                Value fv = f.eval(env);
+                Value av = a.eval(env);
+                return fv instanceof FValue ? new TailApply((FValue) fv, av) : fv.enter(av);
+            };
+        }
+        return env -> f.eval(env).enter(a.eval(env));
+    }
+
+    void emit(Assembler a) {
+        fun.emit(a);
+        arg.emit(a);
+        a.emit(Bytecode.APPLY);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.APPLY);
+        fun.encode(e);
+        arg.encode(e);
+    }
+
+    String show() {
+        return "(" + fun.show() + " @ " + arg.show() + ")";
+    }
+
+    void resolve(Scope sc) {
+        fun.resolve(sc);
+        arg.resolve(sc);
+        metered = sc.metered();
+    }
+
+    Expr profile(Profiler p) {
+        return p.wrap(new Apply(fun.profile(p), arg.profile(p)), show());
+    }
+
+    Expr fold(Folder f) {
+        if (fun instanceof Lambda) {
+            // (\x -> body) @ c is body, with x known to be c:
+            Expr a = f.fold(arg);
+            if (Folder.isConstant(a)) {
+                return ((Lambda) fun).inline(f, a);
+            }
+            return new Apply(f.fold(fun), a);
+        }
+        return new Apply(f.fold(fun), f.fold(arg));
+    }
+
+    Type check(Checker c) {
+        Type f = fun.check(c), a = arg.check(c), result = c.fresh();
+        c.expect(Type.fun(a, result), f, fun, this);
+        return result;
+    }
+
+    void effects(Effects e) {
+        fun.effects(e);
+        arg.effects(e);
+    }
+}
+
+//____________________________________________________________________________
+// Stmt  ::= Seq Stmt Stmt
+//        |  Var := Expr
+//        |  While Expr Stmt
+//        |  If Expr Stmt Stmt
+//        |  Print Expr
+
+abstract class Stmt {
+    static void indent(int ind) {
+        Output.current().indent(ind);
+    }
+
+    abstract Env exec(Program prog, Env env);
+
+    abstract void print(int ind);
+
+    // Assign frame slots to the variables that this statement declares or
+    // mentions.  Declarations are added to sc, just as exec extends env.
+    abstract void resolve(Scope sc);
+
+    // Does this statement declare variables in the enclosing frame?  Loop
+    // bodies that do are given a fresh frame on every iteration.
+    boolean declares() {
+        return false;
+    }
+
+    // Called on the body of a procedure, and passed down to the statements
+    // that run last in it, so that a Call there becomes a tail call.
+    // Returns whether any call did.
+    boolean markTail() {
+        return false;
+    }
+
+    // Compile a statement that markTail() was called on, so that a tail
+    // call at its end is returned, not made (see TailCode):
+    TailCode compileTail(Program prog) {
+        StmtCode c = compile(prog);
+        return env -> {
+            c.exec(env);
+            return env;
+        };
+    }
+
+    // A copy of this statement with every node wrapped for p to time.
+    abstract Stmt profile(Profiler p);
+
+    // A copy of this statement with constants folded (see Folder.java).
+    abstract Stmt fold(Folder f);
+
+    // This statement with every chain of Seqs in it turned into one Block
+    // (see Program): itself if it holds no statements.
+    Stmt flatten() {
+        return this;
+    }
+
+    // Check the types in this statement.  Declarations are added to c, as
+    // they are to the Scope in resolve().
+    abstract void check(Checker c);
+
+    // Record what this statement prints, assigns, reads and calls.
+    abstract void effects(Effects e);
+
+    // The first line of this statement's text, for messages:
+    String text() {
+        Output out = Output.capture();
+        out.run(() -> print(0));
+        String text = out.text();
+        int nl = text.indexOf('\n');
+        return (nl >= 0 ? text.substring(0, nl) : text).trim();
+    }
+
+    // Closure compilation (see Code.java).  Statements are only compiled
+    // after resolution, so exec() never needs to return a new environment.
+    StmtCode compile(Program prog) {
+        return env -> exec(prog, env);
+    }
+
+    // Bytecode (see Bytecode.java).
+    abstract void emit(Assembler a);
+
+    // Write this statement in binary (see Encoder.java).
+    abstract void encode(Encoder e);
+}
+
+class Case extends Stmt {
+    private final Expr expr;
+    private final Stmt ifEmpty;
+    private final String h;
+    private final String t;
+    private final Stmt ifNonEmpty;
+    private int hSlot = -1, tSlot = -1;
+
+    Case(Expr expr, Stmt ifEmpty, String h, String t, Stmt ifNonEmpty) {
+        this.expr = expr;
+        this.ifEmpty = ifEmpty;
+        this.h = h;
+        this.t = t;
+        this.ifNonEmpty = ifNonEmpty;
+    }
+
+    Stmt flatten() {
+        Stmt a = ifEmpty.flatten(), b = ifNonEmpty.flatten();
+        return a == ifEmpty && b == ifNonEmpty ? this : new Case(expr, a, h, t, b);
+    }
+
+    Env exec(Program prog, Env env) {
+        // Evaluate the list once, then run ifNonEmpty with h and t bound
+        // to its head and tail.  Either way, the calling environment is
+        // returned unchanged.
+        Value val = expr.eval(env);
+        Env result;
+        if (val instanceof EmptyList) {
+            result = ifEmpty.exec(prog, env);
+        } else if (val instanceof NonEmptyList) {
+            NonEmptyList list = (NonEmptyList) val;
+            Env inner = Frame.declare(env, hSlot, h, list.getHead());
+            inner = Frame.declare(inner, tSlot, t, list.getTail());
+            result = ifNonEmpty.exec(prog, inner);
+        } else {
+            throw new InterpreterException("ABORT: list value expected");
+        }
+        return result instanceof TailCall ? result : env;
+    }
+
+    void resolve(Scope sc) {
+        expr.resolve(sc);
+        int mark = sc.mark();
+        ifEmpty.resolve(sc);
+        sc.release(mark);
+        hSlot = sc.declare(h);
+        tSlot = sc.declare(t);
+        ifNonEmpty.resolve(sc);
+        sc.release(mark);
+    }
+
+    Stmt profile(Profiler p) {
+        return p.wrap(new Case(expr.profile(p), ifEmpty.profile(p), h, t, ifNonEmpty.profile(p)), this);
+    }
+
+    Stmt fold(Folder f) {
+        return new Case(f.fold(expr), f.fold(ifEmpty), h, t, f.fold(ifNonEmpty));
+    }
+
+    void check(Checker c) {
+        Type elem = c.fresh();
+        c.expect(Type.list(elem), expr.check(c), expr, this);
+        int mark = c.mark();
+        ifEmpty.check(c);
+        c.release(mark);
+        c.declare(h, elem);
+        c.declare(t, Type.list(elem));
+        ifNonEmpty.check(c);
+        c.release(mark);
+    }
+
+    void effects(Effects e) {
+        expr.effects(e);
+        int mark = e.mark();
+        ifEmpty.effects(e);
+        e.release(mark);
+        e.declare(h);
+        e.declare(t);
+        ifNonEmpty.effects(e);
+        e.release(mark);
+    }
+
+    boolean declares() {
+        return true;
+    }
+
+    boolean markTail() {
+        return ifEmpty.markTail() | ifNonEmpty.markTail();
+    }
+
+    StmtCode compile(Program prog) {
+        ValueCode list = expr.compile(prog);
+        StmtCode empty = ifEmpty.compile(prog), nonEmpty = ifNonEmpty.compile(prog);
+        String h = this.h, t = this.t;
+        int hSlot = this.hSlot, tSlot = this.tSlot;
+        return env -> {
+            Value val = list.eval(env);
+            if (val instanceof EmptyList) {
+                empty.exec(env);
+            } else if (val instanceof NonEmptyList) {
+                Frame frame = (Frame) env;
+                frame.set(hSlot, new ValEnv(h, ((NonEmptyList) val).getHead(), null));
+                frame.set(tSlot, new ValEnv(t, ((NonEmptyList) val).getTail(), null));
+                nonEmpty.exec(env);
+            } else {
+                throw new InterpreterException("ABORT: list value expected");
+            }
+        };
+    }
+
+    TailCode compileTail(Program prog) {
+        ValueCode list = expr.compile(prog);
+        TailCode empty = ifEmpty.compileTail(prog), nonEmpty = ifNonEmpty.compileTail(prog);
+        String h = this.h, t = this.t;
+        int hSlot = this.hSlot, tSlot = this.tSlot;
+        return env -> {
+            Value val = list.eval(env);
+            if (val instanceof EmptyList) {
+                return empty.exec(env);
+            } else if (val instanceof NonEmptyList) {
+                Frame frame = (Frame) env;
+                frame.set(hSlot, new ValEnv(h, ((NonEmptyList) val).getHead(), null));
+                frame.set(tSlot, new ValEnv(t, ((NonEmptyList) val).getTail(), null));
+                return nonEmpty.exec(env);
+            }
+            throw new InterpreterException("ABORT: list value expected");
+        };
+    }
+
+    void emit(Assembler a) {
+        int empty = a.label(), done = a.label();
+        expr.emit(a);
+        a.jump(Bytecode.CASE, empty);
+        a.emit(Bytecode.DECL, tSlot, a.constant(t));
+        a.emit(Bytecode.DECL, hSlot, a.constant(h));
+        ifNonEmpty.emit(a);
+        a.jump(Bytecode.JUMP, done);
+        a.place(empty);
+        ifEmpty.emit(a);
+        a.place(done);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.CASE);
+        expr.encode(e);
+        ifEmpty.encode(e);
+        e.name(h);
+        e.name(t);
+        ifNonEmpty.encode(e);
+    }
+
+    void print(int ind) {
+        indent(ind);
+        Output.current().println("case " + expr.show() + " of");
+        indent(ind + 2);
+        Output.current().println("[] ->");
+        ifEmpty.print(ind + 4);
+        indent(ind + 2);
+        Output.current().println("cons(" + h + ", " + t + ") ->");
+        ifNonEmpty.print(ind + 4);
+    }
+}
+
+class Seq extends Stmt {
+    final Stmt l, r;               // read by Block.spread
+
+    Seq(Stmt l, Stmt r) {
+        this.l = l;
+        this.r = r;
+    }
+
+    Env exec(Program prog, Env env) {
+        return r.exec(prog, l.exec(prog, env));
+    }
+
+    void print(int ind) {
+        l.print(ind);
+        r.print(ind);
+    }
+
+    // Long programs are right-nested chains of Seq, so the methods that
+    // must not overflow the Java stack walk down the chain in a loop.
+    void resolve(Scope sc) {
+        Stmt s = this;
+        for (; s instanceof Seq; s = ((Seq) s).r) {
+            ((Seq) s).l.resolve(sc);
+        }
+        s.resolve(sc);
+    }
+
+    Stmt profile(Profiler p) {
+        // Seqs are not wrapped; their statements are.
+        ArrayList<Stmt> spine = new ArrayList<Stmt>();
+        Stmt s = this;
+        for (; s instanceof Seq; s = ((Seq) s).r) {
+            spine.add(((Seq) s).l);
+        }
+        Stmt result = s.profile(p);
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            result = new Seq(spine.get(i).profile(p), result);
+        }
+        return result;
+    }
+
+    Stmt fold(Folder f) {
+        // The chain is folded in a loop, leaving out statements that fold
+        // to nothing.
+        ArrayList<Stmt> spine = new ArrayList<Stmt>();
+        Stmt s = this;
+        for (; s instanceof Seq; s = ((Seq) s).r) {
+            if (s != this) {
+                f.visit();
+            }
+            spine.add(((Seq) s).l);
+        }
+        spine.add(s);
+        Stmt result = null;
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            Stmt folded = f.fold(spine.get(i));
+            if (!(folded instanceof Skip)) {
+                result = result == null ? folded : new Seq(folded, result);
+            }
+        }
+        return result == null ? new Skip() : result;
+    }
+
+    void check(Checker c) {
+        Stmt s = this;
+        for (; s instanceof Seq; s = ((Seq) s).r) {
+            ((Seq) s).l.check(c);
+        }
+        s.check(c);
+    }
+
+    void effects(Effects e) {
+        Stmt s = this;
+        for (; s instanceof Seq; s = ((Seq) s).r) {
+            ((Seq) s).l.effects(e);
+        }
+        s.effects(e);
+    }
+
+    boolean declares() {
+        Stmt s = this;
+        for (; s instanceof Seq; s = ((Seq) s).r) {
+            if (((Seq) s).l.declares()) {
+                return true;
+            }
+        }
+        return s.declares();
+    }
+
+    boolean markTail() {
+        Stmt s = this;
+        while (s instanceof Seq) {
+            s = ((Seq) s).r;
+        }
+        return s.markTail();
+    }
+
+    void emit(Assembler a) {
+        Stmt s = this;
+        for (; s instanceof Seq; s = ((Seq) s).r) {
+            ((Seq) s).l.emit(a);
+        }
+        s.emit(a);
+    }
+
+    // A chain of statements is written as one SEQ with a count, and not
+    // one SEQ per link:
+    void encode(Encoder e) {
+        ArrayList<Stmt> stmts = new ArrayList<Stmt>();
+        Stmt s = this;
+        for (; s instanceof Seq; s = ((Seq) s).r) {
+            stmts.add(((Seq) s).l);
+        }
+        stmts.add(s);
+        e.tag(Encoder.SEQ);
+        e.number(stmts.size());
+        for (Stmt stmt : stmts) {
+            stmt.encode(e);
+        }
+    }
+
+    StmtCode compile(Program prog) {
+        StmtCode a = l.compile(prog), b = r.compile(prog);
+        return env -> {
+            a.exec(env);
+            b.exec(env);
+        };
+    }
+
+    TailCode compileTail(Program prog) {
+        StmtCode a = l.compile(prog);
+        TailCode b = r.compileTail(prog);
+        return env -> {
+            a.exec(env);
+            return b.exec(env);
+        };
+    }
+
+    Stmt flatten() {
+        ArrayList<Stmt> stmts = new ArrayList<Stmt>();
+        Block.spread(this, stmts);
+        return Block.of(stmts);
+    }
+}
+
+// A list of statements run one after the other, as a chain of Seqs is, but
+// held in one array.  Programs turn their Seq chains into Blocks when they
+// are made (see Stmt.flatten), so that a long program is run, printed and
+// compiled by a loop over the array rather than by recursion down the
+// chain, and its statements sit next to each other in memory.
+class Block extends Stmt {
+    private final Stmt[] stmts;
+
+    Block(Stmt[] stmts) {
+        this.stmts = stmts;
+    }
+
+    // A Block of stmts, or the statement itself if there is only one:
+    static Stmt of(ArrayList<Stmt> stmts) {
+        if (stmts.isEmpty()) {
+            return new Skip();
+        }
+        return stmts.size() == 1 ? stmts.get(0) : new Block(stmts.toArray(new Stmt[0]));
+    }
+
+    // Add the statements of s to out, flattened, with the Seqs and Blocks
+    // in it spread out however they nest:
+    static void spread(Stmt s, ArrayList<Stmt> out) {
+        ArrayDeque<Stmt> todo = new ArrayDeque<Stmt>();
+        todo.push(s);
+        while (!todo.isEmpty()) {
+            s = todo.pop();
+            if (s instanceof Seq) {
+                todo.push(((Seq) s).r);
+                todo.push(((Seq) s).l);
+            } else if (s instanceof Block) {
+                Stmt[] stmts = ((Block) s).stmts;
+                for (int i = stmts.length - 1; i >= 0; i--) {
+                    todo.push(stmts[i]);
+                }
+            } else {
+                out.add(s.flatten());
+            }
+        }
+    }
+
+    Env exec(Program prog, Env env) {
+        for (Stmt s : stmts) {
+            env = s.exec(prog, env);
+        }
+        return env;
+    }
+
+    void print(int ind) {
+        for (Stmt s : stmts) {
+            s.print(ind);
+        }
+    }
+
+    void resolve(Scope sc) {
+        for (Stmt s : stmts) {
+            s.resolve(sc);
+        }
+    }
+
+    Stmt profile(Profiler p) {
+        // Blocks are not wrapped; their statements are.
+        Stmt[] copies = new Stmt[stmts.length];
+        for (int i = 0; i < stmts.length; i++) {
+            copies[i] = stmts[i].profile(p);
+        }
+        return new Block(copies);
+    }
+
+    Stmt fold(Folder f) {
+        // Statements that fold to nothing are left out:
+        ArrayList<Stmt> folded = new ArrayList<Stmt>();
+        for (Stmt s : stmts) {
+            Stmt t = f.fold(s);
+            if (!(t instanceof Skip)) {
+                folded.add(t);
+            }
+        }
+        return Block.of(folded);
+    }
+
+    void check(Checker c) {
+        for (Stmt s : stmts) {
+            s.check(c);
+        }
+    }
+
+    void effects(Effects e) {
+        for (Stmt s : stmts) {
+            s.effects(e);
+        }
+    }
+
+    boolean declares() {
+        for (Stmt s : stmts) {
+            if (s.declares()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean markTail() {
+        return stmts[stmts.length - 1].markTail();
+    }
+
+    Stmt flatten() {
+        ArrayList<Stmt> flat = new ArrayList<Stmt>();
+        spread(this, flat);
+        return Block.of(flat);
+    }
+
+    void emit(Assembler a) {
+        for (Stmt s : stmts) {
+            s.emit(a);
+        }
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.SEQ);
+        e.number(stmts.length);
+        for (Stmt s : stmts) {
+            s.encode(e);
+        }
+    }
+
+    StmtCode compile(Program prog) {
+        StmtCode[] codes = new StmtCode[stmts.length];
+        for (int i = 0; i < stmts.length; i++) {
+            codes[i] = stmts[i].compile(prog);
+        }
+        // A short block, such as a loop body, calls its statements straight:
+        if (codes.length == 2) {
+            StmtCode a = codes[0], b = codes[1];
+            return env -> {
+                a.exec(env);
+                b.exec(env);
+            };
+        } else if (codes.length == 3) {
+            StmtCode a = codes[0], b = codes[1], c = codes[2];
+            return env -> {
+                a.exec(env);
+                b.exec(env);
+                c.exec(env);
+            };
+        }
+        return env -> {
+            for (StmtCode c : codes) {
+                c.exec(env);
+            }
+        };
+    }
+
+    TailCode compileTail(Program prog) {
+        StmtCode[] codes = new StmtCode[stmts.length - 1];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = stmts[i].compile(prog);
+        }
+        TailCode last = stmts[codes.length].compileTail(prog);
+        return env -> {
+            for (StmtCode c : codes) {
+                c.exec(env);
+            }
+            return last.exec(env);
+        };
+    }
+}
 
 class Assign extends Stmt {
-    private String lhs;
-    private Expr rhs;
+    private final String lhs;
+    private final Expr rhs;
+    private int depth = -1, slot = -1;
+    private BoolCode fast;          // the specialized form, if there is one
+    private boolean settled;        // whether to stop looking for one
 
     Assign(String lhs, Expr rhs) {
         this.lhs = lhs;
@@ -389,9 +1951,93 @@ class Assign extends Stmt {
     }
 
     Env exec(Program prog, Env env) {
-        Env.lookup(env, lhs).setValue(rhs.eval(env));
+        // The first run of a resolved assignment asks its rhs for a
+        // specialized form, such as an increment of the local by a
+        // constant (see Expr.assignTo), and later runs use that.  If a
+        // value ever turns out not to fit it, the form is dropped for good
+        // and the assignment is run in full from then on.  Threads that
+        // share the node may race on these fields, which is harmless:
+        // every form does the same thing.
+        BoolCode f = fast;
+        if (f == null && !settled) {
+            settled = true;
+            f = fast = depth >= 0 ? rhs.assignTo(depth, slot) : null;
+        }
+        if (f != null) {
+            if (f.evalBool(env)) {
+                return env;
+            }
+            fast = null;
+        }
+        Value val = rhs.eval(env);
+        if (depth < 0) {
+            Env.lookup(env, lhs).setValue(val);
+        } else {
+            Frame.cell(env, depth, slot).setValue(val);
+        }
         return env;
     }
+
+    void resolve(Scope sc) {
+        rhs.resolve(sc);
+        depth = sc.depth(lhs);
+        slot = sc.slot(lhs);
+        settled = !sc.specializes();
+    }
+
+    Stmt profile(Profiler p) {
+        return p.wrap(new Assign(lhs, rhs.profile(p)), this);
+    }
+
+    Stmt fold(Folder f) {
+        return new Assign(lhs, f.fold(rhs));
+    }
+
+    void check(Checker c) {
+        Type found = rhs.check(c), t = c.lookup(lhs);
+        if (t == null) {
+            c.error("Variable " + lhs + " not defined", text());
+        } else {
+            c.expect(t, found, rhs, this);
+        }
+    }
+
+    void effects(Effects e) {
+        rhs.effects(e);
+        e.write(lhs);
+    }
+
+    StmtCode compile(Program prog) {
+        ValueCode c = rhs.compile(prog);
+        int depth = this.depth, slot = this.slot;
+        if (depth < 0) {
+            return env -> exec(prog, env);
+        }
+        // Arithmetic is stored straight from its int form, without a
+        // ValueCode in between:
+        if (depth == 0 && (rhs instanceof Plus || rhs instanceof Minus || rhs instanceof Mult)) {
+            IntCode i = rhs.compileInt(prog);
+            return env -> ((Frame) env).get(slot).setValue(Values.integer(i.evalInt(env)));
+        } else if (depth == 0) {
+            return env -> ((Frame) env).get(slot).setValue(c.eval(env));
+        }
+        return env -> Frame.cell(env, depth, slot).setValue(c.eval(env));
+    }
+
+    void emit(Assembler a) {
+        rhs.emit(a);
+        if (depth < 0) {
+            a.emit(Bytecode.ABORT, a.constant("ABORT: Variable " + lhs + " not defined"));
+        } else {
+            a.emit(Bytecode.STORE, depth, slot);
+        }
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.ASSIGN);
+        e.name(lhs);
+        rhs.encode(e);
+    }
     /*
     void exec(Env env) {
         mem.store(lhs, rhs.eval(env));
@@ -400,38 +2046,155 @@ class Assign extends Stmt {
 
     void print(int ind) {
         indent(ind);
-        System.out.println(lhs + " = " + rhs.show() + ";");
+        Output.current().println(lhs + " = " + rhs.show() + ";");
     }
 }
 
 class While extends Stmt {
-    private Expr test;
-    private Stmt body;
+    private final Expr test;
+    private final Stmt body;
+    private int frameSize = 0;
+    private boolean metered = false;    // see Program.meter
+    private Tiers tiers;                // see Program.tier
+    private int trips;                  // iterations run on the tree
+    private StmtCode hot;               // the compiled loop, once it is hot
 
     While(Expr test, Stmt body) {
         this.test = test;
         this.body = body;
     }
 
+    Stmt flatten() {
+        Stmt b = body.flatten();
+        return b == body ? this : new While(test, b);
+    }
+
     Env exec(Program prog, Env env) {
-        while (test.eval(env).asBool()) {
-            body.exec(prog, env);
+        StmtCode c = hot;
+        if (c != null) {
+            c.exec(env);
+            return env;
+        }
+        Fuel fuel = metered ? Frame.fuel(env) : null;
+        while (test.evalBool(env)) {
+            if (fuel != null) {
+                fuel.step();
+            }
+            body.exec(prog, frameSize > 0 ? new Frame(frameSize, env) : env);
+            if (tiers != null && ++trips == tiers.threshold) {
+                c = hot = tiers.promote(text(), () -> compile(prog));
+                if (c != null) {
+                    // The compiled loop tests again, which has no effects:
+                    c.exec(env);
+                    break;
+                }
+            }
         }
         return env;
     }
 
+    void resolve(Scope sc) {
+        test.resolve(sc);
+        if (body.declares()) {
+            Scope inner = new Scope(sc);
+            body.resolve(inner);
+            frameSize = inner.size();
+        } else {
+            body.resolve(sc);
+        }
+        metered = sc.metered();
+        tiers = sc.tiers();
+    }
+
+    Stmt profile(Profiler p) {
+        return p.wrap(new While(test.profile(p), body.profile(p)), this);
+    }
+
+    Stmt fold(Folder f) {
+        Expr c = f.fold(test);
+        Stmt b = f.fold(body);
+        if (c instanceof Bool && !c.evalBool(null)) {
+            return new Skip();
+        }
+        return new While(c, b);
+    }
+
+    void check(Checker c) {
+        c.expect(Type.BOOL_TYPE, test.check(c), test, this);
+        int mark = c.mark();
+        body.check(c);
+        c.release(mark);
+    }
+
+    void effects(Effects e) {
+        test.effects(e);
+        int mark = e.mark();
+        body.effects(e);
+        e.release(mark);
+    }
+
+    StmtCode compile(Program prog) {
+        BoolCode t = test.compileBool(prog);
+        StmtCode b = body.compile(prog);
+        int frameSize = this.frameSize;
+        if (metered) {
+            return env -> {
+                Fuel fuel = Frame.fuel(env);
+                while (t.evalBool(env)) {
+                    if (fuel != null) {
+                        fuel.step();
+                    }
+                    b.exec(frameSize > 0 ? new Frame(frameSize, env) : env);
+                }
+            };
+        } else if (frameSize > 0) {
+            return env -> {
+                while (t.evalBool(env)) {
+                    b.exec(new Frame(frameSize, env));
+                }
+            };
+        }
+        return env -> {
+            while (t.evalBool(env)) {
+                b.exec(env);
+            }
+        };
+    }
+
+    void emit(Assembler a) {
+        int top = a.label(), done = a.label();
+        a.place(top);
+        test.emitBool(a);
+        a.jump(Bytecode.JUMPF, done);
+        if (frameSize > 0) {
+            a.emit(Bytecode.ENTER, frameSize);
+            body.emit(a);
+            a.emit(Bytecode.LEAVE);
+        } else {
+            body.emit(a);
+        }
+        a.jump(Bytecode.JUMP, top);
+        a.place(done);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.WHILE);
+        test.encode(e);
+        body.encode(e);
+    }
+
     void print(int ind) {
         indent(ind);
-        System.out.println("while (" + test.show() + ") {");
+        Output.current().println("while (" + test.show() + ") {");
         body.print(ind + 2);
         indent(ind);
-        System.out.println("}");
+        Output.current().println("}");
     }
 }
 
 class If extends Stmt {
-    private Expr test;
-    private Stmt t, f;
+    private final Expr test;
+    private final Stmt t, f;
 
     If(Expr test, Stmt t, Stmt f) {
         this.test = test;
@@ -439,42 +2202,208 @@ class If extends Stmt {
         this.f = f;
     }
 
+    Stmt flatten() {
+        Stmt a = t.flatten(), b = f.flatten();
+        return a == t && b == f ? this : new If(test, a, b);
+    }
+
     Env exec(Program prog, Env env) {
-        if (test.eval(env).asBool()) {
-            t.exec(prog, env);
-        } else {
-            f.exec(prog, env);
+        Env result = test.evalBool(env) ? t.exec(prog, env) : f.exec(prog, env);
+        return result instanceof TailCall ? result : env;
+    }
+
+    void resolve(Scope sc) {
+        test.resolve(sc);
+        int mark = sc.mark();
+        t.resolve(sc);
+        sc.release(mark);
+        f.resolve(sc);
+        sc.release(mark);
+    }
+
+    Stmt profile(Profiler p) {
+        return p.wrap(new If(test.profile(p), t.profile(p), f.profile(p)), this);
+    }
+
+    Stmt fold(Folder folder) {
+        Expr c = folder.fold(test);
+        Stmt a = folder.fold(t), b = folder.fold(f);
+        if (c instanceof Bool) {
+            // Only the branch that runs is kept.  It replaces the If unless
+            // it declares variables, which must stay local to it.
+            Stmt live = c.evalBool(null) ? a : b;
+            if (!live.declares()) {
+                return live;
+            }
+            return c.evalBool(null) ? new If(c, a, new Skip()) : new If(c, new Skip(), b);
         }
-        return env;
+        return new If(c, a, b);
+    }
+
+    void check(Checker c) {
+        c.expect(Type.BOOL_TYPE, test.check(c), test, this);
+        int mark = c.mark();
+        t.check(c);
+        c.release(mark);
+        f.check(c);
+        c.release(mark);
+    }
+
+    void effects(Effects e) {
+        test.effects(e);
+        int mark = e.mark();
+        t.effects(e);
+        e.release(mark);
+        f.effects(e);
+        e.release(mark);
+    }
+
+    boolean declares() {
+        return t.declares() || f.declares();
+    }
+
+    boolean markTail() {
+        return t.markTail() | f.markTail();
+    }
+
+    StmtCode compile(Program prog) {
+        BoolCode c = test.compileBool(prog);
+        StmtCode a = t.compile(prog), b = f.compile(prog);
+        return env -> {
+            if (c.evalBool(env)) {
+                a.exec(env);
+            } else {
+                b.exec(env);
+            }
+        };
+    }
+
+    TailCode compileTail(Program prog) {
+        BoolCode c = test.compileBool(prog);
+        TailCode a = t.compileTail(prog), b = f.compileTail(prog);
+        return env -> c.evalBool(env) ? a.exec(env) : b.exec(env);
+    }
+
+    void emit(Assembler a) {
+        int other = a.label(), done = a.label();
+        test.emitBool(a);
+        a.jump(Bytecode.JUMPF, other);
+        t.emit(a);
+        a.jump(Bytecode.JUMP, done);
+        a.place(other);
+        f.emit(a);
+        a.place(done);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.IF);
+        test.encode(e);
+        t.encode(e);
+        f.encode(e);
     }
 
     void print(int ind) {
         indent(ind);
-        System.out.println("if (" + test.show() + ") {");
+        Output.current().println("if (" + test.show() + ") {");
         t.print(ind + 2);
         indent(ind);
-        System.out.println("} else {");
+        Output.current().println("} else {");
         f.print(ind + 2);
         indent(ind);
-        System.out.println("}");
+        Output.current().println("}");
     }
 }
 
 class Print extends Stmt {
-    private Expr exp;
+    private final Expr exp;
 
     Print(Expr exp) {
         this.exp = exp;
     }
 
     Env exec(Program prog, Env env) {
-        System.out.println("Output: " + exp.eval(env).show());
+        Output.current().println("Output: " + exp.eval(env).show());
         return env;
     }
 
+    void resolve(Scope sc) {
+        exp.resolve(sc);
+    }
+
+    Stmt profile(Profiler p) {
+        return p.wrap(new Print(exp.profile(p)), this);
+    }
+
+    Stmt fold(Folder f) {
+        return new Print(f.fold(exp));
+    }
+
+    void check(Checker c) {
+        exp.check(c);
+    }
+
+    void effects(Effects e) {
+        exp.effects(e);
+        e.print();
+    }
+
+    StmtCode compile(Program prog) {
+        ValueCode c = exp.compile(prog);
+        return env -> Output.current().println("Output: " + c.eval(env).show());
+    }
+
+    void emit(Assembler a) {
+        exp.emit(a);
+        a.emit(Bytecode.PRINT);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.PRINT);
+        exp.encode(e);
+    }
+
     void print(int ind) {
         indent(ind);
-        System.out.println("print " + exp.show() + ";");
+        Output.current().println("print " + exp.show() + ";");
+    }
+}
+
+// A statement that does nothing, left behind by constant folding where a
+// statement is needed but none remains (a While whose test is false, say).
+class Skip extends Stmt {
+    Env exec(Program prog, Env env) {
+        return env;
+    }
+
+    void resolve(Scope sc) {
+    }
+
+    Stmt profile(Profiler p) {
+        return this;
+    }
+
+    Stmt fold(Folder f) {
+        return this;
+    }
+
+    void check(Checker c) {
+    }
+
+    void effects(Effects e) {
+    }
+
+    StmtCode compile(Program prog) {
+        return env -> { };
+    }
+
+    void emit(Assembler a) {
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.SKIP);
+    }
+
+    void print(int ind) {
     }
 }
 
@@ -484,38 +2413,75 @@ abstract class Value {
 
     // bool Value:
     boolean asBool() {
-        System.out.println("ABORT: Boolean value expected");
-        System.exit(1);
-        return true; // Not reached
+        throw new InterpreterException("ABORT: Boolean value expected");
     }
 
     // int Value:
     int asInt() {
-        System.out.println("ABORT: Int value expected");
-        System.exit(1);
-        return 0; // Not reached
+        throw new InterpreterException("ABORT: Int value expected");
     }
 
     Value enter(Value val) {
-        System.out.println("ABORT: First-class function expected");
-        System.exit(1);
-        return null;   // Not reached
+        throw new InterpreterException("ABORT: First-class function expected");
     }
 }
 
 class FValue extends Value {
-    private Env env;
-    private String arg;
-    private Expr body;
-
-    FValue(Env env, String arg, Expr body) {
+    private final Env env;
+    private final String arg;
+    private final ValueCode body;
+    private final int frameSize;
+    private final Memo memo;
+
+    // The body is either an Expr's eval method or its compiled code:
+    FValue(Env env, String arg, ValueCode body, int frameSize, Memo memo) {
         this.env = env;
         this.arg = arg;
         this.body = body;
+        this.frameSize = frameSize;
+        this.memo = memo;
+    }
+
+    FValue(Env env, String arg, ValueCode body, int frameSize) {
+        this(env, arg, body, frameSize, null);
+    }
+
+    FValue(Env env, String arg, Expr body) {
+        this(env, arg, body::eval, -1);
     }
 
+    // A closure of a memoized lambda looks its argument up first:
     Value enter(Value val) {
-        return body.eval(new ValEnv(arg, val, env));
+        Object key = memo != null ? Memo.key(val) : null;
+        if (key == null) {
+            return run(val);
+        }
+        Value result = (Value) memo.get(key);
+        if (result == null) {
+            result = run(val);
+            memo.put(key, result);
+        }
+        return result;
+    }
+
+    // A body whose result is a tail call returns a TailApply instead of
+    // making the call itself, and the call is made here in a loop:
+    private Value run(Value val) {
+        Value result = call(val);
+        while (result instanceof TailApply) {
+            TailApply next = (TailApply) result;
+            result = next.fun.call(next.arg);
+        }
+        return result;
+    }
+
+    private Value call(Value val) {
+        if (frameSize < 0) {
+            return body.eval(new ValEnv(arg, val, env));
+        }
+        Frame frame = new Frame(frameSize, env);
+        frame.set(0, new ValEnv(arg, val, null));
+        return body.eval(frame);
     }
 
     String show() {
@@ -523,8 +2489,23 @@ class FValue extends Value {
     }
 }
 
+// A call that a lambda body makes in tail position (see FValue.enter).
+class TailApply extends Value {
+    FValue fun;
+    Value arg;
+
+    TailApply(FValue fun, Value arg) {
+        this.fun = fun;
+        this.arg = arg;
+    }
+
+    String show() {
+        return "<tail call>";
+    }
+}
+
 class BValue extends Value {
-    private boolean b;
+    private final boolean b;
 
     BValue(boolean b) {
         this.b = b;
@@ -540,7 +2521,7 @@ class BValue extends Value {
 }
 
 class IValue extends Value {
-    private int i;
+    private final int i;
 
     IValue(int i) {
         this.i = i;
@@ -557,7 +2538,26 @@ class IValue extends Value {
 
 abstract class LValue extends Value {
     // Methods common to all list values should go here
-    abstract String showNoBrackets();
+    abstract int length();
+
+    // Run action on each element in turn, without recursion:
+    void forEach(Consumer<Value> action) {
+        LValue l = this;
+        while (l instanceof NonEmptyList) {
+            l = ((NonEmptyList) l).visit(action);
+        }
+    }
+
+    String showNoBrackets() {
+        StringBuilder buf = new StringBuilder();
+        forEach(val -> {
+            if (buf.length() > 0) {
+                buf.append(", ");
+            }
+            buf.append(val.show());
+        });
+        return buf.toString();
+    }
 
     String show() {
         return "[" + this.showNoBrackets() + "]";
@@ -565,26 +2565,38 @@ abstract class LValue extends Value {
 }
 
 class EmptyList extends LValue {
-    String showNoBrackets() {
-        return "";
+    int length() {
+        return 0;
     }
 }
 
 class NonEmptyList extends LValue {
-    private Value head;
-    private LValue tail;
+    private final Value head;
+    private final LValue tail;
+    private final int length;
 
     NonEmptyList(Value head, LValue tail) {
         this.head = head;
         this.tail = tail;
+        this.length = tail.length() + 1;
     }
 
-    String showNoBrackets() {
-        if (tail.getClass() != EmptyList.class) {
-            return head.show() + ", " + tail.showNoBrackets();
-        } else {
-            return head.show();
-        }
+    // For subclasses that store their elements some other way:
+    protected NonEmptyList(int length) {
+        this.head = null;
+        this.tail = null;
+        this.length = length;
+    }
+
+    int length() {
+        return length;
+    }
+
+    // Run action on the elements held in this node, and return the list
+    // that follows them:
+    LValue visit(Consumer<Value> action) {
+        action.accept(head);
+        return tail;
     }
 
     public Value getHead() {
@@ -596,6 +2608,65 @@ class NonEmptyList extends LValue {
     }
 }
 
+// An unrolled list: the elements items[start..] of an array, followed by
+// the list rest.  It behaves just like the equivalent chain of cons cells
+// (getTail() makes a view that starts one element later), but For walks
+// each array directly.  The tree-walking and closure-compiled engines make
+// one for each list literal of LITERAL or more elements (see Cons.eval);
+// shorter ones stay cells, which Case takes apart without making views.
+class ChunkedList extends NonEmptyList {
+    static final int CHUNK = 64;
+    static final int LITERAL = 8;
+
+    private final Value[] items;
+    private final int start;
+    private final LValue rest;
+
+    ChunkedList(Value[] items, int start, LValue rest) {
+        super(items.length - start + rest.length());
+        this.items = items;
+        this.start = start;
+        this.rest = rest;
+    }
+
+    // A list of the given values, CHUNK to an array:
+    static LValue of(Value[] values) {
+        return of(values, new EmptyList());
+    }
+
+    // The same, followed by rest:
+    static LValue of(Value[] values, LValue rest) {
+        LValue list = rest;
+        for (int end = values.length; end > 0; end -= CHUNK) {
+            int begin = Math.max(0, end - CHUNK);
+            list = new ChunkedList(Arrays.copyOfRange(values, begin, end), 0, list);
+        }
+        return list;
+    }
+
+    // The same elements as list, stored in chunks:
+    static LValue copyOf(LValue list) {
+        ArrayList<Value> values = new ArrayList<Value>(list.length());
+        list.forEach(values::add);
+        return of(values.toArray(new Value[values.size()]));
+    }
+
+    LValue visit(Consumer<Value> action) {
+        for (int i = start; i < items.length; i++) {
+            action.accept(items[i]);
+        }
+        return rest;
+    }
+
+    public Value getHead() {
+        return items[start];
+    }
+
+    public LValue getTail() {
+        return start + 1 < items.length ? new ChunkedList(items, start + 1, rest) : rest;
+    }
+}
+
 class MainList {
     public static void main(String[] args) {
         LValue l0 = new EmptyList();
@@ -629,89 +2700,554 @@ class MainList {
                 new VarDecl("r", new Nil())
 
 
-        );
-        init.print(0);
+        );
+        init.print(0);
+
+        System.out.println("el5: " + el5.show());
+        System.out.println("el6: " + el6.show());
+        System.out.println("el7: " + el7.show());
+        System.out.println("el8: " + el8.show());
+        System.out.println("t1: " + t1.show());
+        System.out.println("Head test: " + h1.show());
+        System.out.println("Tail test: " + el6.show());
+
+        Program prog = new Program(init);
+
+        System.out.println("Complete program is:");
+        prog.print();
+
+        System.out.println("Running in an empty environment:");
+        prog.run();
+
+        System.out.println("Done!");
+    }
+}
+
+class VarDecl extends Stmt {
+    private final String var;
+    private final Expr expr;
+    private int slot = -1;
+
+    VarDecl(String var, Expr expr) {
+        this.var = var;
+        this.expr = expr;
+    }
+
+    Env exec(Program prog, Env env) {
+        return Frame.declare(env, slot, var, expr.eval(env));
+    }
+
+    void resolve(Scope sc) {
+        // The initializer still sees any outer variable of the same name:
+        expr.resolve(sc);
+        slot = sc.declare(var);
+    }
+
+    Stmt profile(Profiler p) {
+        return p.wrap(new VarDecl(var, expr.profile(p)), this);
+    }
+
+    Stmt fold(Folder f) {
+        return new VarDecl(var, f.fold(expr));
+    }
+
+    void check(Checker c) {
+        c.declare(var, expr.check(c));
+    }
+
+    void effects(Effects e) {
+        expr.effects(e);
+        e.declare(var);
+    }
+
+    boolean declares() {
+        return true;
+    }
+
+    StmtCode compile(Program prog) {
+        ValueCode c = expr.compile(prog);
+        String var = this.var;
+        int slot = this.slot;
+        return env -> ((Frame) env).set(slot, new ValEnv(var, c.eval(env), null));
+    }
+
+    void emit(Assembler a) {
+        expr.emit(a);
+        a.emit(Bytecode.DECL, slot, a.constant(var));
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.VARDECL);
+        e.name(var);
+        expr.encode(e);
+    }
+
+    void print(int ind) {
+        indent(ind);
+        Output.current().println("var " + var + " = " + expr.show() + ";");
+    }
+}
+
+// A Program may be run by many threads at once.  The syntax tree is not
+// changed by running it, apart from the specialized forms that some nodes
+// pick for themselves (see Assign.exec): each run keeps its variables in
+// frames of its own, and its output goes to the current thread's Output.
+// What is worked out about the tree (slots, links, compiled code, memo
+// tables) is filled in once, by the synchronized methods below, before any
+// run uses it.
+class Program {
+    private Proc[] procs;
+    private Stmt body;
+    private int frameSize = -1;
+    private StmtCode code;
+    private Bytecode bytecode;
+    private StmtCode jvm;
+    private Output output;
+    private int removed = -1;
+    private HashMap<String, Proc> byName;
+    private ArrayList<String> linkErrors;
+    private Checker types;              // from a typecheck that found no errors
+    private ForkJoinPool pool;
+    private boolean metered = false;
+    private boolean generic = false;
+    private volatile Values values;     // see intern()
+    private Tiers tiers;
+
+    // The statements of the program and of each procedure are flattened
+    // into Blocks here, once, so that nothing else need recurse down a
+    // long chain of Seqs.  The program keeps a copy of procs, which it
+    // changes as it likes (here and in optimize), and leaves the caller's
+    // array alone.
+    Program(Proc[] procs, Stmt body) {
+        this.procs = procs.clone();
+        this.body = body.flatten();
+        for (int i = 0; i < this.procs.length; i++) {
+            this.procs[i] = this.procs[i].flatten();
+        }
+    }
+
+    Program(Stmt body) {
+        this(new Proc[]{}, body);
+    }
+
+    // Send this program's output to out rather than to the caller's
+    // current Output (see Output.java); null undoes this.  A program that
+    // is run by several threads at once should not have one.
+    void setOutput(Output out) {
+        this.output = out;
+    }
+
+    // Every engine runs the program through here, so that the output is
+    // flushed when it finishes, one way or another.  The message of an
+    // InterpreterException is printed with the rest of the output before
+    // the exception is passed on.  A program that shares its values makes
+    // its table current here, too.
+    private void output(Runnable code) {
+        Values v = values;
+        (output != null ? output : Output.current()).run(() -> Values.run(v, () -> {
+            try {
+                code.run();
+            } catch (InterpreterException e) {
+                Output.current().println(e.getMessage());
+                throw e;
+            }
+        }));
+    }
+
+    void run() {
+        output(() -> {
+            resolve();
+            body.exec(this, root(frameSize));
+        });
+    }
+
+    // The first frame of a run.  A metered program's run takes the Fuel
+    // that the current thread runs with, once, and keeps it there (see
+    // Frame.fuel).
+    Frame root(int size) {
+        Frame frame = new Frame(size, null);
+        if (metered) {
+            frame.fuel = Fuel.current();
+        }
+        return frame;
+    }
+
+    // Resolve every variable in the program to a frame slot.  This only
+    // needs to be done once, however many times the program is run.
+    synchronized void resolve() {
+        if (frameSize < 0) {
+            optimize();
+            linkErrors = new ArrayList<String>();
+            for (Proc p : procs) {
+                p.resolve(this);
+            }
+            Scope sc = new Scope(this);
+            body.resolve(sc);
+            if (!linkErrors.isEmpty()) {
+                throw new InterpreterException(String.join("\n", linkErrors));
+            }
+            frameSize = sc.size();
+        }
+    }
+
+    // Link a call to its procedure.  This is done once, as the call is
+    // resolved, so that running it needs no search; a call that cannot be
+    // linked is reported before the program starts.
+    Proc link(String name, int arity) {
+        Proc p = find(name);
+        String error = null;
+        if (p == null) {
+            error = "ABORT: Cannot find function " + name;
+        } else if (!p.accepts(arity)) {
+            error = "ABORT: Wrong number of arguments for " + name;
+        }
+        if (error != null) {
+            if (!linkErrors.contains(error)) {
+                linkErrors.add(error);
+            }
+            return null;
+        }
+        return p;
+    }
+
+    // Run the program with the closure-compilation engine instead of
+    // walking the syntax tree.  Translation happens on the first run only.
+    void runCompiled() {
+        output(() -> compile().exec(root(frameSize)));
+    }
+
+    synchronized StmtCode compile() {
+        if (code == null) {
+            resolve();
+            for (Proc p : procs) {
+                p.compile(this);
+            }
+            code = body.compile(this);
+        }
+        return code;
+    }
+
+    // Run the program on the bytecode VM.  As with runCompiled(), the
+    // program is only translated on the first run.  This is slower than
+    // run() (see VM.java); it is for programs that recurse too deeply for
+    // the Java stack.
+    void runBytecode() {
+        output(() -> new VM(assemble()).run(frameSize));
+    }
+
+    // Run on JVM classes generated from the bytecode, or on the tree-walking
+    // engine if they could not be generated:
+    void runJvm() {
+        output(() -> jvm().exec(new Frame(frameSize, null)));
+    }
+
+    private synchronized StmtCode jvm() {
+        if (jvm == null) {
+            try {
+                jvm = JVMCompiler.compile(assemble());
+            } catch (ClassFile.TooLarge e) {
+                System.err.println("Could not generate JVM code (" + e.getMessage()
+                                   + "), using the tree walker");
+                Stmt main = body;
+                jvm = env -> main.exec(this, env);
+            }
+        }
+        return jvm;
+    }
+
+    synchronized Bytecode assemble() {
+        if (bytecode == null) {
+            resolve();
+            Assembler a = new Assembler(this);
+            body.emit(a);
+            a.emit(Bytecode.HALT);
+            bytecode = a.finish();
+        }
+        return bytecode;
+    }
+
+    // Fold constants (see Folder.java), pass after pass until the program
+    // stops shrinking, and return the number of nodes removed.  This is
+    // done once, before the program is first resolved.
+    synchronized int optimize() {
+        if (removed < 0) {
+            int before = -1, size = -1, last;
+            do {
+                last = size;
+                Folder f = new Folder();
+                for (int i = 0; i < procs.length; i++) {
+                    procs[i] = procs[i].fold(f);
+                }
+                byName = null;
+                body = f.fold(body);
+                size = f.visits();
+                if (before < 0) {
+                    before = size;
+                }
+            } while (size != last);
+            removed = before - size;
+        }
+        return removed;
+    }
+
+    // Infer types for the whole program (see Checker.java) and return the
+    // errors found.  The language is still dynamically typed, and programs
+    // that are never checked run just as before.  A program that checks
+    // without errors leaves the list checks out of its bytecode, which
+    // only ever runs the program's own statements, so this must be called
+    // before the program is first run.  The tree-walking and compiled
+    // engines keep their checks: call() can pass them any values at all.
+    synchronized ArrayList<String> typecheck() {
+        optimize();
+        Checker c = new Checker();
+        for (Proc p : procs) {
+            p.declare(c);
+        }
+        for (Proc p : procs) {
+            p.check(c);
+        }
+        body.check(c);
+        ArrayList<String> errors = c.finish();
+        types = errors.isEmpty() ? c : null;
+        return errors;
+    }
+
+    // Memoize the procedures and lambdas that are pure, in tables of the
+    // given size (see Memo.java), and return the counters that they share.
+    // A procedure is pure if it does not print and calls only pure
+    // procedures; it can only see its own variables, and its results are
+    // passed back through its by-ref formals.  Lambdas cannot print or
+    // assign, but a closure's result may still change if a variable that
+    // it captures is assigned, so only lambdas whose free variables are
+    // never assigned anywhere, and are not by-ref formals (which have
+    // other names), are memoized.  This is opt-in, works for the
+    // tree-walking and closure-compiled engines, and must be done before
+    // the program is first run.
+    synchronized Memo.Stats memoize(int capacity) {
+        resolve();
+        Memo.Stats stats = new Memo.Stats();
+        HashMap<Proc, Effects> effects = new HashMap<Proc, Effects>();
+        Effects all = effects(effects);
+
+        // Mark the impure procedures, and then their callers, and so on:
+        HashSet<Proc> impure = new HashSet<Proc>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Proc p : procs) {
+                Effects e = effects.get(p);
+                if (!impure.contains(p)
+                        && (e.prints() || e.unlinked() || !Collections.disjoint(e.calls(), impure))) {
+                    impure.add(p);
+                    changed = true;
+                }
+            }
+        }
+        for (Proc p : procs) {
+            if (!impure.contains(p)) {
+                p.memoize(new Memo(capacity, stats));
+            }
+        }
+        for (Map.Entry<Lambda, HashSet<String>> l : all.lambdas().entrySet()) {
+            if (Collections.disjoint(l.getValue(), all.assigned()) && !all.aliased().contains(l.getKey())) {
+                l.getKey().memoize(new Memo(capacity, stats));
+            }
+        }
+        return stats;
+    }
+
+    // Run the effects analysis over the whole program, and return the
+    // Effects of the main body; those of each procedure go in procEffects.
+    private Effects effects(HashMap<Proc, Effects> procEffects) {
+        Effects all = new Effects();
+        for (Proc p : procs) {
+            Effects e = all.fresh();
+            p.effects(e);
+            procEffects.put(p, e);
+        }
+        body.effects(all);
+        return all;
+    }
+
+    // Run the iterations of each For loop whose body only assigns its own
+    // variables (see For.effects) on a pool of the given number of
+    // threads, or, if threads < 2, one after another as usual.  Output is
+    // printed in the same order either way.  This works for the
+    // tree-walking and closure-compiled engines, and must be done before
+    // the program is first run.  A metered program runs its loops one
+    // iteration after another all the same, so that every step is counted.
+    synchronized void parallel(int threads) {
+        resolve();
+        effects(new HashMap<Proc, Effects>());
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    ForkJoinPool pool() {
+        return pool;
+    }
 
-        System.out.println("el5: " + el5.show());
-        System.out.println("el6: " + el6.show());
-        System.out.println("el7: " + el7.show());
-        System.out.println("el8: " + el8.show());
-        System.out.println("t1: " + t1.show());
-        System.out.println("Head test: " + h1.show());
-        System.out.println("Tail test: " + el6.show());
+    // Count the steps that the program takes (see Fuel.java), so that a
+    // run inside Fuel.run() can be given a budget or time-sliced.  Run
+    // without a Fuel, a metered program only pays for finding that it has
+    // none.  A Fuel is counted down by the one thread that runs it, so a
+    // metered program never runs a For on its pool (see Program.parallel).
+    // This works for the tree-walking and closure-compiled engines, and
+    // must be done before the program is first run.
+    synchronized void meter() {
+        metered = true;
+    }
 
-        Program prog = new Program(init);
+    boolean metered() {
+        return metered;
+    }
 
-        System.out.println("Complete program is:");
-        prog.print();
+    // Share the ints, bools and lists that this program's runs make (see
+    // Values.java): ints from low to high, and cons cells through a table
+    // of about the given size.  Other programs are not affected.  This
+    // takes effect at the next run, and plain() goes back to making a new
+    // object for every value.
+    void intern(int low, int high, int cells) {
+        values = new Values(low, high, cells);
+    }
 
-        System.out.println("Running in an empty environment:");
-        prog.run();
+    void plain() {
+        values = null;
+    }
 
-        System.out.println("Done!");
+    // How often a cons found its cell in the table, since intern():
+    String internStats() {
+        Values v = values;
+        return v == null ? "plain" : v.stats();
     }
-}
 
-class VarDecl extends Stmt {
-    private String var;
-    private Expr expr;
+    // Keep every node of the tree-walking engine in its general form:
+    // do not let assignments and comparisons specialize themselves as they
+    // run (see Assign.exec).  Like meter(), this must be done before the
+    // program is first run.
+    synchronized void generic() {
+        generic = true;
+    }
 
-    VarDecl(String var, Expr expr) {
-        this.var = var;
-        this.expr = expr;
+    boolean specializes() {
+        return !generic;
     }
 
-    Env exec(Program prog, Env env) {
-        return new ValEnv(var, expr.eval(env), env);
+    // Let the tree-walking engine compile the loops and procedures that
+    // run at least threshold times (see Tiers.java), and
+    // tell listener, which may be null, as each one is.  Like meter(),
+    // this must be done before the program is first run.
+    synchronized Tiers tier(int threshold, Tiers.Listener listener) {
+        tiers = new Tiers(this, threshold, listener);
+        return tiers;
     }
 
-    void print(int ind) {
-        indent(ind);
-        System.out.println("var " + var + " = " + expr.show() + ";");
+    Tiers tiers() {
+        return tiers;
     }
-}
 
-class Program {
-    private Proc[] procs;
-    private Stmt body;
+    // A copy of the program that reports to p where the time goes.  The
+    // program itself is left as it is, so it runs at full speed.
+    synchronized Program profile(Profiler p) {
+        optimize();
+        Proc[] copies = new Proc[procs.length];
+        for (int i = 0; i < procs.length; i++) {
+            copies[i] = procs[i].profile(p);
+        }
+        Program copy = new Program(copies, body.profile(p));
+        copy.output = output;
+        return copy;
+    }
 
-    Program(Proc[] procs, Stmt body) {
-        this.procs = procs;
-        this.body = body;
+    // Save the program in binary (see Encoder.java), to be loaded again
+    // without the parser:
+    synchronized void save(String file) throws IOException {
+        Encoder e = new Encoder();
+        e.number(procs.length);
+        for (Proc p : procs) {
+            p.encode(e);
+        }
+        body.encode(e);
+        e.save(file);
     }
 
-    Program(Stmt body) {
-        this(new Proc[]{}, body);
+    static Program load(String file) throws IOException {
+        return Decoder.load(file);
     }
 
-    void run() {
-        body.exec(this, null);
+    // The first procedure with the given name:
+    synchronized Proc find(String name) {
+        if (byName == null) {
+            byName = new HashMap<String, Proc>();
+            for (Proc p : procs) {
+                byName.putIfAbsent(p.getName(), p);
+            }
+        }
+        return byName.get(name);
     }
 
     void print() {
-        for (Proc p : procs) {
-            p.print(4);
-        }
-        body.print(4);
-        System.out.println();
+        output(() -> {
+            for (Proc p : procs) {
+                p.print(4);
+            }
+            body.print(4);
+            Output.current().println();
+        });
+    }
+
+    // Run the procedure with the given name on the tree-walking engine,
+    // with args as the values of its formals, and return the values that
+    // the formals have when it returns; by-ref formals hold its results.
+    // The args of a typechecked program must have the types that the
+    // checker found for the formals, as they would if the call were made
+    // from the program itself.
+    Value[] call(String name, Value... args) {
+        Value[][] results = new Value[1][];
+        output(() -> {
+            resolve();
+            Proc p = find(name);
+            if (p == null) {
+                throw new InterpreterException("ABORT: Cannot find function " + name);
+            } else if (!p.accepts(args.length)) {
+                throw new InterpreterException("ABORT: Wrong number of arguments for " + name);
+            }
+            Type[] formals = types != null ? types.signature(name) : null;
+            for (int i = 0; formals != null && i < args.length; i++) {
+                if (!formals[i].admits(args[i])) {
+                    throw new InterpreterException("ABORT: Argument " + (i + 1) + " of " + name
+                                                   + " should have type " + formals[i].show());
+                }
+            }
+            results[0] = p.run(this, args);
+        });
+        return results[0];
     }
 
     void call(Env env, String name, Expr[] actuals) {
-        for (int i = 0; i < procs.length; i++) {
-            if (name.equals(procs[i].getName())) {
-                procs[i].call(this, env, actuals);
-                return;
-            }
+        Proc p = find(name);
+        if (p == null) {
+            throw new InterpreterException("ABORT: Cannot find function " + name);
+        } else {
+            p.call(this, env, actuals);
         }
-        System.out.println("ABORT: Cannot find function " + name);
-        System.exit(1);
     }
 }
 
 class Proc {
-    private String name;
-    private Formal[] formals;
-    private Stmt body;
+    private final String name;
+    private final Formal[] formals;
+    private final Stmt body;
+    private int frameSize = -1;
+    private TailCode code;
+    private Memo memo;
+    private boolean tails;          // does the body make tail calls?
+    private Tiers tiers;            // see Program.tier
+    private int calls;              // run on the tree
+    private TailCode hot;           // the compiled body, once it is hot
+    private TailCode onTree, compiled;  // the targets of TailCalls made by each engine
 
     Proc(String name, Formal[] formals, Stmt body) {
         this.name = name;
@@ -719,45 +3255,304 @@ class Proc {
         this.body = body;
     }
 
+    // This procedure with its body flattened (see Stmt.flatten):
+    Proc flatten() {
+        Stmt b = body.flatten();
+        return b == body ? this : new Proc(name, formals, b);
+    }
+
     String getName() {
         return name;
     }
 
+    boolean accepts(int arity) {
+        return arity == formals.length;
+    }
+
+    boolean byRef(int i) {
+        return formals[i] instanceof ByRef;
+    }
+
     void print(int ind) {
         Stmt.indent(ind);
-        System.out.print("procedure " + name + "(");
+        Output.current().print("procedure " + name + "(");
         for (int i = 0; i < formals.length; i++) {
             if (i > 0) {
-                System.out.print(", ");
+                Output.current().print(", ");
             }
-            System.out.print(formals[i]);
+            Output.current().print(formals[i].toString());
         }
-        System.out.println(") {");
+        Output.current().println(") {");
 
         body.print(ind + 2);
 
         Stmt.indent(ind);
-        System.out.println("}");
+        Output.current().println("}");
     }
 
     // This goes in the Proc class:
     void call(Program prog, Env env, Expr[] actuals) {
         if (actuals.length != formals.length) {
-            System.out.println("ABORT: Wrong number of arguments for " + name);
-            System.exit(1);
+            throw new InterpreterException("ABORT: Wrong number of arguments for " + name);
+        }
+        if (frameSize < 0) {
+            Env newenv = null;
+            for (int i = 0; i < actuals.length; i++) {
+                newenv = formals[i].extend(env, actuals[i], newenv);
+            }
+            body.exec(prog, newenv);
+            return;
+        }
+        enter(prog, frame(env, actuals));
+    }
+
+    // Run the body in a frame whose formals are already bound:
+    private void enter(Program prog, Frame frame) {
+        Object key = memo != null ? Memo.key(frame, formals.length) : null;
+        if (key != null && recall(frame, key)) {
+            return;
+        }
+        // Tail calls made by the body are run here, one after another:
+        Env next = runBody(prog, frame);
+        while (next instanceof TailCall) {
+            TailCall call = (TailCall) next;
+            next = call.code.exec(call.frame);
+        }
+        if (key != null) {
+            remember(frame, key);
+        }
+    }
+
+    // Run the body once: on the tree, or compiled once it is hot (see
+    // Program.tier).
+    private Env runBody(Program prog, Frame frame) {
+        TailCode c = hot;
+        if (c == null && tiers != null && ++calls == tiers.threshold) {
+            c = hot = tiers.promote("procedure " + name, () -> {
+                compile(prog);
+                return code;
+            });
+        }
+        if (c != null) {
+            return c.exec(frame);
+        }
+        return body.exec(prog, frame);
+    }
+
+    // A call from outside the program (see Program.call), with a fresh
+    // variable for each formal:
+    Value[] run(Program prog, Value[] args) {
+        Frame frame = prog.root(frameSize);
+        for (int i = 0; i < args.length; i++) {
+            frame.set(i, new ValEnv(formals[i].name, args[i], null));
+        }
+        enter(prog, frame);
+        Value[] results = new Value[args.length];
+        for (int i = 0; i < args.length; i++) {
+            results[i] = frame.get(i).getValue();
+        }
+        return results;
+    }
+
+    // A memoized procedure is keyed on the values of its formals when it
+    // is called, and remembers their values when it returns, which is how
+    // its by-ref formals pass results back.
+    void memoize(Memo memo) {
+        this.memo = memo;
+    }
+
+    private boolean recall(Frame frame, Object key) {
+        Value[] results = (Value[]) memo.get(key);
+        if (results == null) {
+            return false;
+        }
+        for (int i = 0; i < formals.length; i++) {
+            if (byRef(i)) {
+                frame.get(i).setValue(results[i]);
+            }
+        }
+        return true;
+    }
+
+    private void remember(Frame frame, Object key) {
+        Value[] results = new Value[formals.length];
+        for (int i = 0; i < formals.length; i++) {
+            results[i] = frame.get(i).getValue();
+        }
+        memo.put(key, results);
+    }
+
+    // A call in tail position: evaluate the actuals, but leave the call
+    // itself to the loop in call().
+    Env tailCall(Program prog, Env env, Expr[] actuals) {
+        if (frameSize < 0 || actuals.length != formals.length) {
+            call(prog, env, actuals);
+            return env;
+        }
+        return new TailCall(onTree, frame(env, actuals));
+    }
+
+    // Formals occupy the first slots of the procedure's frame:
+    private Frame frame(Env env, Expr[] actuals) {
+        Frame frame = new Frame(frameSize, null);
+        frame.fuel = Frame.fuel(env);
+        for (int i = 0; i < actuals.length; i++) {
+            frame.set(i, formals[i].extend(env, actuals[i], null));
+        }
+        return frame;
+    }
+
+    void resolve(Program prog) {
+        // Procedures cannot see the variables of their callers:
+        Scope sc = new Scope(prog);
+        for (Formal f : formals) {
+            sc.declare(f.name);
+        }
+        body.resolve(sc);
+        tails = body.markTail();
+        frameSize = sc.size();
+        tiers = sc.tiers();
+        onTree = frame -> runBody(prog, (Frame) frame);
+        compiled = frame -> {
+            TailCode c = code;
+            return c != null ? c.exec(frame) : runBody(prog, (Frame) frame);
+        };
+    }
+
+    void compile(Program prog) {
+        if (tails) {
+            code = body.compileTail(prog);
+        } else {
+            StmtCode c = body.compile(prog);
+            code = frame -> {
+                c.exec(frame);
+                return frame;
+            };
+        }
+    }
+
+    Proc fold(Folder f) {
+        return new Proc(name, formals, f.fold(body));
+    }
+
+    // Give the formals types before any procedure is checked:
+    void declare(Checker c) {
+        c.declareProc(name, formals.length);
+    }
+
+    void effects(Effects e) {
+        for (Formal f : formals) {
+            e.declare(f.name, f instanceof ByRef);
+        }
+        body.effects(e);
+    }
+
+    void check(Checker c) {
+        Type[] types = c.signature(name);
+        int mark = c.mark();
+        for (int i = 0; i < formals.length; i++) {
+            c.declare(formals[i].name, i < types.length ? types[i] : c.fresh());
+        }
+        body.check(c);
+        c.release(mark);
+    }
+
+    Proc profile(Profiler p) {
+        return new Proc(name, formals, p.wrap(body.profile(p), "procedure " + name));
+    }
+
+    void encode(Encoder e) {
+        e.name(name);
+        e.number(formals.length);
+        for (Formal f : formals) {
+            f.encode(e);
+        }
+        body.encode(e);
+    }
+
+    // Compile a call to this procedure.  The body is reached through the
+    // code field, so calls can be linked before the body is compiled.  If
+    // it is not compiled when the call is made, as when only some of a
+    // tiered program is, the call runs it as the tree-walking engine does.
+    // As there, the tail calls that the body returns are run in a loop.
+    StmtCode compileCall(Program prog, Expr[] actuals) {
+        if (actuals.length != formals.length) {
+            return env -> call(prog, env, actuals);
+        }
+        RefCode[] args = compileArgs(prog, actuals);
+        return env -> {
+            Frame frame = frame(env, args);
+            TailCode c = code;
+            if (c == null) {
+                enter(prog, frame);
+                return;
+            }
+            Object key = memo != null ? Memo.key(frame, args.length) : null;
+            if (key != null && recall(frame, key)) {
+                return;
+            }
+            Env next = c.exec(frame);
+            while (next instanceof TailCall) {
+                TailCall call = (TailCall) next;
+                next = call.code.exec(call.frame);
+            }
+            if (key != null) {
+                remember(frame, key);
+            }
+        };
+    }
+
+    // Compile a call in tail position, which returns a TailCall for the
+    // loop in the caller's compiled call to run (see compileCall):
+    TailCode compileTailCall(Program prog, Expr[] actuals) {
+        if (actuals.length != formals.length) {
+            return env -> tailCall(prog, env, actuals);
+        }
+        RefCode[] args = compileArgs(prog, actuals);
+        return env -> new TailCall(compiled, frame(env, args));
+    }
+
+    private RefCode[] compileArgs(Program prog, Expr[] actuals) {
+        RefCode[] args = new RefCode[actuals.length];
+        for (int i = 0; i < actuals.length; i++) {
+            args[i] = formals[i].compile(prog, actuals[i]);
+        }
+        return args;
+    }
+
+    private Frame frame(Env env, RefCode[] args) {
+        Frame frame = new Frame(frameSize, null);
+        frame.fuel = Frame.fuel(env);
+        for (int i = 0; i < args.length; i++) {
+            frame.set(i, args[i].evalRef(env));
+        }
+        return frame;
+    }
+
+    void emitCall(Assembler a, Expr[] actuals, boolean tail) {
+        if (actuals.length != formals.length) {
+            a.emit(Bytecode.ABORT, a.constant("ABORT: Wrong number of arguments for " + name));
+            return;
         }
-        Env newenv = null;
         for (int i = 0; i < actuals.length; i++) {
-            newenv = formals[i].extend(env, actuals[i], newenv);
+            formals[i].emit(a, actuals[i]);
         }
-        body.exec(prog, newenv);
+        a.emit(tail ? Bytecode.TAILCALL : Bytecode.CALL, a.constant(a.function(this, formals.length, frameSize)));
+    }
+
+    void emitBody(Assembler a) {
+        body.emit(a);
     }
 }
 
 class For extends Stmt {
-    private String v;
-    private Expr list;
-    private Stmt body;
+    private final String v;
+    private final Expr list;
+    private final Stmt body;
+    private int frameSize = 0;
+    private boolean checked = false;        // list is known to give a list (see emit)
+    private boolean independent = false;    // set by effects()
+    private boolean metered = false;        // see Program.meter
 
     For(String v, Expr list, Stmt body) {
         this.v = v;
@@ -765,6 +3560,11 @@ class For extends Stmt {
         this.body = body;
     }
 
+    Stmt flatten() {
+        Stmt b = body.flatten();
+        return b == body ? this : new For(v, list, b);
+    }
+
 //    Your first task is to complete the definition of the For class by
 //    filling in a suitable implementation for exec().  Be sure to test
 //    your implementation to make sure that it works correctly.  Note also
@@ -773,25 +3573,206 @@ class For extends Stmt {
 //    expression in a for loop does not evaluate to a list value.
     Env exec(Program prog, Env env) {
         Value temp = list.eval(env);
-        if (temp instanceof LValue) {
+        if (!(temp instanceof LValue)) {
+            throw new InterpreterException("ABORT: list value expected");
+        }
+        if (independent && !metered && frameSize > 0 && prog.pool() != null) {
+            parallel(prog.pool(), (LValue) temp,
+                     elem -> body.exec(prog, Frame.declare(new Frame(frameSize, env), 0, v, elem)));
             return env;
-        } else {
-            throw new RuntimeException("ABORT: Wrong...thing.");
+        }
+        // Each iteration gets a fresh binding for v (in a fresh frame,
+        // once resolved), so closures never see a later element:
+        Fuel fuel = metered ? Frame.fuel(env) : null;
+        ((LValue) temp).forEach(elem -> {
+            if (fuel != null) {
+                fuel.step();
+            }
+            if (frameSize > 0) {
+                body.exec(prog, Frame.declare(new Frame(frameSize, env), 0, v, elem));
+            } else {
+                body.exec(prog, Frame.declare(env, -1, v, elem));
+            }
+        });
+        return env;
+    }
+
+    void resolve(Scope sc) {
+        list.resolve(sc);
+        Scope inner = new Scope(sc);
+        inner.declare(v);
+        body.resolve(inner);
+        frameSize = inner.size();
+        metered = sc.metered();
+    }
+
+    Stmt profile(Profiler p) {
+        return p.wrap(new For(v, list.profile(p), body.profile(p)), this);
+    }
+
+    Stmt fold(Folder f) {
+        return new For(v, f.fold(list), f.fold(body));
+    }
+
+    void check(Checker c) {
+        Type elem = c.fresh();
+        c.expect(Type.list(elem), list.check(c), list, this);
+        int mark = c.mark();
+        c.declare(v, elem);
+        body.check(c);
+        c.release(mark);
+        c.ifTyped(() -> checked = true);
+    }
+
+    void effects(Effects e) {
+        list.effects(e);
+        // The iterations are independent if the body only assigns the
+        // variables that it declares itself:
+        Effects inner = e.nested();
+        inner.declare(v);
+        body.effects(inner);
+        independent = inner.writes().isEmpty();
+        e.include(inner);
+    }
+
+    // Run one iteration per element on pool.  The list is split into
+    // slices, and each slice prints to a buffer of its own; the buffers
+    // are then printed in the order of the list.  If an iteration fails,
+    // the output stops there, just as it would in a sequential loop.
+    private static void parallel(ForkJoinPool pool, LValue list, Consumer<Value> iteration) {
+        ArrayList<Value> elems = new ArrayList<Value>(list.length());
+        list.forEach(elems::add);
+        Value[] items = elems.toArray(new Value[elems.size()]);
+        int size = Math.max(1, items.length / (4 * pool.getParallelism()));
+        Slice.Result result = pool.invoke(new Slice(items, 0, items.length, size, iteration));
+        Output.current().print(result.text);
+        if (result.error != null) {
+            throw result.error;
+        }
+    }
+
+    private static class Slice extends RecursiveTask<Slice.Result> {
+        private static final long serialVersionUID = 1L;
+
+        // The output of a run of iterations, and the error that ended it:
+        static class Result {
+            String text;
+            InterpreterException error;
+
+            Result(String text, InterpreterException error) {
+                this.text = text;
+                this.error = error;
+            }
+        }
+
+        private Value[] items;
+        private int lo, hi, size;
+        private Consumer<Value> iteration;
+
+        Slice(Value[] items, int lo, int hi, int size, Consumer<Value> iteration) {
+            this.items = items;
+            this.lo = lo;
+            this.hi = hi;
+            this.size = size;
+            this.iteration = iteration;
+        }
+
+        protected Result compute() {
+            if (hi - lo > size) {
+                int mid = (lo + hi) >>> 1;
+                Slice left = new Slice(items, lo, mid, size, iteration);
+                left.fork();
+                Result right = new Slice(items, mid, hi, size, iteration).compute();
+                Result first = left.join();
+                if (first.error != null) {
+                    return first;
+                }
+                return new Result(first.text + right.text, right.error);
+            }
+            Output out = Output.capture();
+            InterpreterException error = null;
+            try {
+                out.run(() -> {
+                    for (int i = lo; i < hi; i++) {
+                        iteration.accept(items[i]);
+                    }
+                });
+            } catch (InterpreterException e) {
+                error = e;
+            }
+            return new Result(out.text(), error);
         }
     }
 
+    StmtCode compile(Program prog) {
+        ValueCode c = list.compile(prog);
+        StmtCode b = body.compile(prog);
+        String v = this.v;
+        int frameSize = this.frameSize;
+        boolean independent = this.independent, metered = this.metered;
+        return env -> {
+            Value temp = c.eval(env);
+            if (!(temp instanceof LValue)) {
+                throw new InterpreterException("ABORT: list value expected");
+            }
+            if (independent && !metered && prog.pool() != null) {
+                parallel(prog.pool(), (LValue) temp, elem -> {
+                    Frame frame = new Frame(frameSize, env);
+                    frame.set(0, new ValEnv(v, elem, null));
+                    b.exec(frame);
+                });
+                return;
+            }
+            Fuel fuel = metered ? Frame.fuel(env) : null;
+            ((LValue) temp).forEach(elem -> {
+                if (fuel != null) {
+                    fuel.step();
+                }
+                Frame frame = new Frame(frameSize, env);
+                frame.set(0, new ValEnv(v, elem, null));
+                b.exec(frame);
+            });
+        };
+    }
+
+    void emit(Assembler a) {
+        int top = a.label(), done = a.label();
+        list.emit(a);
+        if (!checked) {
+            a.emit(Bytecode.CHECKLIST);
+        }
+        a.place(top);
+        a.jump(Bytecode.FORNEXT, done);
+        a.emit(Bytecode.ENTER, frameSize);
+        a.emit(Bytecode.DECL, 0, a.constant(v));
+        body.emit(a);
+        a.emit(Bytecode.LEAVE);
+        a.jump(Bytecode.JUMP, top);
+        a.place(done);
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.FOR);
+        e.name(v);
+        list.encode(e);
+        body.encode(e);
+    }
+
     void print(int ind) {
         indent(ind);
-        System.out.println("for (" + v + " in " + list.show() + ") {");
+        Output.current().println("for (" + v + " in " + list.show() + ") {");
         body.print(ind + 2);
         indent(ind);
-        System.out.println("}");
+        Output.current().println("}");
     }
 }
 
 class Call extends Stmt {
-    private String name;
-    private Expr[] actuals;
+    private final String name;
+    private final Expr[] actuals;
+    private boolean tail = false;
+    private Proc proc;              // set when the call is linked
+    private boolean metered = false;    // see Program.meter
 
     Call(String name, Expr[] actuals) {
         this.name = name;
@@ -799,28 +3780,139 @@ class Call extends Stmt {
     }
 
     Env exec(Program prog, Env env) {
-        prog.call(env, name, actuals);
+        if (metered) {
+            Fuel.step(env);
+        }
+        if (proc == null) {
+            // Not linked, as when the call is run without resolving it:
+            prog.call(env, name, actuals);
+            return env;
+        } else if (tail) {
+            return proc.tailCall(prog, env, actuals);
+        }
+        proc.call(prog, env, actuals);
         return env;
     }
 
+    boolean markTail() {
+        tail = true;
+        return true;
+    }
+
+    void resolve(Scope sc) {
+        for (Expr x : actuals) {
+            x.resolve(sc);
+        }
+        proc = sc.link(name, actuals.length);
+        metered = sc.metered();
+    }
+
+    Stmt profile(Profiler p) {
+        Expr[] args = new Expr[actuals.length];
+        for (int i = 0; i < actuals.length; i++) {
+            args[i] = actuals[i].profile(p);
+        }
+        return p.wrap(new Call(name, args), this);
+    }
+
+    Stmt fold(Folder f) {
+        Expr[] args = new Expr[actuals.length];
+        for (int i = 0; i < actuals.length; i++) {
+            args[i] = f.fold(actuals[i]);
+        }
+        return new Call(name, args);
+    }
+
+    void check(Checker c) {
+        Type[] types = c.signature(name);
+        if (types == null) {
+            c.error("Cannot find function " + name, text());
+        } else if (types.length != actuals.length) {
+            c.error("Wrong number of arguments for " + name, text());
+        }
+        for (int i = 0; i < actuals.length; i++) {
+            Type t = actuals[i].check(c);
+            if (types != null && types.length == actuals.length) {
+                c.expect(types[i], t, actuals[i], this);
+            }
+        }
+    }
+
+    void effects(Effects e) {
+        for (int i = 0; i < actuals.length; i++) {
+            actuals[i].effects(e);
+            // A variable passed by reference may be assigned by the call:
+            if (proc != null && proc.byRef(i) && actuals[i] instanceof Var) {
+                e.write(((Var) actuals[i]).getName());
+            }
+        }
+        e.call(proc);
+    }
+
+    StmtCode compile(Program prog) {
+        if (proc == null) {
+            return env -> exec(prog, env);  // reports the missing procedure
+        }
+        StmtCode call = proc.compileCall(prog, actuals);
+        if (metered) {
+            return env -> {
+                Fuel.step(env);
+                call.exec(env);
+            };
+        }
+        return call;
+    }
+
+    TailCode compileTail(Program prog) {
+        if (proc == null || !tail) {
+            return super.compileTail(prog);
+        }
+        TailCode call = proc.compileTailCall(prog, actuals);
+        if (metered) {
+            return env -> {
+                Fuel.step(env);
+                return call.exec(env);
+            };
+        }
+        return call;
+    }
+
+    void emit(Assembler a) {
+        Proc p = proc;
+        if (p == null) {
+            a.emit(Bytecode.ABORT, a.constant("ABORT: Cannot find function " + name));
+        } else {
+            p.emitCall(a, actuals, tail);
+        }
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.CALL);
+        e.name(name);
+        e.number(actuals.length);
+        for (Expr x : actuals) {
+            x.encode(e);
+        }
+    }
+
     void print(int ind) {
         indent(ind);
-        System.out.print(name + "(");
+        Output.current().print(name + "(");
         int i = 0; // So lazy
         for (Expr x : actuals) {
-            System.out.print(x.show());
+            Output.current().print(x.show());
             i++;
             if (actuals.length != i) {
-                System.out.print(", ");
+                Output.current().print(", ");
             }
         }
-        System.out.println(");");
+        Output.current().println(");");
         //System.out.println(ind);
     }
 }
 
 class Formal {
-    protected String name;
+    protected final String name;
 
     Formal(String name) {
         this.name = name;
@@ -833,6 +3925,24 @@ class Formal {
     Env extend(Env env, Expr expr, Env newenv) {
         return new ValEnv(name, expr.eval(env), newenv);
     }
+
+    // Compile the code that builds this formal's cell from an actual:
+    RefCode compile(Program prog, Expr expr) {
+        ValueCode c = expr.compile(prog);
+        String name = this.name;
+        return env -> new ValEnv(name, c.eval(env), null);
+    }
+
+    // Emit the code that leaves this formal's cell on the object stack:
+    void emit(Assembler a, Expr expr) {
+        expr.emit(a);
+        a.emit(Bytecode.CELL, a.constant(name));
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.FORMAL);
+        e.name(name);
+    }
 }
 
 class ByRef extends Formal {
@@ -847,4 +3957,61 @@ class ByRef extends Formal {
     Env extend(Env env, Expr expr, Env newenv) {
         return new RefEnv(name, expr.evalRef(env), newenv);
     }
+
+    RefCode compile(Program prog, Expr expr) {
+        RefCode c = expr.compileRef(prog);
+        String name = this.name;
+        return env -> new RefEnv(name, c.evalRef(env), null);
+    }
+
+    void emit(Assembler a, Expr expr) {
+        expr.emitRef(a);
+        a.emit(Bytecode.REFCELL, a.constant(name));
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.BYREF);
+        e.name(name);
+    }
+}
+
+// A call-by-need formal: the actual is not evaluated at the call, but the
+// first time that the procedure reads the formal, if it ever does, and
+// only once (see ThunkEnv).
+class ByNeed extends Formal {
+    ByNeed(String name) {
+        super(name);
+    }
+
+    public String toString() {
+        return "lazy " + name;
+    }
+
+    Env extend(Env env, Expr expr, Env newenv) {
+        return new ThunkEnv(name, expr::eval, env, newenv);
+    }
+
+    RefCode compile(Program prog, Expr expr) {
+        ValueCode c = expr.compile(prog);
+        String name = this.name;
+        return env -> new ThunkEnv(name, c, env, null);
+    }
+
+    void emit(Assembler a, Expr expr) {
+        // The actual is placed inline, like a lambda body, and runs in the
+        // caller's frame when the cell is first read:
+        Bytecode.Function f = new Bytecode.Function(name, 0, 0);
+        int skip = a.label();
+        a.jump(Bytecode.JUMP, skip);
+        a.place(f);
+        expr.emit(a);
+        a.emit(Bytecode.RETURN);
+        a.place(skip);
+        a.emit(Bytecode.THUNK, a.constant(f));
+    }
+
+    void encode(Encoder e) {
+        e.tag(Encoder.BYNEED);
+        e.name(name);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+import java.util.function.Supplier;
+
+// Tiered execution for the tree-walking engine (see Program.tier).  Every
+// loop and procedure starts out walking its syntax tree, which costs
+// nothing up front.  Each While counts the iterations it runs, and each
+// Proc the calls made to it.  When a count reaches the threshold, the node
+// is compiled into closures (see Code.java) and runs that way from then
+// on; a loop that is running when it gets hot goes on in the compiled form
+// from its next iteration.  So code that runs only a few times is never
+// compiled.
+//
+// Lambdas are not promoted on their own.  A call of a closure is mostly
+// spent making frames and values, which compiled code makes just as the
+// tree does, so a compiled lambda body runs no faster (see MainEngines).
+// A lambda inside a loop or procedure that is promoted is compiled with
+// it.
+//
+// A node that cannot be compiled stays on the tree for good, and is not
+// tried again.  The listener hears of every node that changes tier, or
+// stays where it is.
+//
+// Counts are not exact when several threads run the same node, so such a
+// node may be promoted late, or not at all.
+class Tiers {
+    interface Listener {
+        // node moved from one tier to another, or failed to, for the reason why:
+        void transition(String node, String from, String to, String why);
+    }
+
+    private final Program prog;
+    final int threshold;
+    private final Listener listener;    // may be null
+    private long promoted, kept;
+
+    Tiers(Program prog, int threshold, Listener listener) {
+        this.prog = prog;
+        this.threshold = threshold;
+        this.listener = listener;
+    }
+
+    Program program() {
+        return prog;
+    }
+
+    // The compiled form of a node that has just got hot, or null if it
+    // must stay on the tree:
+    synchronized <C> C promote(String node, Supplier<C> compile) {
+        C code;
+        try {
+            code = compile.get();
+        } catch (RuntimeException e) {
+            keep(node, "cannot be compiled: " + e);
+            return null;
+        }
+        promoted++;
+        if (listener != null) {
+            listener.transition(node, "tree", "compiled", "ran " + threshold + " times");
+        }
+        return code;
+    }
+
+    synchronized void keep(String node, String why) {
+        kept++;
+        if (listener != null) {
+            listener.transition(node, "tree", "tree", why);
+        }
+    }
+
+    public synchronized String toString() {
+        return "promoted " + promoted + ", kept on the tree " + kept;
+    }
+}
@@ -0,0 +1,117 @@
+// Static types for the interpreter's language: int, bool, lists [t] and
+// functions (a -> b), plus type variables that stand for types not yet
+// known.  Variables are bound by unification, union-find style, as a
+// Checker works through a program.
+class Type {
+    static final int VAR = 0, INT = 1, BOOL = 2, LIST = 3, FUN = 4;
+    static final Type INT_TYPE = new Type(INT, null, null);
+    static final Type BOOL_TYPE = new Type(BOOL, null, null);
+
+    private int kind;
+    private Type a, b;              // element type, or argument and result
+    private Type link;              // for a bound VAR: what it stands for
+    private int id;
+
+    private Type(int kind, Type a, Type b) {
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+    }
+
+    static Type var(int id) {
+        Type t = new Type(VAR, null, null);
+        t.id = id;
+        return t;
+    }
+
+    static Type list(Type elem) {
+        return new Type(LIST, elem, null);
+    }
+
+    static Type fun(Type arg, Type result) {
+        return new Type(FUN, arg, result);
+    }
+
+    // Follow the links of bound variables:
+    Type find() {
+        Type t = this;
+        while (t.link != null) {
+            t = t.link;
+        }
+        return t;
+    }
+
+    // Make x and y the same type, if they can be:
+    static boolean unify(Type x, Type y) {
+        x = x.find();
+        y = y.find();
+        if (x == y) {
+            return true;
+        } else if (x.kind == VAR) {
+            if (y.occurs(x)) {
+                return false;       // x = [x] has no finite solution
+            }
+            x.link = y;
+            return true;
+        } else if (y.kind == VAR) {
+            return unify(y, x);
+        } else if (x.kind != y.kind) {
+            return false;
+        } else if (x.kind == LIST) {
+            return unify(x.a, y.a);
+        } else if (x.kind == FUN) {
+            return unify(x.a, y.a) && unify(x.b, y.b);
+        }
+        return true;
+    }
+
+    // Whether val has this type.  A type variable that is still unbound
+    // has every value, and so do the elements of a list whose element type
+    // is one:
+    boolean admits(Value val) {
+        Type t = find();
+        switch (t.kind) {
+        case INT:
+            return val instanceof IValue;
+        case BOOL:
+            return val instanceof BValue;
+        case LIST: {
+            if (!(val instanceof LValue)) {
+                return false;
+            }
+            boolean[] all = {true};
+            ((LValue) val).forEach(elem -> all[0] &= t.a.admits(elem));
+            return all[0];
+        }
+        case FUN:
+            return val instanceof FValue;
+        default:
+            return true;
+        }
+    }
+
+    private boolean occurs(Type v) {
+        Type t = find();
+        return t == v || (t.a != null && t.a.occurs(v)) || (t.b != null && t.b.occurs(v));
+    }
+
+    String show() {
+        Type t = find();
+        switch (t.kind) {
+        case INT:
+            return "int";
+        case BOOL:
+            return "bool";
+        case LIST:
+            return "[" + t.a.show() + "]";
+        case FUN:
+            return "(" + t.a.show() + " -> " + t.b.show() + ")";
+        default:
+            return "t" + t.id;
+        }
+    }
+
+    public String toString() {
+        return show();
+    }
+}
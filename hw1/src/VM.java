@@ -0,0 +1,403 @@
+// The dispatch loop for Bytecode.  Procedure calls and function
+// applications push a record on the VM's own call stack rather than on the
+// Java stack, so neither long programs nor deep recursion can overflow it.
+//
+// That, and being the front end of JVMCompiler, is what the VM is for: it
+// is not the fast engine.  Even with the common sequences fused (see fuse)
+// each instruction costs an unpredictable indirect jump.  On the
+// MainEngines programs the VM is two to four times slower than the tree
+// walker, whose calls the JIT can see through.  Use Program.runJvm for
+// speed.
+class VM {
+    // Fused instructions, which only ever appear in Bytecode.fused.  Each
+    // replaces a common sequence of plain instructions and takes up the
+    // same number of ints, so that no jump needs to be moved:
+    private static final int INCR = 100;     // d s k          x = x + k, from LOADINT d s,
+                                             //                ICONST k, IADD, BOXINT, STORE d s
+    private static final int JUMPGEK = 101;  // d s k L        LOADINT d s, ICONST k, ILT, JUMPF L
+    private static final int LOADINT2 = 102; // d s d' s'      LOADINT d s, LOADINT d' s'
+    private static final int JUMPGE = 103;   // L              ILT, JUMPF L
+    private static final int JUMPNE = 104;   // L              IEQ, JUMPF L
+    private static final int STOREINT = 105; // d s            BOXINT, STORE d s
+
+    private Bytecode prog;
+
+    VM(Bytecode prog) {
+        this.prog = prog;
+    }
+
+    void run(int frameSize) {
+        run(0, new Frame(frameSize, null));
+    }
+
+    // Run from pc in frame, until HALT or until the RETURN that ends the
+    // code it started in, and return what that leaves on the stack.
+    //
+    // The operand stacks and the call stack are locals of this loop, so
+    // that the JIT can keep them and their tops in registers rather than
+    // in fields of the VM.  Each run has stacks of its own: the code of a
+    // call-by-need actual, which may be forced in the middle of any
+    // instruction that reads a variable, runs in a nested loop (see
+    // force) and leaves the stacks of the loop it interrupted alone.
+    private Object run(int pc, Env frame) {
+        int[] code = prog.fused;
+        Object[] consts = prog.consts;
+        int[] ints = new int[16];
+        int isp = 0;
+        Object[] objs = new Object[16];
+        int osp = 0;
+
+        // Saved return addresses and frames for CALL and APPLY; the first
+        // record ends the run:
+        int[] returns = new int[16];
+        Env[] frames = new Env[16];
+        returns[0] = -1;
+        int csp = 1;
+
+        for (;;) {
+            // No instruction pushes more than two values or one int:
+            if (osp + 2 > objs.length) {
+                objs = java.util.Arrays.copyOf(objs, 2 * objs.length);
+            }
+            if (isp == ints.length) {
+                ints = java.util.Arrays.copyOf(ints, 2 * ints.length);
+            }
+            switch (code[pc++]) {
+            case Bytecode.HALT:
+                return null;
+            case Bytecode.ICONST:
+                ints[isp++] = code[pc++];
+                break;
+            case Bytecode.VCONST:
+                objs[osp++] = consts[code[pc++]];
+                break;
+            case Bytecode.LOAD:
+                objs[osp++] = Frame.cell(frame, code[pc], code[pc + 1]).getValue();
+                pc += 2;
+                break;
+            case Bytecode.LOADINT:
+                ints[isp++] = Frame.cell(frame, code[pc], code[pc + 1]).getValue().asInt();
+                pc += 2;
+                break;
+            case Bytecode.LOADREF:
+                objs[osp++] = Frame.cell(frame, code[pc], code[pc + 1]);
+                pc += 2;
+                break;
+            case Bytecode.STORE:
+                Frame.cell(frame, code[pc], code[pc + 1]).setValue((Value) objs[--osp]);
+                objs[osp] = null;
+                pc += 2;
+                break;
+            case Bytecode.DECL:
+                ((Frame) frame).set(code[pc], new ValEnv((String) consts[code[pc + 1]], (Value) objs[--osp], null));
+                objs[osp] = null;
+                pc += 2;
+                break;
+            case Bytecode.BOXINT:
+                objs[osp++] = Values.integer(ints[--isp]);
+                break;
+            case Bytecode.BOXBOOL:
+                objs[osp++] = Values.bool(ints[--isp] != 0);
+                break;
+            case Bytecode.UNBOXINT:
+                ints[isp++] = ((Value) objs[--osp]).asInt();
+                objs[osp] = null;
+                break;
+            case Bytecode.UNBOXBOOL:
+                ints[isp++] = ((Value) objs[--osp]).asBool() ? 1 : 0;
+                objs[osp] = null;
+                break;
+            case Bytecode.IADD:
+                isp--;
+                ints[isp - 1] += ints[isp];
+                break;
+            case Bytecode.ISUB:
+                isp--;
+                ints[isp - 1] -= ints[isp];
+                break;
+            case Bytecode.IMUL:
+                isp--;
+                ints[isp - 1] *= ints[isp];
+                break;
+            case Bytecode.ILT:
+                isp--;
+                ints[isp - 1] = ints[isp - 1] < ints[isp] ? 1 : 0;
+                break;
+            case Bytecode.IEQ:
+                isp--;
+                ints[isp - 1] = ints[isp - 1] == ints[isp] ? 1 : 0;
+                break;
+            case Bytecode.JUMP:
+                pc = code[pc];
+                break;
+            case Bytecode.JUMPF:
+                pc = ints[--isp] == 0 ? code[pc] : pc + 1;
+                break;
+            case Bytecode.PRINT:
+                Output.current().println("Output: " + ((Value) objs[--osp]).show());
+                objs[osp] = null;
+                break;
+            case Bytecode.NIL:
+                objs[osp++] = Values.nil();
+                break;
+            case Bytecode.CONS: {
+                Value head = (Value) objs[--osp];
+                objs[osp - 1] = Values.cons(head, (LValue) objs[osp - 1]);
+                objs[osp] = null;
+                break;
+            }
+            case Bytecode.HEAD:
+                objs[osp - 1] = nonEmpty(objs[osp - 1]).getHead();
+                break;
+            case Bytecode.TAIL:
+                objs[osp - 1] = nonEmpty(objs[osp - 1]).getTail();
+                break;
+            case Bytecode.NONEMPTY:
+                ints[isp++] = list(objs[--osp]) instanceof NonEmptyList ? 1 : 0;
+                objs[osp] = null;
+                break;
+            case Bytecode.CHECKLIST:
+                list(objs[osp - 1]);
+                break;
+            case Bytecode.CASE:
+            case Bytecode.FORNEXT: {
+                boolean keep = code[pc - 1] == Bytecode.FORNEXT;
+                Object val = list(objs[--osp]);
+                objs[osp] = null;
+                if (val instanceof NonEmptyList) {
+                    if (keep) {
+                        objs[osp++] = ((NonEmptyList) val).getTail();
+                    }
+                    objs[osp++] = ((NonEmptyList) val).getHead();
+                    if (!keep) {
+                        objs[osp++] = ((NonEmptyList) val).getTail();
+                    }
+                    pc++;
+                } else {
+                    pc = code[pc];
+                }
+                break;
+            }
+            case Bytecode.ENTER:
+                frame = new Frame(code[pc++], frame);
+                break;
+            case Bytecode.LEAVE:
+                frame = ((Frame) frame).parent();
+                break;
+            case Bytecode.CELL:
+                objs[osp - 1] = new ValEnv((String) consts[code[pc++]], (Value) objs[osp - 1], null);
+                break;
+            case Bytecode.REFCELL:
+                objs[osp - 1] = new RefEnv((String) consts[code[pc++]], (Env) objs[osp - 1], null);
+                break;
+            case Bytecode.TOCELL:
+                objs[osp - 1] = new ValEnv("", (Value) objs[osp - 1], null);
+                break;
+            case Bytecode.CALL:
+            case Bytecode.TAILCALL: {
+                // A tail call leaves the caller's record for the callee's
+                // RETURN, so the call stack does not grow:
+                boolean tail = code[pc - 1] == Bytecode.TAILCALL;
+                Bytecode.Function f = (Bytecode.Function) consts[code[pc++]];
+                Frame callee = new Frame(f.frameSize, null);
+                for (int i = f.arity - 1; i >= 0; i--) {
+                    callee.set(i, (Env) objs[--osp]);
+                    objs[osp] = null;
+                }
+                if (!tail) {
+                    if (csp == returns.length) {
+                        returns = java.util.Arrays.copyOf(returns, 2 * csp);
+                        frames = java.util.Arrays.copyOf(frames, 2 * csp);
+                    }
+                    returns[csp] = pc;
+                    frames[csp++] = frame;
+                }
+                frame = callee;
+                pc = f.entry;
+                break;
+            }
+            case Bytecode.LAMBDA: {
+                Bytecode.Function f = (Bytecode.Function) consts[code[pc++]];
+                objs[osp++] = new VMClosure(Frame.capture(frame, f.captures), f);
+                break;
+            }
+            case Bytecode.APPLY: {
+                Value arg = (Value) objs[--osp];
+                Object fun = objs[--osp];
+                objs[osp] = objs[osp + 1] = null;
+                if (!(fun instanceof VMClosure)) {
+                    ((Value) fun).enter(arg); // aborts: not a function
+                }
+                VMClosure clo = (VMClosure) fun;
+                Frame callee = new Frame(clo.fun.frameSize, clo.env);
+                callee.set(0, new ValEnv(clo.fun.name, arg, null));
+                if (csp == returns.length) {
+                    returns = java.util.Arrays.copyOf(returns, 2 * csp);
+                    frames = java.util.Arrays.copyOf(frames, 2 * csp);
+                }
+                returns[csp] = pc;
+                frames[csp++] = frame;
+                frame = callee;
+                pc = clo.fun.entry;
+                break;
+            }
+            case Bytecode.RETURN:
+                csp--;
+                pc = returns[csp];
+                frame = frames[csp];
+                frames[csp] = null;
+                if (pc < 0) {
+                    return osp > 0 ? objs[osp - 1] : null;
+                }
+                break;
+            case Bytecode.THUNK: {
+                Bytecode.Function f = (Bytecode.Function) consts[code[pc++]];
+                objs[osp++] = new ThunkEnv(f.name, env -> (Value) run(f.entry, env), frame, null);
+                break;
+            }
+            case INCR: {
+                Env cell = Frame.cell(frame, code[pc], code[pc + 1]);
+                cell.setValue(Values.integer(cell.getValue().asInt() + code[pc + 2]));
+                pc += 9;
+                break;
+            }
+            case JUMPGEK:
+                pc = Frame.cell(frame, code[pc], code[pc + 1]).getValue().asInt() < code[pc + 2]
+                   ? pc + 7 : code[pc + 3];
+                break;
+            case LOADINT2:
+                ints[isp++] = Frame.cell(frame, code[pc], code[pc + 1]).getValue().asInt();
+                if (isp == ints.length) {
+                    ints = java.util.Arrays.copyOf(ints, 2 * ints.length);
+                }
+                ints[isp++] = Frame.cell(frame, code[pc + 2], code[pc + 3]).getValue().asInt();
+                pc += 5;
+                break;
+            case JUMPGE:
+                isp -= 2;
+                pc = ints[isp] < ints[isp + 1] ? pc + 2 : code[pc];
+                break;
+            case JUMPNE:
+                isp -= 2;
+                pc = ints[isp] == ints[isp + 1] ? pc + 2 : code[pc];
+                break;
+            case STOREINT:
+                Frame.cell(frame, code[pc], code[pc + 1]).setValue(Values.integer(ints[--isp]));
+                pc += 3;
+                break;
+            case Bytecode.ABORT:
+                throw new InterpreterException((String) consts[code[pc]]);
+            default:
+                throw new RuntimeException("ABORT: bad opcode " + code[pc - 1] + " at " + (pc - 1));
+            }
+        }
+    }
+
+    // Rewrite the common sequences in code into fused instructions, so
+    // that a loop like "while i < n do t = t * i; i = i + 1" takes six
+    // dispatches a time around rather than fifteen.  The whole cost of an
+    // instruction as simple as IADD is the indirect jump to it, so fewer
+    // dispatches is the only way to make such code faster.  A sequence is
+    // left alone when something can jump into the middle of it.
+    static int[] fuse(int[] code, Object[] consts) {
+        boolean[] target = new boolean[code.length + 1];
+        for (Object k : consts) {
+            if (k instanceof Bytecode.Function && ((Bytecode.Function) k).entry >= 0) {
+                target[((Bytecode.Function) k).entry] = true;
+            }
+        }
+        for (int pc = 0; pc < code.length; pc += Bytecode.length(code[pc])) {
+            switch (code[pc]) {
+            case Bytecode.JUMP: case Bytecode.JUMPF: case Bytecode.CASE: case Bytecode.FORNEXT:
+                target[code[pc + 1]] = true;
+                break;
+            case Bytecode.CALL: case Bytecode.APPLY:
+                target[pc + Bytecode.length(code[pc])] = true;     // return address
+                break;
+            default:
+                break;
+            }
+        }
+
+        int[] fused = code.clone();
+        int n;
+        for (int pc = 0; pc < code.length; pc += n) {
+            n = Bytecode.length(code[pc]);
+            int m;
+            if (((m = span(code, target, pc, Bytecode.LOADINT, Bytecode.ICONST, Bytecode.IADD,
+                           Bytecode.BOXINT, Bytecode.STORE)) > 0
+                 || (m = span(code, target, pc, Bytecode.LOADINT, Bytecode.ICONST, Bytecode.ISUB,
+                              Bytecode.BOXINT, Bytecode.STORE)) > 0)
+                && code[pc + 1] == code[pc + 8] && code[pc + 2] == code[pc + 9]) {
+                fused[pc] = INCR;
+                fused[pc + 3] = code[pc + 5] == Bytecode.IADD ? code[pc + 4] : -code[pc + 4];
+            } else if ((m = span(code, target, pc, Bytecode.LOADINT, Bytecode.ICONST, Bytecode.ILT,
+                                 Bytecode.JUMPF)) > 0) {
+                fused[pc] = JUMPGEK;
+                fused[pc + 3] = code[pc + 4];
+                fused[pc + 4] = code[pc + 7];
+            } else if ((m = span(code, target, pc, Bytecode.LOADINT, Bytecode.LOADINT)) > 0) {
+                fused[pc] = LOADINT2;
+                fused[pc + 3] = code[pc + 4];
+                fused[pc + 4] = code[pc + 5];
+            } else if ((m = span(code, target, pc, Bytecode.ILT, Bytecode.JUMPF)) > 0) {
+                fused[pc] = JUMPGE;
+                fused[pc + 1] = code[pc + 2];
+            } else if ((m = span(code, target, pc, Bytecode.IEQ, Bytecode.JUMPF)) > 0) {
+                fused[pc] = JUMPNE;
+                fused[pc + 1] = code[pc + 2];
+            } else if ((m = span(code, target, pc, Bytecode.BOXINT, Bytecode.STORE)) > 0) {
+                fused[pc] = STOREINT;
+                fused[pc + 1] = code[pc + 2];
+                fused[pc + 2] = code[pc + 3];
+            } else {
+                continue;
+            }
+            n = m;
+        }
+        return fused;
+    }
+
+    // The length of the sequence ops at pc, or 0 if the code there is not
+    // that sequence or something jumps into the middle of it:
+    private static int span(int[] code, boolean[] target, int pc, int... ops) {
+        int at = pc;
+        for (int i = 0; i < ops.length; i++) {
+            if (at >= code.length || code[at] != ops[i] || (i > 0 && target[at])) {
+                return 0;
+            }
+            at += Bytecode.length(code[at]);
+        }
+        return at - pc;
+    }
+
+    private static Object list(Object val) {
+        if (!(val instanceof LValue)) {
+            throw new InterpreterException("ABORT: list value expected");
+        }
+        return val;
+    }
+
+    private static NonEmptyList nonEmpty(Object val) {
+        if (list(val) instanceof EmptyList) {
+            throw new InterpreterException("ABORT: nonempty list value expected");
+        }
+        return (NonEmptyList) val;
+    }
+}
+
+// A function value created by the VM: the code of a lambda body together
+// with the frame that was current when the lambda was evaluated.
+class VMClosure extends Value {
+    Env env;
+    Bytecode.Function fun;
+
+    VMClosure(Env env, Bytecode.Function fun) {
+        this.env = env;
+        this.fun = fun;
+    }
+
+    String show() {
+        return "<function>";
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Where every engine gets the ints, bools and lists that programs compute.
+// By default each one is a new object.  In the runs of a program that
+// Program.intern() was called for, the values are shared instead:
+//
+//  - ints in a range [low, high] come from a table made up front;
+//  - true, false and [] are one object each;
+//  - cons cells are hash-consed: a cell with the same head and the same
+//    tail as one made recently is that cell.  Since tails are shared in
+//    turn, lists that end the same way share that suffix.
+//
+// The table of cells never grows.  It is two-way set-associative: a new
+// cell goes in front of its set, and the older of the two cells there
+// drops out.  So it keeps no more than its own size alive, and a list that
+// misses is just built as usual.  (With one way, a single collision among
+// the cells of a list would stop every cell after it from being shared,
+// since their tails would then be new.)  Values are
+// immutable, so sharing them changes nothing that a program can see.
+// Threads may race on the table, which at worst loses a chance to share.
+//
+// The mode belongs to a Program, so one program in a batch that shares
+// its values does not change how any other allocates.  A run of it makes
+// its table current for the thread that runs it (see run()).  Values made
+// on any other thread, such as the pool of a parallel For, are new
+// objects, which loses nothing but the sharing.  While no run that shares
+// values is going on anywhere, finding that out costs one read of a
+// counter per value.
+class Values {
+    private static final BValue TRUE = new BValue(true), FALSE = new BValue(false);
+    private static final EmptyList NIL = new EmptyList();
+
+    private static final ThreadLocal<Values> CURRENT = new ThreadLocal<Values>();
+    private static final AtomicInteger RUNNING = new AtomicInteger();    // runs with a table
+
+    private final int low;
+    private final IValue[] ints;
+    private final NonEmptyList[] cells;
+    private long hits, misses;              // of the table of cells; not exact across threads
+
+    Values(int low, int high, int cells) {
+        this.low = low;
+        this.ints = new IValue[high - low + 1];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = new IValue(low + i);
+        }
+        this.cells = new NonEmptyList[Integer.highestOneBit(Math.max(2, cells))];
+    }
+
+    // Run code with v, which may be null, as the current thread's table:
+    static void run(Values v, Runnable code) {
+        Values saved = CURRENT.get();
+        if (v == saved) {
+            code.run();
+            return;
+        }
+        CURRENT.set(v);
+        RUNNING.incrementAndGet();
+        try {
+            code.run();
+        } finally {
+            RUNNING.decrementAndGet();
+            CURRENT.set(saved);
+        }
+    }
+
+    // The current thread's table, or null:
+    private static Values interned() {
+        return RUNNING.get() == 0 ? null : CURRENT.get();
+    }
+
+    static IValue integer(int i) {
+        Values v = interned();
+        if (v != null && i - v.low >= 0 && i - v.low < v.ints.length) {
+            return v.ints[i - v.low];
+        }
+        return new IValue(i);
+    }
+
+    static BValue bool(boolean b) {
+        if (interned() != null) {
+            return b ? TRUE : FALSE;
+        }
+        return new BValue(b);
+    }
+
+    static EmptyList nil() {
+        return interned() != null ? NIL : new EmptyList();
+    }
+
+    static NonEmptyList cons(Value head, LValue tail) {
+        Values v = interned();
+        return v != null ? v.cell(head, tail) : new NonEmptyList(head, tail);
+    }
+
+    // The values followed by rest, as a list literal makes them: in chunks
+    // (see ChunkedList), or as cells when those are shared, so that the
+    // literal can share them too.
+    static LValue list(Value[] values, LValue rest) {
+        Values v = interned();
+        if (v == null) {
+            return ChunkedList.of(values, rest);
+        }
+        LValue list = rest;
+        for (int i = values.length - 1; i >= 0; i--) {
+            list = v.cell(values[i], list);
+        }
+        return list;
+    }
+
+    private NonEmptyList cell(Value head, LValue tail) {
+        int h = hash(head) * 31 + System.identityHashCode(tail);
+        int i = (h ^ (h >>> 16)) & (cells.length - 2);
+        for (int j = i; j < i + 2; j++) {
+            NonEmptyList c = cells[j];
+            if (c != null && c.getTail() == tail && same(c.getHead(), head)) {
+                hits++;
+                return c;
+            }
+        }
+        misses++;
+        NonEmptyList c = new NonEmptyList(head, tail);
+        cells[i + 1] = cells[i];
+        cells[i] = c;
+        return c;
+    }
+
+    // Ints and bools are compared by value; anything else, such as a list
+    // or a function, must be the same object:
+    private static int hash(Value v) {
+        if (v instanceof IValue) {
+            return v.asInt();
+        } else if (v instanceof BValue) {
+            return v.asBool() ? 1231 : 1237;
+        }
+        return System.identityHashCode(v);
+    }
+
+    private static boolean same(Value a, Value b) {
+        if (a == b) {
+            return true;
+        } else if (a instanceof IValue && b instanceof IValue) {
+            return a.asInt() == b.asInt();
+        } else if (a instanceof BValue && b instanceof BValue) {
+            return a.asBool() == b.asBool();
+        }
+        return false;
+    }
+
+    // How often a cons found its cell in the table:
+    String stats() {
+        return "cells: hits " + hits + ", misses " + misses;
+    }
+}